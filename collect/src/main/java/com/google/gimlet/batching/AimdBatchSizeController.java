@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A {@link BatchSizeController} that grows the batch size additively while
+ * loads stay within a latency target, and halves it when they don't.
+ *
+ * @see BatchSizeControllers#aimd
+ */
+final class AimdBatchSizeController implements BatchSizeController {
+
+  private final int minBatchSize;
+  private final int maxBatchSize;
+  private final long targetLoadNanos;
+
+  private int batchSize;
+
+  AimdBatchSizeController(
+      int minBatchSize, int maxBatchSize, long targetLoadNanos) {
+    checkArgument(minBatchSize > 0,
+        "Min batch size must be positive but was %s", minBatchSize);
+    checkArgument(maxBatchSize >= minBatchSize,
+        "Max batch size %s is less than min batch size %s",
+        maxBatchSize, minBatchSize);
+    checkArgument(targetLoadNanos > 0,
+        "Target load latency must be positive but was %s", targetLoadNanos);
+    this.minBatchSize = minBatchSize;
+    this.maxBatchSize = maxBatchSize;
+    this.targetLoadNanos = targetLoadNanos;
+    this.batchSize = minBatchSize;
+  }
+
+  @Override public synchronized int getBatchSize() {
+    return batchSize;
+  }
+
+  @Override public synchronized void recordLoad(
+      int requestedBatchSize, long loadNanos, int loadedValueCount) {
+    if (loadNanos > targetLoadNanos) {
+      batchSize = Math.max(minBatchSize, batchSize / 2);
+    } else if (loadedValueCount >= requestedBatchSize
+        && requestedBatchSize >= batchSize) {
+      // only a full batch of the current size tells us a larger one may fit.
+      batchSize = (int) Math.min(
+          maxBatchSize, (long) batchSize + minBatchSize);
+    }
+  }
+}
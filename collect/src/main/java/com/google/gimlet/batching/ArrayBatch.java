@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * An immutable {@link Batch} backed by a range of an array, which also offers
+ * indexed access to its items.
+ * <p>
+ * Instances are made through {@link Batches#ofArray} and
+ * {@link Batches#copyOf}.  Since they never change, their hash code is
+ * computed once, and {@link #subBatch} views share the array of the batch
+ * they are taken from rather than copying it.
+ *
+ * @param <T> the type of items in the batch.
+ */
+public final class ArrayBatch<T> extends AbstractList<T>
+    implements Batch<T>, RandomAccess {
+
+  static final ArrayBatch<Object> EMPTY =
+      new ArrayBatch<Object>(new Object[0], 0, 0);
+
+  private final Object[] items;
+  private final int offset;
+  private final int size;
+
+  /** The hash code, or zero if it has not been computed yet. */
+  private int hashCode;
+
+  ArrayBatch(Object[] items, int offset, int size) {
+    this.items = items;
+    this.offset = offset;
+    this.size = size;
+  }
+
+  @Override public int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override public T get(int index) {
+    checkElementIndex(index, size);
+    return (T) items[offset + index];
+  }
+
+  /**
+   * Returns a view of the items of this batch from {@code fromIndex},
+   * inclusive, to {@code toIndex}, exclusive, which shares this batch's array.
+   */
+  @SuppressWarnings("unchecked")
+  public ArrayBatch<T> subBatch(int fromIndex, int toIndex) {
+    checkPositionIndexes(fromIndex, toIndex, size);
+    if (fromIndex == 0 && toIndex == size) {
+      return this;
+    }
+    if (fromIndex == toIndex) {
+      return (ArrayBatch<T>) EMPTY;
+    }
+    return new ArrayBatch<T>(items, offset + fromIndex, toIndex - fromIndex);
+  }
+
+  @Override public ArrayBatch<T> subList(int fromIndex, int toIndex) {
+    return subBatch(fromIndex, toIndex);
+  }
+
+  @Override public Object[] toArray() {
+    return Arrays.copyOfRange(items, offset, offset + size);
+  }
+
+  @Override public int hashCode() {
+    int result = hashCode;
+    if (result == 0) {
+      result = 1;
+      for (int i = offset; i < offset + size; i++) {
+        Object item = items[i];
+        result = 31 * result + (item == null ? 0 : item.hashCode());
+      }
+      hashCode = result;
+    }
+    return result;
+  }
+}
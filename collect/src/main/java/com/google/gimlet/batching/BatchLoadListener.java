@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+/**
+ * Is told about every batch that a {@link ListLoadingIterable} loads, and
+ * about every time a consumer of its items waits for a batch.  Comparing how
+ * long loads take with how long consumers wait tells whether a scan is bound
+ * by the backend or by its consumer.
+ * <p>
+ * Implementations must be thread safe, since several iterators may load from
+ * the same iterable at once, and loads may run on other threads than the
+ * consumer.
+ *
+ * @see LoadStatistics
+ */
+public interface BatchLoadListener {
+
+  /**
+   * Records the outcome of a load.
+   *
+   * @param loadNanos how long the load took, in nanoseconds
+   * @param loadedItemCount how many items the load returned; for a
+   * {@link MapLoadingIterable}, how many keys
+   * @param loadedValueCount how many values the load returned; for a
+   * {@link MapLoadingIterable}, the total number of values of its keys, and
+   * otherwise the same as {@code loadedItemCount}
+   */
+  void recordLoad(long loadNanos, int loadedItemCount, int loadedValueCount);
+
+  /**
+   * Records that a consumer waited for a batch to be handed to it.
+   *
+   * @param waitNanos how long the consumer waited, in nanoseconds
+   */
+  void recordWait(long waitNanos);
+
+  /**
+   * Records that a load was held back on purpose before it started, as by a
+   * {@link ThrottlingCallableTransform}.  This time is not part of the load
+   * time, but consumers may wait for it, so it tells a scan that is held back
+   * from one that is bound by the backend.
+   *
+   * @param throttleNanos how long the load was held back, in nanoseconds
+   */
+  void recordThrottle(long throttleNanos);
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.gimlet.parallel.ExecutionStrategy;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Contains combinators that process the batches of a {@link BatchIterable}
+ * as they go by.
+ *
+ */
+public final class BatchPipelines {
+  private BatchPipelines() { }
+
+  /**
+   * Returns a view of the given {@code batches} in which the given
+   * {@code function} has been applied to every item, in parallel.
+   * <p>
+   * Each batch is cut into chunks of up to {@code chunkSize} items, which are
+   * mapped via the {@link ExecutionStrategy#getParallelMapTransform parallel
+   * map transform} of the given {@code executionStrategy}.  While the
+   * consumer works on one batch, the chunks of up to
+   * {@code maxBatchesInFlight - 1} following batches are already being
+   * processed.  Batches, and the items in each of them, keep their order.
+   * <p>
+   * A failure of the function is rethrown when the batch it failed on is
+   * reached.
+   */
+  public static <T, U> BatchIterable<U> parallelMap(
+      final BatchIterable<T> batches,
+      Function<? super T, ? extends U> function,
+      final ExecutionStrategy executionStrategy,
+      final int chunkSize,
+      final int maxBatchesInFlight) {
+    checkNotNull(batches);
+    checkNotNull(function);
+    checkNotNull(executionStrategy);
+    checkArgument(chunkSize > 0,
+        "Chunk size must be positive but was %s", chunkSize);
+    checkArgument(maxBatchesInFlight > 0,
+        "Max batches in flight must be positive but was %s",
+        maxBatchesInFlight);
+    final Function<List<T>, List<U>> chunkFunction =
+        new ChunkFunction<T, U>(function);
+
+    return new BatchIterable<U>() {
+      @Override public Iterator<Batch<? extends U>> iterator() {
+        final Iterator<Batch<? extends T>> batchIterator = batches.iterator();
+
+        return new AbstractIterator<Batch<? extends U>>() {
+          /** Processing batches, in order, the first of which is next. */
+          private final LinkedList<Callable<Iterable<List<U>>>> inFlight =
+              Lists.newLinkedList();
+
+          @Override protected Batch<? extends U> computeNext() {
+            while (inFlight.size() < maxBatchesInFlight
+                && batchIterator.hasNext()) {
+              inFlight.add(start(batchIterator.next()));
+            }
+            if (inFlight.isEmpty()) {
+              return endOfData();
+            }
+            List<U> results = Lists.newArrayList();
+            for (List<U> chunkResults : finish(inFlight.removeFirst())) {
+              results.addAll(chunkResults);
+            }
+            return Batches.copyOf(results);
+          }
+
+          private Callable<Iterable<List<U>>> start(Batch<? extends T> batch) {
+            List<List<T>> chunks = Lists.partition(
+                Lists.<T>newArrayList(batch), chunkSize);
+            try {
+              return executionStrategy.getParallelMapTransform(chunkFunction)
+                  .apply(chunks);
+            } catch (final RuntimeException e) {
+              // strategies that run in the calling thread fail right away;
+              // report it when the batch is reached, like any other failure.
+              return new Callable<Iterable<List<U>>>() {
+                @Override public Iterable<List<U>> call() {
+                  throw e;
+                }
+              };
+            }
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Calls the given callable, rethrowing the failure behind it unwrapped
+   * when it is a {@link RuntimeException} or an {@link Error}.
+   */
+  private static <V> V finish(Callable<V> callable) {
+    FutureTask<V> task = new FutureTask<V>(callable);
+    task.run();
+    return BatchingFutures.getUnchecked(task);
+  }
+
+  /** Applies a function to each item of a chunk. */
+  private static final class ChunkFunction<T, U>
+      implements Function<List<T>, List<U>> {
+    private final Function<? super T, ? extends U> function;
+
+    ChunkFunction(Function<? super T, ? extends U> function) {
+      this.function = function;
+    }
+
+    @Override public List<U> apply(List<T> chunk) {
+      List<U> results = Lists.newArrayListWithCapacity(chunk.size());
+      for (T item : chunk) {
+        results.add(function.apply(item));
+      }
+      return results;
+    }
+  }
+}
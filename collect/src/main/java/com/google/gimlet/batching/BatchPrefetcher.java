@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.Lists;
+import com.google.gimlet.parallel.ExecutionStrategy;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps up to a fixed number of batches of a {@link BatchSource} loading
+ * ahead of a single consumer.
+ * <p>
+ * Because the id of a batch is only known once the batch before it has been
+ * loaded, the loads form a chain: each one is started on the
+ * {@link ExecutionStrategy} as soon as its predecessor completes, so that
+ * batch N+1 starts loading the moment batch N arrives rather than when the
+ * consumer asks for it.
+ * <p>
+ * Loaded batches wait in a buffer until the consumer takes them.  The buffer
+ * is bounded by a number of batches and, optionally, by the total weight of
+ * the batches in it as measured by a {@link Weigher}.  Once either bound is
+ * reached, no further load is started until the consumer takes a batch, so
+ * the buffer holds at most the maximum weight plus one batch.
+ * <p>
+ * Instances are meant to back a single iterator: only one thread may take
+ * batches, although loads complete on whichever threads the strategy uses.
+ *
+ * @param <I> the type of id used in fetching.
+ * @param <T> the type of objects being loaded.
+ */
+final class BatchPrefetcher<I, T> {
+
+  private final BatchSource<I, T> batchSource;
+  private final ExecutionStrategy executionStrategy;
+  private final int prefetchDepth;
+  private final Weigher<? super T> weigher;
+  private final long maxBufferedWeight;
+  private final Runnable loadCompletionCallback;
+
+  /** The total weight of the loaded batches that were not handed out yet. */
+  private final AtomicLong bufferedWeight = new AtomicLong();
+
+  /**
+   * Loads that were started but whose batches were not yet handed out.
+   * Guarded by {@code this}.
+   */
+  private final LinkedList<FutureTask<BufferedBatch<I, T>>> pendingLoads =
+      Lists.newLinkedList();
+
+  /**
+   * The most recently started load, which the next load is chained to.
+   * Guarded by {@code this}.
+   */
+  private FutureTask<BufferedBatch<I, T>> lastLoad;
+
+  /** Whether no further loads may be started.  Guarded by {@code this}. */
+  private boolean finished;
+
+  BatchPrefetcher(
+      BatchSource<I, T> batchSource,
+      ExecutionStrategy executionStrategy,
+      int prefetchDepth,
+      I beginId) {
+    this(batchSource, executionStrategy, prefetchDepth, null, Long.MAX_VALUE,
+        beginId, null);
+  }
+
+  /**
+   * @param weigher if not {@code null}, weighs the items of each loaded batch
+   * so that the buffer holds no more than about {@code maxBufferedWeight}
+   * @param loadCompletionCallback if not {@code null}, is run each time one of
+   * the loads of this prefetcher completes, successfully or not.
+   */
+  BatchPrefetcher(
+      final BatchSource<I, T> batchSource,
+      ExecutionStrategy executionStrategy,
+      int prefetchDepth,
+      Weigher<? super T> weigher,
+      long maxBufferedWeight,
+      I beginId,
+      Runnable loadCompletionCallback) {
+    checkArgument(prefetchDepth > 0,
+        "Prefetch depth must be positive but was %s", prefetchDepth);
+    checkArgument(maxBufferedWeight > 0,
+        "Max buffered weight must be positive but was %s", maxBufferedWeight);
+    this.batchSource = batchSource;
+    this.executionStrategy = executionStrategy;
+    this.prefetchDepth = prefetchDepth;
+    this.weigher = weigher;
+    this.maxBufferedWeight = maxBufferedWeight;
+    this.loadCompletionCallback = loadCompletionCallback;
+
+    final I firstId = checkNotNull(beginId, "Can't have a null initial value");
+    synchronized (this) {
+      start(new Callable<LoadedBatch<I, T>>() {
+        @Override public LoadedBatch<I, T> call() {
+          return batchSource.loadFrom(firstId);
+        }
+      });
+    }
+  }
+
+  /**
+   * Returns the next batch, waiting for it to load if need be, or
+   * {@code null} once the end of the data has been reached.
+   */
+  List<T> nextBatch() {
+    Future<BufferedBatch<I, T>> nextLoad;
+    synchronized (this) {
+      // loads are always pending unless the end has been reached.
+      if (isExhausted()) {
+        return null;
+      }
+      nextLoad = pendingLoads.removeFirst();
+    }
+
+    BufferedBatch<I, T> bufferedBatch = BatchingFutures.getUnchecked(nextLoad);
+    bufferedWeight.addAndGet(-bufferedBatch.weight);
+    LoadedBatch<I, T> loadedBatch = bufferedBatch.loadedBatch;
+
+    synchronized (this) {
+      if (loadedBatch.isEnd()) {
+        cancelPendingLoads();
+        return null;
+      }
+      if (loadedBatch.hasNext()) {
+        fill();
+      } else {
+        cancelPendingLoads();
+      }
+    }
+    return loadedBatch.getBatch();
+  }
+
+  /** Returns whether {@link #nextBatch()} has no more batches to return. */
+  synchronized boolean isExhausted() {
+    return pendingLoads.isEmpty();
+  }
+
+  /**
+   * Returns whether the batch that {@link #nextBatch()} would return next has
+   * already been loaded, so that getting it won't block.
+   */
+  synchronized boolean isNextBatchReady() {
+    return pendingLoads.isEmpty() || pendingLoads.getFirst().isDone();
+  }
+
+  /** Cancels all loads that have not been handed out yet. */
+  synchronized void cancelPendingLoads() {
+    for (Future<BufferedBatch<I, T>> pendingLoad : pendingLoads) {
+      pendingLoad.cancel(false);
+    }
+    pendingLoads.clear();
+    finished = true;
+  }
+
+  /**
+   * Chains another load to the last one if it has completed, more batches
+   * follow it, and there's room for another batch in the buffer.
+   */
+  private synchronized void fill() {
+    while (pendingLoads.size() < prefetchDepth
+        && bufferedWeight.get() < maxBufferedWeight
+        && lastLoadHasNext()) {
+      final I nextId = BatchingFutures.getUnchecked(lastLoad)
+          .loadedBatch.getNextId();
+      start(new Callable<LoadedBatch<I, T>>() {
+        @Override public LoadedBatch<I, T> call() {
+          return batchSource.loadFrom(nextId);
+        }
+      });
+    }
+  }
+
+  /**
+   * Returns whether the last load has completed and is known to be followed
+   * by more batches.  When it hasn't completed, its completion calls
+   * {@link #fill()} again.
+   */
+  private boolean lastLoadHasNext() {
+    if (finished || !lastLoad.isDone()) {
+      return false;
+    }
+    try {
+      return lastLoad.get().loadedBatch.hasNext();
+    } catch (Exception e) {
+      // the failure is reported when the batch is handed out.
+      return false;
+    }
+  }
+
+  /** Hands the given load to the execution strategy.  Guarded by this. */
+  private void start(final Callable<LoadedBatch<I, T>> load) {
+    FutureTask<BufferedBatch<I, T>> loadTask =
+        new FutureTask<BufferedBatch<I, T>>(
+            new Callable<BufferedBatch<I, T>>() {
+              @Override public BufferedBatch<I, T> call() throws Exception {
+                LoadedBatch<I, T> loadedBatch = load.call();
+                long weight = weigh(loadedBatch.getBatch());
+                bufferedWeight.addAndGet(weight);
+                return new BufferedBatch<I, T>(loadedBatch, weight);
+              }
+            }) {
+          @Override protected void done() {
+            if (!isCancelled()) {
+              fill();
+            }
+            if (loadCompletionCallback != null) {
+              loadCompletionCallback.run();
+            }
+          }
+        };
+    pendingLoads.add(loadTask);
+    lastLoad = loadTask;
+    BatchingFutures.start(executionStrategy, loadTask);
+  }
+
+  private long weigh(List<T> batch) {
+    if (weigher == null) {
+      return 0;
+    }
+    long weight = 0;
+    for (T item : batch) {
+      weight += weigher.weigh(item);
+    }
+    return weight;
+  }
+
+  /** A loaded batch along with its weight. */
+  private static final class BufferedBatch<I, T> {
+    final LoadedBatch<I, T> loadedBatch;
+    final long weight;
+
+    BufferedBatch(LoadedBatch<I, T> loadedBatch, long weight) {
+      this.loadedBatch = loadedBatch;
+      this.weight = weight;
+    }
+  }
+}
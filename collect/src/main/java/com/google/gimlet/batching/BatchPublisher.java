@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+/**
+ * A source of batches that hands them to its subscribers only as fast as
+ * they ask for them.  This follows the reactive streams protocol: a
+ * subscriber is first given a {@link BatchSubscription}, through which it
+ * asks for batches, and is then handed at most as many batches as it asked
+ * for, followed by either the end of the data or a failure.
+ *
+ * @param <T> the type of items in the batches.
+ * @see LoadingBatchPublisher
+ */
+public interface BatchPublisher<T> {
+
+  /**
+   * Adds the given {@code subscriber}, which is handed its own
+   * {@link BatchSubscription} before anything else.
+   */
+  void subscribe(BatchSubscriber<? super T> subscriber);
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+/**
+ * Decides how many values a {@link MapLoadingIterable} asks for in each of
+ * its loads, and may adjust that number between loads based on how the
+ * previous loads went.
+ * <p>
+ * Implementations must be thread safe, since several iterators may load from
+ * the same iterable at once.
+ *
+ * @see BatchSizeControllers
+ */
+public interface BatchSizeController {
+
+  /**
+   * Returns the batch size to use for the next load.  This is also the
+   * current size to report when monitoring the controller.
+   */
+  int getBatchSize();
+
+  /**
+   * Records the outcome of a load.
+   *
+   * @param requestedBatchSize the batch size that the load asked for
+   * @param loadNanos how long the load took, in nanoseconds
+   * @param loadedValueCount how many values the load returned
+   */
+  void recordLoad(int requestedBatchSize, long loadNanos, int loadedValueCount);
+}
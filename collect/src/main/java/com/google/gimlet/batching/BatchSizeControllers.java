@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contains static factories for {@link BatchSizeController}s.
+ *
+ */
+public final class BatchSizeControllers {
+  private BatchSizeControllers() { }
+
+  /** Returns a controller that always uses the given {@code batchSize}. */
+  public static BatchSizeController fixed(int batchSize) {
+    checkArgument(batchSize > 0,
+        "Batch size must be positive but was %s", batchSize);
+    return uncheckedFixed(batchSize);
+  }
+
+  /**
+   * Like {@link #fixed}, but takes any {@code batchSize}, as the constructor
+   * of {@link MapLoadingIterable} that takes a batch size always did.
+   */
+  static BatchSizeController uncheckedFixed(final int batchSize) {
+    return new BatchSizeController() {
+      @Override public int getBatchSize() {
+        return batchSize;
+      }
+
+      @Override public void recordLoad(
+          int requestedBatchSize, long loadNanos, int loadedValueCount) {
+      }
+    };
+  }
+
+  /**
+   * Returns a controller that adjusts the batch size to keep loads within the
+   * given latency target, using additive increase and multiplicative decrease
+   * (AIMD).
+   * <p>
+   * The batch size starts at {@code minBatchSize}.  Each load that returns a
+   * full batch within the target grows it by {@code minBatchSize}, up to
+   * {@code maxBatchSize}; loads that return fewer values than asked for
+   * say nothing about larger batches and leave it as it is.  Each load that
+   * takes longer than the target halves it, down to {@code minBatchSize}.
+   */
+  public static BatchSizeController aimd(
+      int minBatchSize,
+      int maxBatchSize,
+      long targetLoadLatency,
+      TimeUnit targetLoadLatencyUnit) {
+    return new AimdBatchSizeController(minBatchSize, maxBatchSize,
+        targetLoadLatencyUnit.toNanos(targetLoadLatency));
+  }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+/**
+ * Loads the consecutive batches of a single scan over a
+ * {@link ListLoadingIterable}.  A scan calls its source one batch at a time,
+ * each call beginning with the id returned alongside the previous batch.
+ *
+ * @param <I> the type of id used in fetching.
+ * @param <T> the type of objects being loaded.
+ */
+interface BatchSource<I, T> {
+
+  /**
+   * Loads the batch beginning with {@code beginId}, along with the id of the
+   * batch after it.
+   */
+  LoadedBatch<I, T> loadFrom(I beginId);
+
+  /**
+   * Returns whether the next call to {@link #loadFrom} depends on what earlier
+   * calls loaded, so that a fresh source would load something else from the
+   * same id.
+   */
+  boolean dependsOnEarlierLoads();
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.gimlet.parallel.ExecutionStrategy;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Splits the items of a {@link BatchIterable} along batch boundaries so that
+ * several workers can process them at once, in the manner of a
+ * {@code java.util.Spliterator} that only ever splits off whole batches.
+ * <p>
+ * Batches are still loaded one after the other, by whichever worker asks for
+ * the next one, so a prefetching source such as
+ * {@link PrefetchingListLoadingIterable#batches()} keeps loading ahead while
+ * the workers process the items of the batches they hold.
+ * <p>
+ * Instances are thread safe, and single use: each batch is handed out once.
+ *
+ * @param <T> the type of items in the batches.
+ */
+public final class BatchSpliterator<T> {
+
+  /** The size estimate reported when the number of items is not known. */
+  public static final long UNKNOWN_SIZE = Long.MAX_VALUE;
+
+  private final Iterator<? extends Batch<? extends T>> batches;
+
+  /** Guarded by {@code this}. */
+  private long estimatedSize;
+
+  private BatchSpliterator(
+      Iterator<? extends Batch<? extends T>> batches, long estimatedSize) {
+    checkArgument(estimatedSize >= 0,
+        "Estimated size can't be negative but was %s", estimatedSize);
+    this.batches = checkNotNull(batches);
+    this.estimatedSize = estimatedSize;
+  }
+
+  /**
+   * Returns a spliterator over a new iteration of the given
+   * {@code batchIterable}, whose number of items is not known.
+   */
+  public static <T> BatchSpliterator<T> of(BatchIterable<T> batchIterable) {
+    return of(batchIterable, UNKNOWN_SIZE);
+  }
+
+  /**
+   * Returns a spliterator over a new iteration of the given
+   * {@code batchIterable}, which is expected to hold about
+   * {@code estimatedSize} items.
+   */
+  public static <T> BatchSpliterator<T> of(
+      BatchIterable<T> batchIterable, long estimatedSize) {
+    return new BatchSpliterator<T>(batchIterable.iterator(), estimatedSize);
+  }
+
+  /**
+   * Returns the next whole batch, loading it if need be, or {@code null} if
+   * all batches have been handed out.
+   */
+  public synchronized Batch<? extends T> trySplit() {
+    if (!batches.hasNext()) {
+      estimatedSize = 0;
+      return null;
+    }
+    Batch<? extends T> batch = batches.next();
+    if (estimatedSize != UNKNOWN_SIZE) {
+      estimatedSize = Math.max(0, estimatedSize - batch.size());
+    }
+    return batch;
+  }
+
+  /**
+   * Returns an estimate of the number of items that have not been handed out
+   * yet, or {@link #UNKNOWN_SIZE} if there is none.
+   */
+  public synchronized long estimateSize() {
+    return estimatedSize;
+  }
+
+  /**
+   * Applies the given {@code action} to every remaining item, using
+   * {@code parallelism} workers that each take whole batches from this
+   * spliterator and that run via the given {@code executionStrategy}.  Items
+   * within a batch are processed in order, but batches are processed in no
+   * particular order.  This returns once all items have been processed, and
+   * rethrows the failure of any worker.
+   */
+  public void forEachInParallel(
+      final Function<? super T, ?> action,
+      ExecutionStrategy executionStrategy,
+      int parallelism) {
+    checkNotNull(action);
+    checkArgument(parallelism > 0,
+        "Parallelism must be positive but was %s", parallelism);
+
+    Callable<Void> worker = new Callable<Void>() {
+      @Override public Void call() {
+        for (Batch<? extends T> batch = trySplit(); batch != null;
+            batch = trySplit()) {
+          for (T item : batch) {
+            action.apply(item);
+          }
+        }
+        return null;
+      }
+    };
+
+    List<Future<Void>> workers = Lists.newArrayList();
+    for (int i = 0; i < parallelism; i++) {
+      workers.add(BatchingFutures.start(executionStrategy, worker));
+    }
+    for (Future<Void> future : workers) {
+      BatchingFutures.getUnchecked(future);
+    }
+  }
+}
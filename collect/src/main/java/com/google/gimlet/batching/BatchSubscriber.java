@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+/**
+ * Receives the batches of a {@link BatchPublisher}.  The methods of a
+ * subscriber are called one at a time, though not necessarily from the same
+ * thread.
+ *
+ * @param <T> the type of items in the batches.
+ */
+public interface BatchSubscriber<T> {
+
+  /**
+   * Is called once, before any other method, with the subscription through
+   * which this subscriber asks for batches.
+   */
+  void onSubscribe(BatchSubscription subscription);
+
+  /** Is called with each batch, at most as many times as were asked for. */
+  void onNext(Batch<? extends T> batch);
+
+  /** Is called once if the batches could not be produced. */
+  void onError(Throwable t);
+
+  /** Is called once after the last batch. */
+  void onComplete();
+}
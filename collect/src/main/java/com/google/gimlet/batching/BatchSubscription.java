@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+/**
+ * The link between a {@link BatchPublisher} and one of its
+ * {@link BatchSubscriber}s, through which the subscriber asks for batches or
+ * stops receiving them.
+ */
+public interface BatchSubscription {
+
+  /**
+   * Asks for {@code batchCount} more batches, on top of those that were
+   * asked for but not yet handed out.  A count that is not positive fails
+   * the subscription.
+   */
+  void request(long batchCount);
+
+  /**
+   * Stops handing out batches to the subscriber.  A load that is in progress
+   * still completes, but its batch is dropped.
+   */
+  void cancel();
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+/**
+ * Receives the batches that a {@link BatchingSink} accumulates, typically to
+ * write each of them to a backend in a single call.
+ *
+ * @param <T> the type of items being written.
+ */
+public interface BatchWriter<T> {
+
+  /**
+   * Writes the given non-empty {@code batch}.  Several batches may be
+   * written at once, depending on how the sink is configured.
+   */
+  void write(Batch<T> batch) throws Exception;
+}
@@ -17,6 +17,11 @@
 
 package com.google.gimlet.batching;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+
 import java.util.Collection;
 import java.util.Iterator;
 
@@ -28,6 +33,41 @@ import java.util.Iterator;
 public final class Batches {
   private Batches() { }
 
+  /** Returns the immutable empty batch. */
+  @SuppressWarnings("unchecked")
+  public static <T> ArrayBatch<T> empty() {
+    return (ArrayBatch<T>) ArrayBatch.EMPTY;
+  }
+
+  /**
+   * Returns an immutable batch over the given {@code items}, which uses the
+   * array itself rather than a copy of it.  The caller must not change the
+   * array afterwards.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> ArrayBatch<T> ofArray(T... items) {
+    return items.length == 0
+        ? Batches.<T>empty()
+        : new ArrayBatch<T>(items, 0, items.length);
+  }
+
+  /** Returns an immutable batch over a copy of the given {@code items}. */
+  @SuppressWarnings("unchecked")
+  public static <T> ArrayBatch<T> copyOf(Collection<? extends T> items) {
+    if (items instanceof ArrayBatch) {
+      return (ArrayBatch<T>) items;
+    }
+    Object[] array = items.toArray();
+    return array.length == 0
+        ? Batches.<T>empty()
+        : new ArrayBatch<T>(array, 0, array.length);
+  }
+
+  /** Returns an immutable batch over a copy of the given {@code items}. */
+  public static <T> ArrayBatch<T> copyOf(T[] items) {
+    return ofArray(checkNotNull(items).clone());
+  }
+
   public static <T> Batch<T> forCollection(final Collection<T> collection) {
     return new Batch<T>() {
       @Override public int size() {
@@ -83,4 +123,20 @@ public final class Batches {
       }
     };
   }
+
+  /**
+   * Returns an iterator over the items of the given batches, in order.  A
+   * batch is only taken from {@code batches} once the items of the one
+   * before it run out.
+   */
+  static <T> Iterator<T> concat(
+      Iterator<? extends Iterable<? extends T>> batches) {
+    return Iterators.concat(Iterators.transform(batches,
+        new Function<Iterable<? extends T>, Iterator<? extends T>>() {
+          @Override public Iterator<? extends T> apply(
+              Iterable<? extends T> batch) {
+            return batch.iterator();
+          }
+        }));
+  }
 }
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.gimlet.parallel.ExecutionStrategy;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Helpers for running work of this package on an {@link ExecutionStrategy}.
+ *
+ */
+final class BatchingFutures {
+  private BatchingFutures() { }
+
+  /**
+   * Hands the given {@code task} to the given {@code executionStrategy} and
+   * returns it.  The work runs inside a {@link FutureTask} of our own so that
+   * its outcome, including any failure, is reported the same way whether or
+   * not the strategy runs it in the calling thread.
+   */
+  static <F extends FutureTask<?>> F start(
+      ExecutionStrategy executionStrategy, F task) {
+    executionStrategy.<Object>getTransform().apply(Executors.callable(task));
+    return task;
+  }
+
+  /** Like {@link #start(ExecutionStrategy, FutureTask)}, for a callable. */
+  static <T> FutureTask<T> start(
+      ExecutionStrategy executionStrategy, Callable<T> callable) {
+    return start(executionStrategy, new FutureTask<T>(callable));
+  }
+
+  /**
+   * Waits for the given future, rethrowing its failure unwrapped when it is
+   * a {@link RuntimeException} or an {@link Error}.  A failure that is itself
+   * an {@link ExecutionException}, as when the work of the future waited on
+   * another one, is unwrapped down to its own cause.
+   */
+  static <V> V getUnchecked(Future<V> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for a batch", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      while (cause instanceof ExecutionException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+}
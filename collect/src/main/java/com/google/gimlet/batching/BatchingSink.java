@@ -0,0 +1,333 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.Lists;
+import com.google.gimlet.parallel.ExecutionStrategies;
+import com.google.gimlet.parallel.ExecutionStrategy;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The write-side counterpart of the loading iterables: producers
+ * {@link #offer} items one at a time, and the sink hands them to a
+ * {@link BatchWriter} in batches.
+ * <p>
+ * The current batch is flushed as soon as it holds the maximum number of
+ * items, or weighs at least the maximum weight according to a
+ * {@link Weigher}, or has been open for the linger time, whichever comes
+ * first.  Each flush runs on an {@link ExecutionStrategy}.  At most a fixed
+ * number of flushes may be in flight at once; once that many are, the
+ * producer whose item fills the next batch waits until one of them
+ * completes, which keeps producers from outrunning the backend.
+ * <p>
+ * If a write fails, the failure is rethrown to the next producer that calls
+ * {@link #offer}, {@link #flush} or {@link #close}.  The items of the failed
+ * batch are not written again.
+ * <p>
+ * Instances are thread safe, and are configured through a {@link Builder}:
+ * <pre>
+ * BatchingSink&lt;Row&gt; sink = BatchingSink.newBuilder(rowWriter)
+ *     .maxBatchSize(500)
+ *     .linger(100, TimeUnit.MILLISECONDS, scheduledExecutorService)
+ *     .executionStrategy(strategy, 4)
+ *     .build();
+ * </pre>
+ *
+ * @param <T> the type of items being written.
+ */
+public final class BatchingSink<T> implements Flushable, Closeable {
+
+  private final BatchWriter<T> batchWriter;
+  private final int maxBatchSize;
+  private final Weigher<? super T> weigher;
+  private final long maxBatchWeight;
+  private final long lingerNanos;
+  private final ScheduledExecutorService lingerExecutor;
+  private final ExecutionStrategy executionStrategy;
+  private final int maxInFlightFlushes;
+  private final Semaphore inFlightFlushes;
+  /** The first write failure that was not rethrown yet, if any. */
+  private final AtomicReference<Throwable> writeFailure =
+      new AtomicReference<Throwable>();
+
+  // All fields below are guarded by this.  The sink never waits for a
+  // flush to be let in while holding its lock.
+  private final List<T> currentBatch = Lists.newArrayList();
+  private long currentBatchWeight;
+  /** Counts the batches opened so far, so a linger task knows its batch. */
+  private long currentBatchNumber;
+  /** The task that flushes the current batch once it lingered, if any. */
+  private ScheduledFuture<?> lingerTask;
+  private boolean closed;
+
+  private BatchingSink(Builder<T> builder) {
+    this.batchWriter = builder.batchWriter;
+    this.maxBatchSize = builder.maxBatchSize;
+    this.weigher = builder.weigher;
+    this.maxBatchWeight = builder.maxBatchWeight;
+    this.lingerNanos = builder.lingerNanos;
+    this.lingerExecutor = builder.lingerExecutor;
+    this.executionStrategy = builder.executionStrategy;
+    this.maxInFlightFlushes = builder.maxInFlightFlushes;
+    this.inFlightFlushes = new Semaphore(maxInFlightFlushes);
+  }
+
+  /**
+   * Returns a builder for a sink that writes its batches to the given
+   * {@code batchWriter}.
+   */
+  public static <T> Builder<T> newBuilder(BatchWriter<T> batchWriter) {
+    return new Builder<T>(batchWriter);
+  }
+
+  /**
+   * Adds the given {@code item} to the current batch, flushing the batch if
+   * the item fills it.
+   *
+   * @throws IllegalStateException if this sink was closed
+   * @throws RuntimeException if an earlier write failed
+   */
+  public void offer(T item) {
+    Batch<T> fullBatch = null;
+    synchronized (this) {
+      checkState(!closed, "Can't offer items to a closed sink");
+      rethrowWriteFailure();
+
+      if (currentBatch.isEmpty() && lingerExecutor != null) {
+        scheduleLinger(currentBatchNumber);
+      }
+      currentBatch.add(item);
+      if (weigher != null) {
+        currentBatchWeight += weigher.weigh(item);
+      }
+      if (currentBatch.size() >= maxBatchSize
+          || currentBatchWeight >= maxBatchWeight) {
+        fullBatch = takeCurrentBatch();
+      }
+    }
+    if (fullBatch != null) {
+      startFlush(fullBatch);
+    }
+  }
+
+  /**
+   * Flushes the current batch, if it holds any items, without waiting for
+   * the write to complete.
+   *
+   * @throws RuntimeException if an earlier write failed
+   */
+  @Override public void flush() {
+    rethrowWriteFailure();
+    Batch<T> batch;
+    synchronized (this) {
+      batch = takeCurrentBatch();
+    }
+    if (batch != null) {
+      startFlush(batch);
+    }
+  }
+
+  /**
+   * Flushes the current batch and waits for all flushes in flight to
+   * complete.  Items can't be offered to the sink afterwards; closing it
+   * again has no effect.
+   *
+   * @throws RuntimeException if a write failed
+   */
+  @Override public void close() {
+    Batch<T> batch;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      batch = takeCurrentBatch();
+    }
+    if (batch != null) {
+      startFlush(batch);
+    }
+    inFlightFlushes.acquireUninterruptibly(maxInFlightFlushes);
+    inFlightFlushes.release(maxInFlightFlushes);
+    rethrowWriteFailure();
+  }
+
+  /** Returns how many items wait in the current batch. */
+  public synchronized int getBufferedItemCount() {
+    return currentBatch.size();
+  }
+
+  /**
+   * Takes the items of the current batch and opens a new one, returning
+   * {@code null} if the current batch is empty.  Must be called while
+   * holding the lock.
+   */
+  private Batch<T> takeCurrentBatch() {
+    if (currentBatch.isEmpty()) {
+      return null;
+    }
+    Batch<T> batch = Batches.copyOf(currentBatch);
+    currentBatch.clear();
+    currentBatchWeight = 0;
+    currentBatchNumber++;
+    if (lingerTask != null) {
+      lingerTask.cancel(false);
+      lingerTask = null;
+    }
+    return batch;
+  }
+
+  /**
+   * Hands the given {@code batch} to the writer via the execution strategy,
+   * once fewer than the maximum number of flushes are in flight.  Must be
+   * called without holding the lock, since completing flushes don't take it.
+   */
+  private void startFlush(final Batch<T> batch) {
+    inFlightFlushes.acquireUninterruptibly();
+    try {
+      BatchingFutures.start(executionStrategy, new Callable<Void>() {
+        @Override public Void call() {
+          try {
+            batchWriter.write(batch);
+          } catch (Throwable t) {
+            writeFailure.compareAndSet(null, t);
+          } finally {
+            inFlightFlushes.release();
+          }
+          return null;
+        }
+      });
+    } catch (RuntimeException e) {
+      // the strategy refused the flush, so it won't release its permit.
+      inFlightFlushes.release();
+      throw e;
+    }
+  }
+
+  /** Must be called while holding the lock. */
+  private void scheduleLinger(final long batchNumber) {
+    lingerTask = lingerExecutor.schedule(new Runnable() {
+      @Override public void run() {
+        Batch<T> batch = null;
+        synchronized (BatchingSink.this) {
+          if (currentBatchNumber == batchNumber && !closed) {
+            batch = takeCurrentBatch();
+          }
+        }
+        if (batch != null) {
+          startFlush(batch);
+        }
+      }
+    }, lingerNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void rethrowWriteFailure() {
+    Throwable t = writeFailure.getAndSet(null);
+    if (t != null) {
+      throw new RuntimeException("Could not write batch", t);
+    }
+  }
+
+  /**
+   * Builds {@link BatchingSink}s.  By default, batches hold up to 100 items
+   * regardless of their weight, don't linger, and are written in the
+   * producer's thread one at a time.
+   *
+   * @param <T> the type of items being written.
+   */
+  public static final class Builder<T> {
+    private final BatchWriter<T> batchWriter;
+    private int maxBatchSize = 100;
+    private Weigher<? super T> weigher;
+    private long maxBatchWeight = Long.MAX_VALUE;
+    private long lingerNanos;
+    private ScheduledExecutorService lingerExecutor;
+    private ExecutionStrategy executionStrategy =
+        ExecutionStrategies.sameThreadStrategy();
+    private int maxInFlightFlushes = 1;
+
+    private Builder(BatchWriter<T> batchWriter) {
+      this.batchWriter = checkNotNull(batchWriter);
+    }
+
+    /** Flushes each batch once it holds the given number of items. */
+    public Builder<T> maxBatchSize(int maxBatchSize) {
+      checkArgument(maxBatchSize > 0,
+          "Max batch size must be positive but was %s", maxBatchSize);
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /**
+     * Flushes each batch once its items weigh at least the given weight in
+     * total, according to the given {@code weigher}.
+     */
+    public Builder<T> maxBatchWeight(
+        Weigher<? super T> weigher, long maxBatchWeight) {
+      checkArgument(maxBatchWeight > 0,
+          "Max batch weight must be positive but was %s", maxBatchWeight);
+      this.weigher = checkNotNull(weigher);
+      this.maxBatchWeight = maxBatchWeight;
+      return this;
+    }
+
+    /**
+     * Flushes each batch once the given time has passed since its first
+     * item was offered, even if it isn't full.  The flush is triggered from
+     * a task scheduled on the given {@code lingerExecutor}.
+     */
+    public Builder<T> linger(long lingerTime, TimeUnit timeUnit,
+        ScheduledExecutorService lingerExecutor) {
+      checkArgument(lingerTime > 0,
+          "Linger time must be positive but was %s", lingerTime);
+      this.lingerNanos = timeUnit.toNanos(lingerTime);
+      this.lingerExecutor = checkNotNull(lingerExecutor);
+      return this;
+    }
+
+    /**
+     * Writes batches via the given {@code executionStrategy}, with up to
+     * {@code maxInFlightFlushes} of them being written at once.
+     */
+    public Builder<T> executionStrategy(
+        ExecutionStrategy executionStrategy, int maxInFlightFlushes) {
+      checkArgument(maxInFlightFlushes > 0,
+          "Max in-flight flushes must be positive but was %s",
+          maxInFlightFlushes);
+      this.executionStrategy = checkNotNull(executionStrategy);
+      this.maxInFlightFlushes = maxInFlightFlushes;
+      return this;
+    }
+
+    public BatchingSink<T> build() {
+      return new BatchingSink<T>(this);
+    }
+  }
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Ticker;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link Iterable} over the same items as a given
+ * {@link ListLoadingIterable}, which keeps the batches it loads in a bounded
+ * in-memory cache keyed by the id each batch begins with.  Scans after the
+ * first are served from the cache for as long as their batches stay in it,
+ * and only load the batches that were evicted.
+ * <p>
+ * The cache holds up to a maximum number of batches, and optionally up to a
+ * maximum total weight according to a {@link Weigher}.  Once either bound is
+ * exceeded, the least recently used batches are evicted.  Batches may also
+ * expire a fixed time after they were loaded, so that later scans pick up
+ * changes to the underlying data.
+ * <p>
+ * A batch is only cached if loading it neither used nor left behind state of
+ * the scan it was loaded for, such as the key that a {@link MapLoadingIterable}
+ * carries over from one load to the next; batches that do are loaded again on
+ * every scan.  Ids must implement {@link Object#equals} and
+ * {@link Object#hashCode}, and loaded batches are handed out again as they
+ * were loaded, so they must not be changed afterwards.
+ * <p>
+ * Instances are thread safe, and are configured through a {@link Builder}:
+ * <pre>
+ * CachingListLoadingIterable&lt;Long, Row&gt; rows =
+ *     CachingListLoadingIterable.newBuilder(rowLoadingIterable)
+ *         .maxWeight(rowWeigher, 64 &lt;&lt; 20)
+ *         .expireAfterWrite(10, TimeUnit.MINUTES)
+ *         .build();
+ * </pre>
+ *
+ * @param <I> the type of id used in fetching.
+ * @param <T> the type of objects being loaded.
+ */
+public final class CachingListLoadingIterable<I, T> implements Iterable<T> {
+
+  private static final Ticker SYSTEM_TICKER = new Ticker() {
+    @Override public long read() {
+      return System.nanoTime();
+    }
+  };
+
+  private final ListLoadingIterable<I, T> loadingIterable;
+  private final int maxBatches;
+  private final Weigher<? super T> weigher;
+  private final long maxWeight;
+  private final long expireAfterWriteNanos;
+  private final Ticker ticker;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  // All fields below are guarded by this.
+  /** The cached batches by their begin ids, least recently used first. */
+  private final LinkedHashMap<I, CachedBatch<I, T>> cachedBatches =
+      new LinkedHashMap<I, CachedBatch<I, T>>(16, 0.75f, true);
+  private long cachedWeight;
+
+  private CachingListLoadingIterable(Builder<I, T> builder) {
+    this.loadingIterable = builder.loadingIterable;
+    this.maxBatches = builder.maxBatches;
+    this.weigher = builder.weigher;
+    this.maxWeight = builder.maxWeight;
+    this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+    this.ticker = builder.ticker;
+  }
+
+  /**
+   * Returns a builder for an iterable that caches the batches of the given
+   * {@code loadingIterable}.
+   */
+  public static <I, T> Builder<I, T> newBuilder(
+      ListLoadingIterable<I, T> loadingIterable) {
+    return new Builder<I, T>(loadingIterable);
+  }
+
+  @Override public Iterator<T> iterator() {
+    return Batches.concat(batches().iterator());
+  }
+
+  /**
+   * Returns a view of this iterable that hands out whole batches rather than
+   * one item at a time.  Each call to get the iterator of the view starts a
+   * new scan.
+   */
+  public BatchIterable<T> batches() {
+    return new BatchIterable<T>() {
+      @Override public BatchIterator<T> iterator() {
+        return new LoadingBatchIterator<I, T>(
+            new CachingBatchSource(loadingIterable.newBatchSource()),
+            checkNotNull(loadingIterable.getInitialValue(),
+                "Can't have a null initial value"),
+            loadingIterable.getLoadListener());
+      }
+    };
+  }
+
+  /** Returns how many batches were served from the cache. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns how many batches were loaded from the underlying iterable. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /** Returns how many batches the cache holds, including expired ones. */
+  public synchronized int getCachedBatchCount() {
+    return cachedBatches.size();
+  }
+
+  /** Evicts every batch from the cache. */
+  public synchronized void invalidateAll() {
+    cachedBatches.clear();
+    cachedWeight = 0;
+  }
+
+  /**
+   * Returns the batch that begins with the given {@code beginId} if it is
+   * cached and hasn't expired, or else {@code null}.
+   */
+  private synchronized LoadedBatch<I, T> getIfPresent(I beginId) {
+    CachedBatch<I, T> cachedBatch = cachedBatches.get(beginId);
+    if (cachedBatch == null) {
+      return null;
+    }
+    if (expireAfterWriteNanos > 0
+        && ticker.read() - cachedBatch.writeNanos >= expireAfterWriteNanos) {
+      cachedBatches.remove(beginId);
+      cachedWeight -= cachedBatch.weight;
+      return null;
+    }
+    return cachedBatch.loadedBatch;
+  }
+
+  /**
+   * Caches the given {@code loadedBatch} under the given {@code beginId}, and
+   * evicts the least recently used batches until the cache is within its
+   * bounds again.  A batch that alone weighs more than the maximum weight is
+   * not cached.
+   */
+  private void put(I beginId, LoadedBatch<I, T> loadedBatch) {
+    long weight = 0;
+    if (weigher != null) {
+      for (T item : loadedBatch.getBatch()) {
+        weight += weigher.weigh(item);
+      }
+      if (weight > maxWeight) {
+        return;
+      }
+    }
+    CachedBatch<I, T> cachedBatch =
+        new CachedBatch<I, T>(loadedBatch, weight, ticker.read());
+
+    synchronized (this) {
+      CachedBatch<I, T> replaced = cachedBatches.put(beginId, cachedBatch);
+      if (replaced != null) {
+        cachedWeight -= replaced.weight;
+      }
+      cachedWeight += weight;
+      Iterator<CachedBatch<I, T>> leastRecentlyUsed =
+          cachedBatches.values().iterator();
+      while (cachedBatches.size() > maxBatches || cachedWeight > maxWeight) {
+        cachedWeight -= leastRecentlyUsed.next().weight;
+        leastRecentlyUsed.remove();
+      }
+    }
+  }
+
+  private static final class CachedBatch<I, T> {
+    final LoadedBatch<I, T> loadedBatch;
+    final long weight;
+    final long writeNanos;
+
+    CachedBatch(LoadedBatch<I, T> loadedBatch, long weight, long writeNanos) {
+      this.loadedBatch = loadedBatch;
+      this.weight = weight;
+      this.writeNanos = writeNanos;
+    }
+  }
+
+  /**
+   * Batch source that serves batches from the cache when it can, and that
+   * otherwise loads them from the source of the underlying iterable and
+   * caches them.
+   */
+  private class CachingBatchSource implements BatchSource<I, T> {
+
+    private final BatchSource<I, T> delegate;
+
+    CachingBatchSource(BatchSource<I, T> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public LoadedBatch<I, T> loadFrom(I beginId) {
+      // a load that depends on the scan so far can't be swapped for another.
+      boolean dependsOnEarlierLoads = delegate.dependsOnEarlierLoads();
+      if (!dependsOnEarlierLoads) {
+        LoadedBatch<I, T> cachedBatch = getIfPresent(beginId);
+        if (cachedBatch != null) {
+          hitCount.incrementAndGet();
+          return cachedBatch;
+        }
+      }
+      missCount.incrementAndGet();
+      LoadedBatch<I, T> loadedBatch = delegate.loadFrom(beginId);
+      if (!dependsOnEarlierLoads && !delegate.dependsOnEarlierLoads()) {
+        put(beginId, loadedBatch);
+      }
+      return loadedBatch;
+    }
+
+    @Override public boolean dependsOnEarlierLoads() {
+      return delegate.dependsOnEarlierLoads();
+    }
+  }
+
+  /**
+   * Builds {@link CachingListLoadingIterable}s.  By default, the cache holds
+   * up to 100 batches regardless of their weight, and they never expire.
+   *
+   * @param <I> the type of id used in fetching.
+   * @param <T> the type of objects being loaded.
+   */
+  public static final class Builder<I, T> {
+    private final ListLoadingIterable<I, T> loadingIterable;
+    private int maxBatches = 100;
+    private Weigher<? super T> weigher;
+    private long maxWeight = Long.MAX_VALUE;
+    private long expireAfterWriteNanos;
+    private Ticker ticker = SYSTEM_TICKER;
+
+    private Builder(ListLoadingIterable<I, T> loadingIterable) {
+      this.loadingIterable = checkNotNull(loadingIterable);
+    }
+
+    /** Caches up to the given number of batches. */
+    public Builder<I, T> maxBatches(int maxBatches) {
+      checkArgument(maxBatches > 0,
+          "Max batches must be positive but was %s", maxBatches);
+      this.maxBatches = maxBatches;
+      return this;
+    }
+
+    /**
+     * Caches batches whose items weigh up to the given weight in total,
+     * according to the given {@code weigher}.
+     */
+    public Builder<I, T> maxWeight(Weigher<? super T> weigher, long maxWeight) {
+      checkArgument(maxWeight > 0,
+          "Max weight must be positive but was %s", maxWeight);
+      this.weigher = checkNotNull(weigher);
+      this.maxWeight = maxWeight;
+      return this;
+    }
+
+    /**
+     * Loads each batch again once the given time has passed since it was
+     * cached.
+     */
+    public Builder<I, T> expireAfterWrite(long duration, TimeUnit timeUnit) {
+      checkArgument(duration > 0,
+          "Expiry time must be positive but was %s", duration);
+      this.expireAfterWriteNanos = timeUnit.toNanos(duration);
+      return this;
+    }
+
+    /** Tells the time for expiry by the given {@code ticker}. */
+    public Builder<I, T> ticker(Ticker ticker) {
+      this.ticker = checkNotNull(ticker);
+      return this;
+    }
+
+    public CachingListLoadingIterable<I, T> build() {
+      return new CachingListLoadingIterable<I, T>(this);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+/**
+ * Stores the id from which a scan over a {@link ListLoadingIterable} resumes,
+ * so that a scan that dies part way through can be picked up where it left
+ * off rather than from the beginning.
+ *
+ * @param <I> the type of id used in fetching.
+ * @see CheckpointingListLoadingIterable
+ */
+public interface CheckpointStore<I> {
+
+  /**
+   * Stores the given id, replacing any previous one.  All items before the
+   * batch that begins with {@code idForNextBatch} have been handed out.
+   */
+  void save(I idForNextBatch);
+
+  /** Returns the stored id, or {@code null} if none is stored. */
+  I load();
+
+  /** Removes the stored id, if any. */
+  void clear();
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link Iterable} over the same items as a given
+ * {@link ListLoadingIterable}, whose iterators periodically record how far
+ * they got in a {@link CheckpointStore}, and which resume from the recorded
+ * point rather than from the initial value.
+ * <p>
+ * A checkpoint is taken when the consumer moves on to a new batch, once
+ * either the given number of batches or the given amount of time has passed
+ * since the previous checkpoint.  It holds the id of the batch that is about
+ * to be handed out, so after a restart the batch that was in progress is
+ * handed out again, and no more than one checkpoint interval of work is
+ * redone.  Once an iterator reaches the end of the data it clears the store,
+ * so that the next scan starts from the beginning.
+ * <p>
+ * A batch source that holds on to items of earlier loads, as a
+ * {@link MapLoadingIterable} does with the key it carries over, begins its
+ * next load past items that were not handed out yet.  Its checkpoint then
+ * holds the id that follows the last item handed out instead, which
+ * {@link ListLoadingIterable#getNextId} gives, so that those items are
+ * loaded again on resume rather than lost.
+ * <p>
+ * Iterators of the same iterable share the store, so only one of them should
+ * be used at a time.
+ *
+ * @param <I> the type of id used in fetching.
+ * @param <T> the type of objects being loaded.
+ */
+public final class CheckpointingListLoadingIterable<I, T>
+    implements Iterable<T> {
+
+  private final ListLoadingIterable<I, T> loadingIterable;
+  private final CheckpointStore<I> checkpointStore;
+  private final int batchInterval;
+  private final long nanoInterval;
+
+  private CheckpointingListLoadingIterable(
+      ListLoadingIterable<I, T> loadingIterable,
+      CheckpointStore<I> checkpointStore,
+      int batchInterval,
+      long nanoInterval) {
+    checkArgument(batchInterval > 0,
+        "Batch interval must be positive but was %s", batchInterval);
+    checkArgument(nanoInterval > 0,
+        "Time interval must be positive but was %s", nanoInterval);
+    this.loadingIterable = checkNotNull(loadingIterable);
+    this.checkpointStore = checkNotNull(checkpointStore);
+    this.batchInterval = batchInterval;
+    this.nanoInterval = nanoInterval;
+  }
+
+  /**
+   * Returns an iterable over the given {@code loadingIterable} that saves a
+   * checkpoint to the given {@code checkpointStore} every
+   * {@code batchInterval} batches or every {@code timeInterval}, whichever
+   * comes first.
+   */
+  public static <I, T> CheckpointingListLoadingIterable<I, T> of(
+      ListLoadingIterable<I, T> loadingIterable,
+      CheckpointStore<I> checkpointStore,
+      int batchInterval,
+      long timeInterval,
+      TimeUnit timeIntervalUnit) {
+    return new CheckpointingListLoadingIterable<I, T>(loadingIterable,
+        checkpointStore, batchInterval, timeIntervalUnit.toNanos(timeInterval));
+  }
+
+  /**
+   * Returns an iterator that begins with the id stored in the checkpoint
+   * store, if any, or else with the initial value of the underlying iterable.
+   */
+  @Override public Iterator<T> iterator() {
+    I checkpoint = checkpointStore.load();
+    return new CheckpointingIterator(checkpoint != null
+        ? checkpoint
+        : checkNotNull(loadingIterable.getInitialValue(),
+            "Can't have a null initial value"));
+  }
+
+  private class CheckpointingIterator extends AbstractIterator<T> {
+
+    private final BatchSource<I, T> batchSource =
+        loadingIterable.newBatchSource();
+    private I idForNextBatch;
+    private Iterator<T> currentBatch = Iterators.emptyIterator();
+    /** The last item of the batches handed out so far, if any. */
+    private T lastHandedOut;
+    private int batchesSinceCheckpoint;
+    private long lastCheckpointNanos = System.nanoTime();
+
+    private CheckpointingIterator(I beginId) {
+      this.idForNextBatch = beginId;
+    }
+
+    @Override protected T computeNext() {
+      while (!currentBatch.hasNext()) {
+        if (idForNextBatch == null) {
+          checkpointStore.clear();
+          return endOfData();
+        }
+        maybeCheckpoint();
+        LoadedBatch<I, T> loadedBatch = batchSource.loadFrom(idForNextBatch);
+        idForNextBatch = loadedBatch.isEnd() ? null : loadedBatch.getNextId();
+        currentBatch = loadedBatch.getBatch().iterator();
+        if (!loadedBatch.getBatch().isEmpty()) {
+          lastHandedOut = Iterables.getLast(loadedBatch.getBatch());
+        }
+        batchesSinceCheckpoint++;
+      }
+      return currentBatch.next();
+    }
+
+    /**
+     * Saves the id from which to resume if the checkpoint interval has
+     * passed.  Every batch before the one about to be loaded has been handed
+     * out by now.
+     */
+    private void maybeCheckpoint() {
+      long nowNanos = System.nanoTime();
+      if (batchesSinceCheckpoint >= batchInterval
+          || nowNanos - lastCheckpointNanos >= nanoInterval) {
+        I checkpoint = idForNextBatch;
+        if (batchSource.dependsOnEarlierLoads()) {
+          // the next load begins past items that weren't handed out yet.
+          if (lastHandedOut == null) {
+            return;
+          }
+          checkpoint = loadingIterable.getNextId(lastHandedOut);
+        }
+        checkpointStore.save(checkpoint);
+        batchesSinceCheckpoint = 0;
+        lastCheckpointNanos = nowNanos;
+      }
+    }
+  }
+}
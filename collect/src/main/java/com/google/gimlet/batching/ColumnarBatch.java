@@ -0,0 +1,335 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A columnar alternative to a list of {@link KeyedBatch keyed batches}: rather
+ * than one object per value, it holds one array per field of the values, and
+ * the rows of each key are a contiguous range of those arrays.
+ * <p>
+ * Scans that only look at a few fields of each value then read those fields
+ * from dense arrays, primitive ones for {@code int}, {@code long} and
+ * {@code double} fields, instead of following a pointer per value:
+ * <pre>
+ * DoubleBatch amounts = batch.getDoubleColumn(AMOUNT);
+ * for (int key = 0; key &lt; batch.getKeyCount(); key++) {
+ *   double total = 0;
+ *   int end = batch.getKeyEnd(key);
+ *   for (int row = batch.getKeyStart(key); row &lt; end; row++) {
+ *     total += amounts.get(row);
+ *   }
+ *   ...
+ * }
+ * </pre>
+ * Code written against keyed batches can still read the data through
+ * {@link #asKeyedBatches()}, which exposes each row as a {@link Row} view.
+ * <p>
+ * Instances are built through a {@link Builder}, for instance by a
+ * {@link ListLoadingIterable} whose loads each return a columnar batch, and
+ * never change afterwards.
+ *
+ * @param <K> the type of keys.
+ */
+public final class ColumnarBatch<K> {
+
+  /** The types of the columns of a columnar batch. */
+  public enum ColumnType { INT, LONG, DOUBLE, OBJECT }
+
+  private final List<ColumnType> columnTypes;
+  /** The values of each column: an array of the column's type per column. */
+  private final Object[] columns;
+  private final List<K> keys;
+  /** The first row of each key, followed by the number of rows. */
+  private final int[] keyOffsets;
+  private final int rowCount;
+
+  private ColumnarBatch(List<ColumnType> columnTypes, Object[] columns,
+      List<K> keys, int[] keyOffsets, int rowCount) {
+    this.columnTypes = columnTypes;
+    this.columns = columns;
+    this.keys = keys;
+    this.keyOffsets = keyOffsets;
+    this.rowCount = rowCount;
+  }
+
+  /** Returns a builder for a batch with columns of the given types. */
+  public static <K> Builder<K> newBuilder(ColumnType... columnTypes) {
+    return new Builder<K>(ImmutableList.copyOf(columnTypes));
+  }
+
+  public List<ColumnType> getColumnTypes() {
+    return columnTypes;
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  public int getKeyCount() {
+    return keys.size();
+  }
+
+  public K getKey(int keyIndex) {
+    return keys.get(keyIndex);
+  }
+
+  /** Returns the first row of the key at the given index. */
+  public int getKeyStart(int keyIndex) {
+    checkElementIndex(keyIndex, keys.size());
+    return keyOffsets[keyIndex];
+  }
+
+  /** Returns the row after the last row of the key at the given index. */
+  public int getKeyEnd(int keyIndex) {
+    checkElementIndex(keyIndex, keys.size());
+    return keyOffsets[keyIndex + 1];
+  }
+
+  /** Returns the values of the given {@code int} column, one per row. */
+  public IntBatch getIntColumn(int column) {
+    return IntBatch.view((int[]) column(column, ColumnType.INT), rowCount);
+  }
+
+  /** Returns the values of the given {@code long} column, one per row. */
+  public LongBatch getLongColumn(int column) {
+    return LongBatch.view((long[]) column(column, ColumnType.LONG), rowCount);
+  }
+
+  /** Returns the values of the given {@code double} column, one per row. */
+  public DoubleBatch getDoubleColumn(int column) {
+    return DoubleBatch.view(
+        (double[]) column(column, ColumnType.DOUBLE), rowCount);
+  }
+
+  /** Returns the values of the given object column, one per row. */
+  public ArrayBatch<Object> getObjectColumn(int column) {
+    return new ArrayBatch<Object>(
+        (Object[]) column(column, ColumnType.OBJECT), 0, rowCount);
+  }
+
+  /** Returns the row at the given index. */
+  public Row getRow(int row) {
+    checkElementIndex(row, rowCount);
+    return new Row(this, row);
+  }
+
+  /**
+   * Returns a keyed batch per key, whose values are views of the rows of that
+   * key.
+   */
+  public List<KeyedBatch<K, Row>> asKeyedBatches() {
+    List<KeyedBatch<K, Row>> keyedBatches =
+        Lists.newArrayListWithCapacity(keys.size());
+    for (int keyIndex = 0; keyIndex < keys.size(); keyIndex++) {
+      Row[] rows = new Row[keyOffsets[keyIndex + 1] - keyOffsets[keyIndex]];
+      for (int i = 0; i < rows.length; i++) {
+        rows[i] = new Row(this, keyOffsets[keyIndex] + i);
+      }
+      keyedBatches.add(
+          KeyedBatch.of(keys.get(keyIndex), Batches.ofArray(rows)));
+    }
+    return keyedBatches;
+  }
+
+  private Object column(int column, ColumnType columnType) {
+    checkElementIndex(column, columns.length);
+    checkArgument(columnTypes.get(column) == columnType,
+        "Column %s holds %s values, not %s",
+        column, columnTypes.get(column), columnType);
+    return columns[column];
+  }
+
+  /** A view of one row of a columnar batch. */
+  public static final class Row {
+    private final ColumnarBatch<?> batch;
+    private final int row;
+
+    private Row(ColumnarBatch<?> batch, int row) {
+      this.batch = batch;
+      this.row = row;
+    }
+
+    public int getInt(int column) {
+      return ((int[]) batch.column(column, ColumnType.INT))[row];
+    }
+
+    public long getLong(int column) {
+      return ((long[]) batch.column(column, ColumnType.LONG))[row];
+    }
+
+    public double getDouble(int column) {
+      return ((double[]) batch.column(column, ColumnType.DOUBLE))[row];
+    }
+
+    public Object getObject(int column) {
+      return ((Object[]) batch.column(column, ColumnType.OBJECT))[row];
+    }
+  }
+
+  /**
+   * Builds {@link ColumnarBatch}es one row at a time.  Each row starts with
+   * a call to {@link #startRow}, followed by exactly one {@code set} call per
+   * column.  Rows are grouped under the key given to the most recent call to
+   * {@link #startKey}, and keys must be started in the order they are to be
+   * scanned in.
+   *
+   * @param <K> the type of keys.
+   */
+  public static final class Builder<K> {
+    private final List<ColumnType> columnTypes;
+    private final Object[] columns;
+    private final List<K> keys = Lists.newArrayList();
+    private int[] keyOffsets = new int[8];
+    /** The number of rows, including the one being built. */
+    private int rowCount;
+    /** Which columns have a value in the row being built. */
+    private final boolean[] setColumns;
+    /** The number of values set in the row being built. */
+    private int setCount;
+    private int capacity = 16;
+
+    private Builder(List<ColumnType> columnTypes) {
+      this.columnTypes = columnTypes;
+      this.columns = new Object[columnTypes.size()];
+      this.setColumns = new boolean[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+        columns[i] = newColumn(columnTypes.get(i), capacity);
+      }
+    }
+
+    /** Starts a new key, under which the rows that follow are grouped. */
+    public Builder<K> startKey(K key) {
+      checkRowComplete();
+      if (keys.size() + 1 == keyOffsets.length) {
+        keyOffsets = Arrays.copyOf(keyOffsets, keyOffsets.length * 2);
+      }
+      keyOffsets[keys.size()] = rowCount;
+      keys.add(key);
+      return this;
+    }
+
+    /** Starts a new row of the current key. */
+    public Builder<K> startRow() {
+      checkState(!keys.isEmpty(), "A key must be started before its rows");
+      checkRowComplete();
+      if (rowCount == capacity) {
+        capacity *= 2;
+        for (int i = 0; i < columns.length; i++) {
+          columns[i] = copyColumn(columns[i], capacity);
+        }
+      }
+      rowCount++;
+      Arrays.fill(setColumns, false);
+      setCount = 0;
+      return this;
+    }
+
+    public Builder<K> setInt(int column, int value) {
+      ((int[]) nextColumn(column, ColumnType.INT))[rowCount - 1] = value;
+      return this;
+    }
+
+    public Builder<K> setLong(int column, long value) {
+      ((long[]) nextColumn(column, ColumnType.LONG))[rowCount - 1] = value;
+      return this;
+    }
+
+    public Builder<K> setDouble(int column, double value) {
+      ((double[]) nextColumn(column, ColumnType.DOUBLE))[rowCount - 1] = value;
+      return this;
+    }
+
+    public Builder<K> setObject(int column, Object value) {
+      ((Object[]) nextColumn(column, ColumnType.OBJECT))[rowCount - 1] = value;
+      return this;
+    }
+
+    public ColumnarBatch<K> build() {
+      checkRowComplete();
+      int[] offsets = Arrays.copyOf(keyOffsets, keys.size() + 1);
+      offsets[keys.size()] = rowCount;
+      Object[] trimmedColumns = new Object[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+        trimmedColumns[i] = copyColumn(columns[i], rowCount);
+      }
+      return new ColumnarBatch<K>(columnTypes, trimmedColumns,
+          ImmutableList.copyOf(keys), offsets, rowCount);
+    }
+
+    /** Checks that the given column may be set in the current row. */
+    private Object nextColumn(int column, ColumnType columnType) {
+      checkState(rowCount > 0, "A row must be started before its values");
+      checkElementIndex(column, columns.length);
+      checkArgument(columnTypes.get(column) == columnType,
+          "Column %s holds %s values, not %s",
+          column, columnTypes.get(column), columnType);
+      checkState(!setColumns[column],
+          "Column %s of row %s is already set", column, rowCount - 1);
+      setColumns[column] = true;
+      setCount++;
+      return columns[column];
+    }
+
+    private void checkRowComplete() {
+      if (rowCount > 0 && setCount < columns.length) {
+        int column = 0;
+        while (setColumns[column]) {
+          column++;
+        }
+        throw new IllegalStateException(String.format(
+            "Column %s of row %s is not set", column, rowCount - 1));
+      }
+    }
+
+    private static Object newColumn(ColumnType columnType, int length) {
+      switch (columnType) {
+        case INT:
+          return new int[length];
+        case LONG:
+          return new long[length];
+        case DOUBLE:
+          return new double[length];
+        default:
+          return new Object[length];
+      }
+    }
+
+    private static Object copyColumn(Object column, int length) {
+      if (column instanceof int[]) {
+        return Arrays.copyOf((int[]) column, length);
+      }
+      if (column instanceof long[]) {
+        return Arrays.copyOf((long[]) column, length);
+      }
+      if (column instanceof double[]) {
+        return Arrays.copyOf((double[]) column, length);
+      }
+      return Arrays.copyOf((Object[]) column, length);
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.gimlet.parallel.CallableTransform;
+import com.google.gimlet.parallel.ExecutionStrategy;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A counterpart of {@link ListLoadingIterable} for loads that fall into two
+ * stages: fetching the raw form of a batch, such as bytes read from a
+ * backend, and decoding it into items, which is often bound by the CPU.
+ * <p>
+ * Fetches happen one after the other, since the id of each raw batch is
+ * taken from the raw batch before it, but they are chained on an
+ * {@link ExecutionStrategy} ahead of the consumer.  As soon as a raw batch
+ * arrives, its decoding is started on the same strategy, so that several
+ * batches may be decoded at once while the next ones are being fetched.
+ * Batches are still handed out in the order they were fetched.  Up to a
+ * fixed number of batches are fetched, or being decoded, ahead of the batch
+ * the consumer is working on.
+ * <p>
+ * Each call to get an iterator starts a new scan.
+ *
+ * @param <I> represents the type of id that are used in fetching.
+ * @param <R> represents the raw form of each batch.
+ * @param <T> represents the type of objects that being loaded.
+ */
+public abstract class DecodingLoadingIterable<I, R, T> implements Iterable<T> {
+
+  private final I initialValue;
+  private final CallableTransform fetchingCallableTransform;
+  private final ExecutionStrategy executionStrategy;
+  private final int maxBatchesAhead;
+
+  /**
+   * Constructor.
+   *
+   * @param initialValue the initial value to use when fetching the first
+   * batch.
+   * @param fetchingCallableTransform a transform to apply to the callable
+   * which calls {@link #fetchRaw} so that one may decorate it.
+   * @param executionStrategy runs the chain of fetches and the decoding of
+   * each batch.
+   * @param maxBatchesAhead how many batches may be fetched, or be decoded,
+   * ahead of the batch that the consumer is working on.
+   */
+  public DecodingLoadingIterable(
+      I initialValue,
+      CallableTransform fetchingCallableTransform,
+      ExecutionStrategy executionStrategy,
+      int maxBatchesAhead) {
+    checkArgument(maxBatchesAhead > 0,
+        "Max batches ahead must be positive but was %s", maxBatchesAhead);
+    this.initialValue = initialValue;
+    this.fetchingCallableTransform = checkNotNull(fetchingCallableTransform);
+    this.executionStrategy = checkNotNull(executionStrategy);
+    this.maxBatchesAhead = maxBatchesAhead;
+  }
+
+  /**
+   * Fetches the raw batch beginning with {@code beginIdForBatch}, or returns
+   * {@code null} if there is none, which marks the end of the data.
+   */
+  protected abstract R fetchRaw(I beginIdForBatch);
+
+  /**
+   * Returns the id of the raw batch that follows the given {@code raw} batch,
+   * or {@code null} if it is the last one.
+   */
+  protected abstract I getNextId(R raw);
+
+  /**
+   * Decodes the given {@code raw} batch into its items.  This may be called
+   * for several batches at once, from different threads.
+   */
+  protected abstract List<T> decode(R raw);
+
+  @Override public final Iterator<T> iterator() {
+    return Batches.concat(batches().iterator());
+  }
+
+  /**
+   * Returns a view of this iterable that hands out whole decoded batches
+   * rather than one item at a time.  Each call to get the iterator of the
+   * view starts a new scan.
+   */
+  public final BatchIterable<T> batches() {
+    return new BatchIterable<T>() {
+      @Override public Iterator<Batch<? extends T>> iterator() {
+        final BatchPrefetcher<I, FutureTask<List<T>>> prefetcher =
+            new BatchPrefetcher<I, FutureTask<List<T>>>(
+                new DecodingBatchSource(),
+                executionStrategy,
+                maxBatchesAhead,
+                checkNotNull(initialValue, "Can't have a null initial value"));
+
+        return new AbstractIterator<Batch<? extends T>>() {
+          @Override protected Batch<? extends T> computeNext() {
+            List<FutureTask<List<T>>> decoding = prefetcher.nextBatch();
+            if (decoding == null) {
+              return endOfData();
+            }
+            return Batches.forCollection(
+                BatchingFutures.getUnchecked(decoding.get(0)));
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Batch source that fetches each raw batch and starts decoding it, and
+   * whose batches each hold the decoding of a single raw batch.
+   */
+  private class DecodingBatchSource
+      implements BatchSource<I, FutureTask<List<T>>> {
+
+    @Override public LoadedBatch<I, FutureTask<List<T>>> loadFrom(
+        final I beginId) {
+      final R raw;
+      try {
+        raw = fetchingCallableTransform.transform(new Callable<R>() {
+          @Override public R call() {
+            return fetchRaw(beginId);
+          }
+        }).call();
+      } catch (Exception e) {
+        throw new RuntimeException(
+            "Could not fetch batch with id " + beginId, e);
+      }
+      if (raw == null) {
+        return LoadedBatch.end();
+      }
+
+      FutureTask<List<T>> decoding = BatchingFutures.start(executionStrategy,
+          new Callable<List<T>>() {
+            @Override public List<T> call() {
+              return decode(raw);
+            }
+          });
+      List<FutureTask<List<T>>> batch = ImmutableList.of(decoding);
+      return LoadedBatch.of(batch, getNextId(raw));
+    }
+
+    @Override public boolean dependsOnEarlierLoads() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.gimlet.parallel.CallableTransform;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+
+/**
+ * The {@code double} counterpart of {@link ListLoadingIterable}: presents a
+ * flat view of multiple loads of {@code double} values, without boxing them.
+ * <p>
+ * Rather than returning a new list, each load fills a buffer that the
+ * iterator reuses from one batch to the next, so a scan allocates a single
+ * array however many values it reads.  As with {@link ListLoadingIterable},
+ * a load that returns no values marks the end of the data.
+ * <p>
+ * Each call to get an iterator starts a new scan with its own buffer.
+ *
+ * @param <I> represents the type of id that are used in fetching.
+ */
+public abstract class DoubleLoadingIterable<I> {
+
+  private final I initialValue;
+  private final int batchCapacity;
+  private final CallableTransform loadingCallableTransform;
+
+  /**
+   * Constructor.
+   *
+   * @param initialValue the initial value to use when getting the first batch.
+   * @param batchCapacity the length of the buffer that each load fills
+   * @param loadingCallableTransform a transform to apply to the callable which
+   * calls {@link #loadNextBatch} so that one may decorate it with specific
+   * logic such as loading in a separate thread.
+   */
+  public DoubleLoadingIterable(
+      I initialValue,
+      int batchCapacity,
+      CallableTransform loadingCallableTransform) {
+    checkArgument(batchCapacity > 0,
+        "Batch capacity must be positive but was %s", batchCapacity);
+    this.initialValue = initialValue;
+    this.batchCapacity = batchCapacity;
+    this.loadingCallableTransform = loadingCallableTransform;
+  }
+
+  /**
+   * Returns the nextId that will used as the beginning of the next batch given
+   * the last value of the current batch.
+   */
+  protected abstract I getNextId(double previousEnd);
+
+  /**
+   * Loads a batch of values starting with beginIdForBatch into the beginning
+   * of the given {@code buffer}, and returns how many values it loaded.
+   */
+  protected abstract int loadNextBatch(I beginIdForBatch, double[] buffer);
+
+  /** Returns an iterator over the values of a new scan. */
+  public final DoubleBatch.DoubleIterator doubleIterator() {
+    final Iterator<DoubleBatch> batchIterator = batchIterator();
+
+    return new DoubleBatch.DoubleIterator() {
+      private DoubleBatch currentBatch = DoubleBatch.of();
+      private int index;
+
+      @Override public boolean hasNext() {
+        while (index == currentBatch.size()) {
+          if (!batchIterator.hasNext()) {
+            return false;
+          }
+          currentBatch = batchIterator.next();
+          index = 0;
+        }
+        return true;
+      }
+
+      @Override public double nextDouble() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return currentBatch.get(index++);
+      }
+    };
+  }
+
+  /**
+   * Returns an iterator over the batches of a new scan.  Each batch is a view
+   * over the buffer of the scan, and is only valid until the next call to
+   * {@link Iterator#hasNext()} or {@link Iterator#next()}.
+   */
+  public final Iterator<DoubleBatch> batchIterator() {
+    return new DoubleLoadingIterator();
+  }
+
+  private class DoubleLoadingIterator extends AbstractIterator<DoubleBatch> {
+
+    private final double[] buffer = new double[batchCapacity];
+    private I idForNextBatch = checkNotNull(
+        initialValue, "Can't have a null initial value");
+
+    @Override protected DoubleBatch computeNext() {
+      if (idForNextBatch == null) {
+        return endOfData();
+      }
+      final I beginId = idForNextBatch;
+      int loadedCount;
+      try {
+        loadedCount = loadingCallableTransform.transform(
+            new Callable<Integer>() {
+              @Override public Integer call() {
+                return loadNextBatch(beginId, buffer);
+              }
+            }).call();
+      } catch (Exception e) {
+        throw new RuntimeException(
+            "Could not load batch with id " + beginId, e);
+      }
+      checkState(loadedCount >= 0 && loadedCount <= batchCapacity,
+          "Loaded %s values into a buffer of %s", loadedCount, batchCapacity);
+
+      if (loadedCount == 0) {
+        idForNextBatch = null;
+        return endOfData();
+      }
+      idForNextBatch = getNextId(buffer[loadedCount - 1]);
+      return DoubleBatch.view(buffer, loadedCount);
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A {@link CheckpointStore} that keeps its id in a local file, as the text
+ * produced by a pluggable serializer.
+ * <p>
+ * Each checkpoint is written to a temporary file next to the checkpoint file,
+ * forced to disk, and then renamed over it, so that a crash while saving
+ * leaves the previous checkpoint intact.  Where renaming can't replace an
+ * existing file, the previous checkpoint is first moved to a backup file,
+ * which is loaded instead if a crash leaves no checkpoint file behind.
+ *
+ * @param <I> the type of id used in fetching.
+ */
+public final class FileCheckpointStore<I> implements CheckpointStore<I> {
+
+  private final File checkpointFile;
+  private final File temporaryFile;
+  private final File backupFile;
+  private final Function<? super I, String> serializer;
+  private final Function<String, ? extends I> deserializer;
+
+  private FileCheckpointStore(
+      File checkpointFile,
+      Function<? super I, String> serializer,
+      Function<String, ? extends I> deserializer) {
+    this.checkpointFile = checkNotNull(checkpointFile);
+    this.temporaryFile = new File(
+        checkpointFile.getAbsoluteFile().getParentFile(),
+        checkpointFile.getName() + ".tmp");
+    this.backupFile = new File(
+        checkpointFile.getAbsoluteFile().getParentFile(),
+        checkpointFile.getName() + ".bak");
+    this.serializer = checkNotNull(serializer);
+    this.deserializer = checkNotNull(deserializer);
+  }
+
+  /**
+   * Returns a store that keeps its id in the given {@code checkpointFile},
+   * turning it into text and back with the given functions.
+   */
+  public static <I> FileCheckpointStore<I> of(
+      File checkpointFile,
+      Function<? super I, String> serializer,
+      Function<String, ? extends I> deserializer) {
+    return new FileCheckpointStore<I>(
+        checkpointFile, serializer, deserializer);
+  }
+
+  @Override public void save(I idForNextBatch) {
+    try {
+      write(serializer.apply(idForNextBatch), temporaryFile);
+      // renameTo doesn't replace existing files on every platform.
+      if (!temporaryFile.renameTo(checkpointFile)) {
+        delete(backupFile);
+        rename(checkpointFile, backupFile);
+        rename(temporaryFile, checkpointFile);
+        delete(backupFile);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(
+          "Could not save checkpoint " + idForNextBatch, e);
+    }
+  }
+
+  @Override public I load() {
+    // a crash while replacing the checkpoint may leave only the backup.
+    File file = checkpointFile.exists() ? checkpointFile : backupFile;
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      return deserializer.apply(Files.toString(file, Charsets.UTF_8));
+    } catch (IOException e) {
+      throw new RuntimeException("Could not load checkpoint from " + file, e);
+    }
+  }
+
+  @Override public void clear() {
+    delete(checkpointFile);
+    delete(backupFile);
+  }
+
+  /** Writes the given {@code text} to the given {@code file} and syncs it. */
+  private static void write(String text, File file) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(text.getBytes(Charsets.UTF_8));
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void rename(File from, File to) throws IOException {
+    if (from.exists() && !from.renameTo(to)) {
+      throw new IOException("Could not rename " + from + " to " + to);
+    }
+  }
+
+  private static void delete(File file) {
+    if (file.exists() && !file.delete()) {
+      throw new RuntimeException("Could not delete " + file);
+    }
+  }
+}
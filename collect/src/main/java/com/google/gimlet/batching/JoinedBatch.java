@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.base.Objects;
+
+/**
+ * The values that two joined streams of {@link KeyedBatch keyed batches} have
+ * for the same key.  In outer joins, the batch of the side that lacks the key
+ * is empty.
+ *
+ * @param <K> the type of keys.
+ * @param <L> the type of values of the left side.
+ * @param <R> the type of values of the right side.
+ * @see SortMergeJoinIterable
+ */
+public final class JoinedBatch<K, L, R> {
+
+  private final K key;
+  private final Batch<? extends L> left;
+  private final Batch<? extends R> right;
+
+  private JoinedBatch(
+      K key, Batch<? extends L> left, Batch<? extends R> right) {
+    this.key = key;
+    this.left = left;
+    this.right = right;
+  }
+
+  public static <K, L, R> JoinedBatch<K, L, R> of(
+      K key, Batch<? extends L> left, Batch<? extends R> right) {
+    return new JoinedBatch<K, L, R>(key, left, right);
+  }
+
+  public K getKey() {
+    return key;
+  }
+
+  /** Returns the values of the left side, which may be empty. */
+  public Batch<? extends L> getLeft() {
+    return left;
+  }
+
+  /** Returns the values of the right side, which may be empty. */
+  public Batch<? extends R> getRight() {
+    return right;
+  }
+
+  @Override public int hashCode() {
+    return Objects.hashCode(key, left, right);
+  }
+
+  @Override public boolean equals(Object o) {
+    if (!(o instanceof JoinedBatch)) {
+      return false;
+    }
+
+    JoinedBatch<?, ?, ?> that = (JoinedBatch<?, ?, ?>) o;
+    return Objects.equal(key, that.key)
+        && Objects.equal(left, that.left)
+        && Objects.equal(right, that.right);
+  }
+
+  @Override public String toString() {
+    return Objects.toStringHelper(getClass().getSimpleName())
+        .add("key", key)
+        .add("left", left)
+        .add("right", right)
+        .toString();
+  }
+}
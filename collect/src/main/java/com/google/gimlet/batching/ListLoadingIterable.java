@@ -20,11 +20,14 @@ package com.google.gimlet.batching;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 import com.google.gimlet.parallel.CallableTransform;
 
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.Callable;
 
 /**
@@ -43,8 +46,20 @@ import java.util.concurrent.Callable;
 public abstract class ListLoadingIterable<I, T>
     implements Iterable<T> {
 
+  /** Listener for iterables that weren't given one. */
+  static final BatchLoadListener NO_OP_LOAD_LISTENER =
+      new BatchLoadListener() {
+        @Override public void recordLoad(
+            long loadNanos, int loadedItemCount, int loadedValueCount) {}
+
+        @Override public void recordWait(long waitNanos) {}
+
+        @Override public void recordThrottle(long throttleNanos) {}
+      };
+
   private final I initialValue;
   private final CallableTransform loadingCallableTransform;
+  private final BatchLoadListener loadListener;
 
   /**
    * Constructor.
@@ -57,8 +72,26 @@ public abstract class ListLoadingIterable<I, T>
   public ListLoadingIterable(
       I initialValue,
       CallableTransform loadingCallableTransform) {
+    this(initialValue, loadingCallableTransform, NO_OP_LOAD_LISTENER);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param initialValue the initial value to use when getting the first batch.
+   * @param loadingCallableTransform a transform to apply to the callable which
+   * calls {@link #loadNextBatch(Object)}  that so that one may decorate it with
+   * specific logic such as loading in a separate thread.
+   * @param loadListener is told how long each load took and how many items it
+   * returned, and how long consumers waited for each batch.
+   */
+  public ListLoadingIterable(
+      I initialValue,
+      CallableTransform loadingCallableTransform,
+      BatchLoadListener loadListener) {
     this.initialValue = initialValue;
     this.loadingCallableTransform = loadingCallableTransform;
+    this.loadListener = Preconditions.checkNotNull(loadListener);
   }
 
   /**
@@ -71,76 +104,210 @@ public abstract class ListLoadingIterable<I, T>
   protected abstract List<T> loadNextBatch(I beginIdForBatch);
 
   @Override public final Iterator<T> iterator() {
-    return new ListLoadingIterator();
+    return new ListLoadingIterator(null);
+  }
+
+  /**
+   * Returns an iterator that, besides iterating, can be moved to any id with
+   * {@link SeekableIterator#seek}, or forward to an id with
+   * {@link SeekableIterator#skipTo}, which uses the given
+   * {@code idComparator} to tell whether an id lies ahead.
+   */
+  public final SeekableIterator<I, T> seekableIterator(
+      Comparator<? super I> idComparator) {
+    return new ListLoadingIterator(Preconditions.checkNotNull(idComparator));
+  }
+
+  /**
+   * Returns a view of this iterable that hands out whole batches, as they are
+   * loaded, rather than one item at a time.  Each call to get the iterator of
+   * the view starts a new scan.
+   */
+  public final BatchIterable<T> batches() {
+    return new BatchIterable<T>() {
+      @Override public BatchIterator<T> iterator() {
+        return new LoadingBatchIterator<I, T>(newBatchSource(),
+            Preconditions.checkNotNull(
+                initialValue, "Can't have a null initial value"),
+            loadListener);
+      }
+    };
+  }
+
+  /** Returns the listener that is told about loads and waits. */
+  public final BatchLoadListener getLoadListener() {
+    return loadListener;
+  }
+
+  /** Returns the id with which the first batch of each iteration begins. */
+  final I getInitialValue() {
+    return initialValue;
+  }
+
+  /**
+   * Loads the batch beginning with {@code beginIdForBatch} by calling
+   * {@link #loadNextBatch(Object)} through the loading callable transform.
+   * This is the single place through which every iterator in this package
+   * loads its batches.
+   */
+  final List<T> load(final I beginIdForBatch) {
+    return load(beginIdForBatch, new Callable<List<T>>() {
+      @Override public List<T> call() {
+        return loadNextBatch(beginIdForBatch);
+      }
+    });
+  }
+
+  /**
+   * Like {@link #load(Object)}, but loads the batch by calling the given
+   * {@code loader} rather than {@link #loadNextBatch(Object)}, for sources
+   * that keep state about their scan.
+   */
+  final List<T> load(
+      I beginIdForBatch, final Callable<List<T>> loader) {
+    return loadThroughTransform(beginIdForBatch, new Callable<List<T>>() {
+      @Override
+      public List<T> call() throws Exception {
+        long loadStartNanos = System.nanoTime();
+        List<T> batch = loader.call();
+        loadListener.recordLoad(System.nanoTime() - loadStartNanos,
+            batch.size(), batch.size());
+        return batch;
+      }
+    });
+  }
+
+  /**
+   * Calls the given {@code loadingCallable}, which loads the batch beginning
+   * with {@code beginIdForBatch}, through the loading callable transform.
+   */
+  final <R> R loadThroughTransform(
+      I beginIdForBatch, Callable<R> loadingCallable) {
+    try {
+      return loadingCallableTransform.transform(loadingCallable).call();
+    } catch (Exception e) {
+      throw new RuntimeException(
+          "Could not load batch with id " + beginIdForBatch, e);
+    }
+  }
+
+  /**
+   * Returns the id of the batch that follows the given {@code batch}, or
+   * {@code null} if the given batch is empty, which marks the end of the data.
+   */
+  final I nextIdAfter(List<T> batch) {
+    return batch.isEmpty() ? null : getNextId(batch.get(batch.size() - 1));
+  }
+
+  /**
+   * Returns the source of batches for a single scan over this iterable.  Each
+   * iterator asks for its own source, and calls it one batch at a time, so
+   * a source may keep state about the scan it belongs to.
+   */
+  BatchSource<I, T> newBatchSource() {
+    return new BatchSource<I, T>() {
+      @Override public LoadedBatch<I, T> loadFrom(I beginId) {
+        List<T> batch = load(beginId);
+        return LoadedBatch.of(batch, nextIdAfter(batch));
+      }
+
+      @Override public boolean dependsOnEarlierLoads() {
+        return false;
+      }
+    };
   }
 
   /**
    * Helper class that allows us to return a new iterator starts the beginning
-   * for each call to get the iterator on the Iterable.
+   * for each call to get the iterator on the Iterable.  It may also be moved
+   * to another id between items.
    */
-  private class ListLoadingIterator extends AbstractIterator<T> {
+  private class ListLoadingIterator implements SeekableIterator<I, T> {
+
+    /** Orders ids for {@link #skipTo}, or {@code null} if not supported. */
+    private final Comparator<? super I> idComparator;
+
+    /** Loads the batches of this scan.  Seeking starts a new scan. */
+    private BatchSource<I, T> batchSource = newBatchSource();
 
     /**
      * Holds the next id that we'll use to
-     * {@link ListLoadingIterable#loadNextBatch(Object)}.
+     * {@link ListLoadingIterable#loadNextBatch(Object)}, or {@code null} once
+     * the last batch has been loaded.
      */
-    I idForNextBatch;
+    private I idForNextBatch;
 
     /**
-     * Keeps a reference to the current batch that we're returning entries from.
-     * When this iterator gets exhausted, we'll load another batch to replace
-     * it.
+     * Keeps a reference to the current batch that we're returning entries from,
+     * or {@code null} if the next batch has yet to be loaded.  When it gets
+     * exhausted, we'll load another batch to replace it.
      */
-    private Iterator<T> currentBatch;
+    private PeekingIterator<T> currentBatch;
 
-    private ListLoadingIterator() {
-      idForNextBatch = Preconditions.checkNotNull(
+    private ListLoadingIterator(Comparator<? super I> idComparator) {
+      this.idComparator = idComparator;
+      this.idForNextBatch = Preconditions.checkNotNull(
           initialValue, "Can't have a null initial value");
     }
 
-    private Iterator<T> getNextBatch() {
-      checkState(idForNextBatch != null,
-          "Can't get next batch after an empty batch");
-      Callable<List<T>> loadingCallable = new Callable<List<T>>() {
-        @Override
-        public List<T> call() throws Exception {
-          return loadNextBatch(idForNextBatch);
+    @Override public boolean hasNext() {
+      while (currentBatch == null || !currentBatch.hasNext()) {
+        // the batch we exhausted was known to be the last one.
+        if (idForNextBatch == null) {
+          return false;
+        }
+        long waitStartNanos = System.nanoTime();
+        LoadedBatch<I, T> loadedBatch = batchSource.loadFrom(idForNextBatch);
+        loadListener.recordWait(System.nanoTime() - waitStartNanos);
+        idForNextBatch = loadedBatch.getNextId();
+        currentBatch = Iterators.peekingIterator(
+            loadedBatch.getBatch().iterator());
+        // an empty batch means we have reached the end.
+        if (!currentBatch.hasNext()) {
+          idForNextBatch = null;
+          return false;
         }
-      };
-
-      final List<T> batch;
-      try {
-        batch = loadingCallableTransform.transform(loadingCallable).call();
-      } catch (Exception e) {
-        throw new RuntimeException(
-            "Could not load batch with id " + idForNextBatch, e);
       }
+      return true;
+    }
 
-      if (!batch.isEmpty()) {
-        idForNextBatch = getNextId(batch.get(batch.size() - 1));
-      } else {
-        idForNextBatch = null;
+    @Override public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
       }
-      return batch.iterator();
+      return currentBatch.next();
     }
 
-    @Override protected T computeNext() {
-      if (currentBatch == null) {
-        currentBatch = getNextBatch();
-        if (!currentBatch.hasNext()) {
-          // the very first batch was empty.
-          return endOfData();
+    @Override public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public void seek(I id) {
+      idForNextBatch = Preconditions.checkNotNull(id);
+      currentBatch = null;
+      batchSource = newBatchSource();
+    }
+
+    @Override public void skipTo(I id) {
+      Preconditions.checkNotNull(id);
+      checkState(idComparator != null,
+          "Skipping needs an iterator created with an id comparator");
+      if (currentBatch != null && currentBatch.hasNext()) {
+        // every item of the current batch comes before the next batch.
+        if (idForNextBatch != null
+            && idComparator.compare(id, idForNextBatch) >= 0) {
+          seek(id);
+          return;
         }
-      }
-      if (!currentBatch.hasNext()) {
-        currentBatch = getNextBatch();
-        // we exhausted one batch, and tried to get the next which had none,
-        // this means we have reached the end.
-        if (!currentBatch.hasNext()) {
-          return endOfData();
+        // an item comes before the id if the id after it does not follow it.
+        while (currentBatch.hasNext() && idComparator.compare(
+            getNextId(currentBatch.peek()), id) <= 0) {
+          currentBatch.next();
         }
+      } else if (idForNextBatch != null
+          && idComparator.compare(id, idForNextBatch) > 0) {
+        seek(id);
       }
-      return currentBatch.next();
     }
   }
 }
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link BatchLoadListener} that keeps {@link RollingHistogram}s of how
+ * long recent loads took, of how many items and values they returned, and of
+ * how long consumers waited for recent batches, along with the total time
+ * spent loading, waiting and held back by throttling.
+ * <p>
+ * A scan whose consumers spend most of its loading time waiting is bound by
+ * the backend, and may gain from prefetching more batches ahead; one whose
+ * consumers hardly wait is bound by its consumer.
+ * <p>
+ * Instances are thread safe.
+ */
+public final class LoadStatistics implements BatchLoadListener {
+
+  private final RollingHistogram loadNanos;
+  private final RollingHistogram loadedItemCounts;
+  private final RollingHistogram loadedValueCounts;
+  private final RollingHistogram waitNanos;
+  private final AtomicLong totalLoadNanos = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong totalThrottleNanos = new AtomicLong();
+
+  private LoadStatistics(int windowSize) {
+    this.loadNanos = new RollingHistogram(windowSize);
+    this.loadedItemCounts = new RollingHistogram(windowSize);
+    this.loadedValueCounts = new RollingHistogram(windowSize);
+    this.waitNanos = new RollingHistogram(windowSize);
+  }
+
+  /**
+   * Returns statistics whose histograms hold the given {@code windowSize}
+   * most recent loads and waits.
+   */
+  public static LoadStatistics withWindowSize(int windowSize) {
+    return new LoadStatistics(windowSize);
+  }
+
+  @Override public void recordLoad(
+      long loadNanos, int loadedItemCount, int loadedValueCount) {
+    this.loadNanos.record(loadNanos);
+    loadedItemCounts.record(loadedItemCount);
+    loadedValueCounts.record(loadedValueCount);
+    totalLoadNanos.addAndGet(loadNanos);
+  }
+
+  @Override public void recordWait(long waitNanos) {
+    this.waitNanos.record(waitNanos);
+    totalWaitNanos.addAndGet(waitNanos);
+  }
+
+  @Override public void recordThrottle(long throttleNanos) {
+    totalThrottleNanos.addAndGet(throttleNanos);
+  }
+
+  /** Returns the histogram of how long recent loads took, in nanoseconds. */
+  public RollingHistogram getLoadNanos() {
+    return loadNanos;
+  }
+
+  /** Returns the histogram of how many items recent loads returned. */
+  public RollingHistogram getLoadedItemCounts() {
+    return loadedItemCounts;
+  }
+
+  /** Returns the histogram of how many values recent loads returned. */
+  public RollingHistogram getLoadedValueCounts() {
+    return loadedValueCounts;
+  }
+
+  /**
+   * Returns the histogram of how long consumers waited for recent batches,
+   * in nanoseconds.
+   */
+  public RollingHistogram getWaitNanos() {
+    return waitNanos;
+  }
+
+  /** Returns how long all loads so far took in total, in nanoseconds. */
+  public long getTotalLoadNanos() {
+    return totalLoadNanos.get();
+  }
+
+  /** Returns how long consumers waited in total so far, in nanoseconds. */
+  public long getTotalWaitNanos() {
+    return totalWaitNanos.get();
+  }
+
+  /** Returns how long loads were held back in total so far, in nanoseconds. */
+  public long getTotalThrottleNanos() {
+    return totalThrottleNanos.get();
+  }
+
+  @Override public String toString() {
+    return String.format("{loadNanos=%s, loadedValueCounts=%s, waitNanos=%s}",
+        loadNanos, loadedValueCounts, waitNanos);
+  }
+}
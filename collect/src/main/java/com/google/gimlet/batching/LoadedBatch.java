@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * The outcome of loading one batch: the loaded items along with the id of the
+ * batch that follows them.  A {@code null} next id marks the last batch, and an
+ * empty batch marks the end of the data.
+ *
+ * @param <I> the type of id used in fetching.
+ * @param <T> the type of objects being loaded.
+ */
+final class LoadedBatch<I, T> {
+
+  private static final LoadedBatch<Object, Object> END =
+      new LoadedBatch<Object, Object>(ImmutableList.of(), null);
+
+  private final List<T> batch;
+  private final I nextId;
+
+  private LoadedBatch(List<T> batch, I nextId) {
+    this.batch = batch;
+    this.nextId = nextId;
+  }
+
+  static <I, T> LoadedBatch<I, T> of(List<T> batch, I nextId) {
+    return new LoadedBatch<I, T>(batch, nextId);
+  }
+
+  @SuppressWarnings("unchecked")
+  static <I, T> LoadedBatch<I, T> end() {
+    return (LoadedBatch<I, T>) END;
+  }
+
+  /** Returns whether this batch holds no items, marking the end of data. */
+  boolean isEnd() {
+    return batch.isEmpty();
+  }
+
+  /** Returns whether more batches may follow this one. */
+  boolean hasNext() {
+    return !isEnd() && nextId != null;
+  }
+
+  List<T> getBatch() {
+    return batch;
+  }
+
+  /** Returns the id of the next batch, or {@code null} at the end. */
+  I getNextId() {
+    return nextId;
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * A {@link BatchIterator} over the batches that a {@link BatchSource} loads
+ * for a single scan.
+ *
+ * @param <I> the type of id used in fetching.
+ * @param <T> the type of objects being loaded.
+ */
+final class LoadingBatchIterator<I, T>
+    extends AbstractIterator<Batch<? extends T>>
+    implements BatchIterator<T> {
+
+  private final BatchSource<I, T> batchSource;
+  private final BatchLoadListener loadListener;
+  private I idForNextBatch;
+
+  LoadingBatchIterator(BatchSource<I, T> batchSource, I beginId,
+      BatchLoadListener loadListener) {
+    this.batchSource = batchSource;
+    this.idForNextBatch = beginId;
+    this.loadListener = loadListener;
+  }
+
+  @Override protected Batch<? extends T> computeNext() {
+    if (idForNextBatch == null) {
+      return endOfData();
+    }
+    long waitStartNanos = System.nanoTime();
+    LoadedBatch<I, T> loadedBatch = batchSource.loadFrom(idForNextBatch);
+    loadListener.recordWait(System.nanoTime() - waitStartNanos);
+    if (loadedBatch.isEnd()) {
+      idForNextBatch = null;
+      return endOfData();
+    }
+    idForNextBatch = loadedBatch.getNextId();
+    return Batches.forCollection(loadedBatch.getBatch());
+  }
+}
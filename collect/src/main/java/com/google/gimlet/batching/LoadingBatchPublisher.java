@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.gimlet.parallel.ExecutionStrategy;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link BatchPublisher} over the batches of a {@link ListLoadingIterable},
+ * which only loads batches that its subscribers asked for.
+ * <p>
+ * Each subscriber gets a scan of its own.  Its loads go through the loading
+ * callable transform of the iterable, one after the other, each in a task of
+ * its own on the given {@link ExecutionStrategy}; the batch is handed to the
+ * subscriber from that task.  No task runs, and so no thread is taken, for a
+ * subscriber that has no outstanding demand, so a small pool can serve a
+ * large number of concurrent scans.  A strategy that runs tasks in the
+ * calling thread loads the batches in the thread that asks for them.
+ * <p>
+ * If a load fails, the subscriber is told so through
+ * {@link BatchSubscriber#onError} and its scan ends.  So is a request for a
+ * non-positive number of batches, which is reported from a load task too,
+ * once no load is running, so that the subscriber is never called from two
+ * threads at once.
+ *
+ * @param <I> the type of id used in fetching.
+ * @param <T> the type of objects being loaded.
+ */
+public final class LoadingBatchPublisher<I, T> implements BatchPublisher<T> {
+
+  private static final Logger logger =
+      Logger.getLogger(LoadingBatchPublisher.class.getCanonicalName());
+
+  private final ListLoadingIterable<I, T> loadingIterable;
+  private final ExecutionStrategy executionStrategy;
+
+  private LoadingBatchPublisher(
+      ListLoadingIterable<I, T> loadingIterable,
+      ExecutionStrategy executionStrategy) {
+    this.loadingIterable = checkNotNull(loadingIterable);
+    this.executionStrategy = checkNotNull(executionStrategy);
+  }
+
+  /**
+   * Returns a publisher of the batches of the given {@code loadingIterable},
+   * which runs its loads via the given {@code executionStrategy}.
+   */
+  public static <I, T> LoadingBatchPublisher<I, T> of(
+      ListLoadingIterable<I, T> loadingIterable,
+      ExecutionStrategy executionStrategy) {
+    return new LoadingBatchPublisher<I, T>(loadingIterable, executionStrategy);
+  }
+
+  @Override public void subscribe(BatchSubscriber<? super T> subscriber) {
+    LoadingSubscription subscription = new LoadingSubscription(
+        checkNotNull(subscriber),
+        checkNotNull(loadingIterable.getInitialValue(),
+            "Can't have a null initial value"));
+    subscriber.onSubscribe(subscription);
+  }
+
+  /** The scan of a single subscriber. */
+  private class LoadingSubscription implements BatchSubscription {
+
+    private final BatchSubscriber<? super T> subscriber;
+    private final BatchSource<I, T> batchSource =
+        loadingIterable.newBatchSource();
+
+    // All fields below are guarded by this.
+    /** How many batches were asked for but not yet handed out. */
+    private long demand;
+    /** Whether a load task is running or about to. */
+    private boolean loading;
+    /** Whether the scan ended, or was cancelled. */
+    private boolean terminated;
+    /** A failure that the next load task reports instead of loading. */
+    private RuntimeException pendingError;
+    /** The id of the next batch, or {@code null} after the last batch. */
+    private I idForNextBatch;
+
+    LoadingSubscription(BatchSubscriber<? super T> subscriber, I beginId) {
+      this.subscriber = subscriber;
+      this.idForNextBatch = beginId;
+    }
+
+    @Override public void request(long batchCount) {
+      synchronized (this) {
+        if (batchCount <= 0) {
+          // reported from a load task, so that it can't overlap with onNext.
+          if (pendingError == null) {
+            pendingError = new IllegalArgumentException(
+                "Batch count must be positive but was " + batchCount);
+          }
+        } else {
+          // saturate rather than overflow, which stands for unbounded demand.
+          demand =
+              demand + batchCount < 0 ? Long.MAX_VALUE : demand + batchCount;
+        }
+      }
+      startLoads();
+    }
+
+    @Override public void cancel() {
+      terminate();
+    }
+
+    /** Ends the scan, returning whether it hadn't ended already. */
+    private synchronized boolean terminate() {
+      boolean wasTerminated = terminated;
+      terminated = true;
+      return !wasTerminated;
+    }
+
+    /** Claims the next load, returning whether there is one to run. */
+    private synchronized boolean claimLoad() {
+      if (loading || terminated || (demand == 0 && pendingError == null)) {
+        return false;
+      }
+      loading = true;
+      return true;
+    }
+
+    /**
+     * Starts load tasks for as long as the subscriber asks for batches.  A
+     * task that the strategy ran in this thread is followed by the next one
+     * here rather than from within it, so that the stack doesn't grow with
+     * each batch.
+     */
+    private void startLoads() {
+      while (claimLoad()) {
+        LoadTask loadTask = new LoadTask();
+        try {
+          BatchingFutures.start(executionStrategy, loadTask);
+        } catch (RuntimeException e) {
+          synchronized (this) {
+            loading = false;
+          }
+          if (terminate()) {
+            subscriber.onError(e);
+          }
+          return;
+        }
+        // the task is still running, so it starts the next one.
+        if (loadTask.handOff.compareAndSet(false, true)) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Loads the next batch and hands it to the subscriber, or tells the
+     * subscriber that the scan ended.
+     */
+    private void loadNextBatch() {
+      I beginId;
+      RuntimeException error;
+      synchronized (this) {
+        if (terminated) {
+          return;
+        }
+        beginId = idForNextBatch;
+        error = pendingError;
+        terminated = error != null;
+      }
+      if (error != null) {
+        subscriber.onError(error);
+        return;
+      }
+
+      LoadedBatch<I, T> loadedBatch;
+      try {
+        loadedBatch = batchSource.loadFrom(beginId);
+      } catch (RuntimeException e) {
+        if (terminate()) {
+          subscriber.onError(e);
+        }
+        return;
+      }
+
+      boolean lastBatch = loadedBatch.isEnd() || !loadedBatch.hasNext();
+      synchronized (this) {
+        if (terminated) {
+          return;
+        }
+        idForNextBatch = loadedBatch.getNextId();
+        if (!loadedBatch.isEnd()) {
+          demand--;
+        }
+        terminated = lastBatch;
+      }
+
+      try {
+        if (!loadedBatch.isEnd()) {
+          subscriber.onNext(Batches.forCollection(loadedBatch.getBatch()));
+        }
+        if (lastBatch) {
+          subscriber.onComplete();
+        }
+      } catch (RuntimeException e) {
+        // a subscriber that fails can't be handed anything further.
+        terminate();
+        logger.log(Level.SEVERE, "Subscriber failed to take a batch", e);
+      }
+    }
+
+    /**
+     * Runs a single load, and then starts the next one unless the thread
+     * that started this task is still there to do so.
+     */
+    private class LoadTask extends FutureTask<Void> {
+
+      /**
+       * Set by whichever of the starting thread and this task is done with
+       * the load first; the other one then starts the next load.
+       */
+      final AtomicBoolean handOff = new AtomicBoolean();
+
+      LoadTask() {
+        super(new Callable<Void>() {
+          @Override public Void call() {
+            loadNextBatch();
+            return null;
+          }
+        });
+      }
+
+      @Override protected void done() {
+        synchronized (LoadingSubscription.this) {
+          loading = false;
+        }
+        if (!handOff.compareAndSet(false, true)) {
+          startLoads();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+import com.google.common.primitives.Longs;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A batch of {@code long} values, backed by a {@code long} array so that
+ * scans over such values don't box each of them the way a {@link Batch}
+ * would.
+ * <p>
+ * Batches created by {@link #of} own a copy of their values and never
+ * change.  Batches handed out by a {@link LongLoadingIterable}, however, are
+ * views over a buffer that the next load of the same iterator overwrites, so
+ * they must be copied, for instance via {@link #toArray()}, to be kept.
+ *
+ */
+public final class LongBatch {
+
+  private static final LongBatch EMPTY = new LongBatch(new long[0], 0);
+
+  private final long[] values;
+  private final int size;
+
+  private LongBatch(long[] values, int size) {
+    this.values = values;
+    this.size = size;
+  }
+
+  /** Returns a batch holding a copy of the given {@code values}. */
+  public static LongBatch of(long... values) {
+    return values.length == 0
+        ? EMPTY : new LongBatch(values.clone(), values.length);
+  }
+
+  /**
+   * Returns a view over the first {@code size} values of the given
+   * {@code buffer}, which the caller may overwrite later.
+   */
+  static LongBatch view(long[] buffer, int size) {
+    checkPositionIndexes(0, size, buffer.length);
+    return new LongBatch(buffer, size);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Returns the value at the given {@code index}. */
+  public long get(int index) {
+    checkElementIndex(index, size);
+    return values[index];
+  }
+
+  /** Returns a new array holding the values of this batch, in order. */
+  public long[] toArray() {
+    long[] copy = new long[size];
+    System.arraycopy(values, 0, copy, 0, size);
+    return copy;
+  }
+
+  /**
+   * Copies the values of this batch, in order, into the given
+   * {@code destination} beginning at {@code destinationIndex}.
+   *
+   * @throws IndexOutOfBoundsException if the destination has too little room
+   */
+  public void copyTo(long[] destination, int destinationIndex) {
+    checkNotNull(destination);
+    checkPositionIndexes(
+        destinationIndex, destinationIndex + size, destination.length);
+    System.arraycopy(values, 0, destination, destinationIndex, size);
+  }
+
+  /** Returns an iterator over the values of this batch, in order. */
+  public LongIterator longIterator() {
+    return new LongIterator() {
+      private int index;
+
+      @Override public boolean hasNext() {
+        return index < size;
+      }
+
+      @Override public long nextLong() {
+        if (index >= size) {
+          throw new NoSuchElementException();
+        }
+        return values[index++];
+      }
+    };
+  }
+
+  @Override public int hashCode() {
+    int hashCode = 1;
+    for (int i = 0; i < size; i++) {
+      hashCode = 31 * hashCode + Longs.hashCode(values[i]);
+    }
+    return hashCode;
+  }
+
+  @Override public boolean equals(Object o) {
+    if (!(o instanceof LongBatch)) {
+      return false;
+    }
+
+    LongBatch that = (LongBatch) o;
+    if (size != that.size) {
+      return false;
+    }
+    for (int i = 0; i < size; i++) {
+      long a = values[i];
+      long b = that.values[i];
+      if (a != b) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override public String toString() {
+    return "[" + Longs.join(", ", toArray()) + "]";
+  }
+
+  /** An iterator over {@code long} values that doesn't box them. */
+  public interface LongIterator {
+
+    boolean hasNext();
+
+    /**
+     * Returns the next value.
+     *
+     * @throws NoSuchElementException if there are no more values
+     */
+    long nextLong();
+  }
+}
@@ -17,6 +17,7 @@
 
 package com.google.gimlet.batching;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Iterables.getOnlyElement;
 
 import com.google.common.base.Function;
@@ -27,9 +28,12 @@ import com.google.common.collect.Ordering;
 import com.google.gimlet.parallel.CallableTransform;
 
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -60,7 +64,7 @@ public abstract class MapLoadingIterable<K, V, I>
         }
       };
 
-  private final Integer batchSize;
+  private final BatchSizeController batchSizeController;
 
   /**
    * @param initialValue an initial value to represent the first "bar" to load.
@@ -73,8 +77,50 @@ public abstract class MapLoadingIterable<K, V, I>
       I initialValue,
       CallableTransform loadCallableTransform,
       Integer batchSize) {
-    super(initialValue, loadCallableTransform);
-    this.batchSize = batchSize;
+    this(initialValue, loadCallableTransform,
+        BatchSizeControllers.uncheckedFixed(batchSize));
+  }
+
+  /**
+   * @param initialValue an initial value to represent the first "bar" to load.
+   * @param loadCallableTransform transform that gets applied when
+   * {@link #loadNextBatch} get called within its own callable. This allows one
+   * to decorate this call.
+   * @param batchSizeController decides the max number of "foos" that get
+   * returned for each load, and is told how long each load took and how many
+   * "foos" it returned.
+   */
+  protected MapLoadingIterable(
+      I initialValue,
+      CallableTransform loadCallableTransform,
+      BatchSizeController batchSizeController) {
+    this(initialValue, loadCallableTransform, batchSizeController,
+        ListLoadingIterable.NO_OP_LOAD_LISTENER);
+  }
+
+  /**
+   * @param initialValue an initial value to represent the first "bar" to load.
+   * @param loadCallableTransform transform that gets applied when
+   * {@link #loadNextBatch} get called within its own callable. This allows one
+   * to decorate this call.
+   * @param batchSizeController decides the max number of "foos" that get
+   * returned for each load, and is told how long each load took and how many
+   * "foos" it returned.
+   * @param loadListener is told how long each load took and how many "bars"
+   * and "foos" it returned, and how long consumers waited for each batch.
+   */
+  protected MapLoadingIterable(
+      I initialValue,
+      CallableTransform loadCallableTransform,
+      BatchSizeController batchSizeController,
+      BatchLoadListener loadListener) {
+    super(initialValue, loadCallableTransform, loadListener);
+    this.batchSizeController = checkNotNull(batchSizeController);
+  }
+
+  /** Returns the controller that decides the size of each load. */
+  public final BatchSizeController getBatchSizeController() {
+    return batchSizeController;
   }
 
   /**
@@ -84,13 +130,57 @@ public abstract class MapLoadingIterable<K, V, I>
    * incomplete or not. It will automatically be removed and the
    * nextIdFunction will be applied to the previous element which should result
    * in the last "K" being loaded.
+   * <p>
+   * When {@link #getResumeId} is overridden, a load may also stop in the
+   * middle of a "K", returning only up to batch size of its values; the resume
+   * id for the last of those values acts as the token from which the next
+   * load picks up the rest of them.
    */
   protected abstract Map<K, List<V>> loadBatch(I beginIdForBatch,
       Integer batchSize);
 
+  /**
+   * Returns an id from which {@link #loadBatch} resumes loading within
+   * {@code key}, right after {@code lastLoadedValue}, or {@code null} if
+   * loading can only begin at the start of a key.  This returns {@code null}
+   * unless overridden.
+   * <p>
+   * Subclasses that override this opt into carrying over the last key of each
+   * load: rather than dropping that key and loading all of its values again
+   * with the next batch, an iterator keeps the values it already has, loads
+   * only the remaining ones, and stitches them into a single
+   * {@link KeyedBatch}.  Note that a scan that is started from a resume id
+   * only returns the values of its first key that follow that id.
+   * <p>
+   * Resume ids also bound the memory taken by a key that has more values than
+   * the batch size: such a key is returned as a series of consecutive keyed
+   * batches with the same key, none of which holds more than twice the batch
+   * size of values.  Without resume ids, such a key is returned as whatever a
+   * single load holds of it, and an error is logged.
+   */
+  protected I getResumeId(K key, V lastLoadedValue) {
+    return null;
+  }
+
   @Override protected final List<KeyedBatch<K, V>> loadNextBatch(
       I beginIdForBatch) {
+    int batchSize = batchSizeController.getBatchSize();
+    return trimLastKey(
+        loadSortedBatches(beginIdForBatch, batchSize), batchSize);
+  }
+
+  /**
+   * Loads the batch beginning with {@code beginIdForBatch} and returns its
+   * entries as keyed batches sorted by {@link #getOrdering()}.
+   */
+  private List<KeyedBatch<K, V>> loadSortedBatches(
+      I beginIdForBatch, int batchSize) {
+    long loadStartNanos = System.nanoTime();
     Map<K, List<V>> map = loadBatch(beginIdForBatch, batchSize);
+    long loadNanos = System.nanoTime() - loadStartNanos;
+    int valueCount = countValues(map);
+    batchSizeController.recordLoad(batchSize, loadNanos, valueCount);
+    getLoadListener().recordLoad(loadNanos, map.size(), valueCount);
 
     // exit early if we didn't load any entries.
     if (map.isEmpty()) {
@@ -98,29 +188,77 @@ public abstract class MapLoadingIterable<K, V, I>
     }
 
     List<KeyedBatch<K, V>> keyedBatches =
-        Lists.newArrayList(Iterables.transform(
-            map.entrySet(), mapEntryToBatchElementFunction));
-
-    Collections.sort(keyedBatches,
-        // sort the list based in the key of the KeyedBatches.
-        getOrdering().onResultOf(
-            new Function<KeyedBatch<K, V>, K>() {
-              @Override
-              public K apply(KeyedBatch<K, V> from) {
-                return from.getKey();
-              }
-            }));
+        Lists.newArrayListWithCapacity(map.size());
+    for (Entry<K, List<V>> entry : map.entrySet()) {
+      keyedBatches.add(mapEntryToBatchElementFunction.apply(entry));
+    }
+
+    // maps that iterate in key order already need no sorting.
+    if (!isSortedByOrdering(map)) {
+      Collections.sort(keyedBatches,
+          // sort the list based in the key of the KeyedBatches.
+          getOrdering().onResultOf(
+              new Function<KeyedBatch<K, V>, K>() {
+                @Override
+                public K apply(KeyedBatch<K, V> from) {
+                  return from.getKey();
+                }
+              }));
+    }
+    return keyedBatches;
+  }
+
+  /**
+   * Returns whether the given loaded map iterates over its keys in the order
+   * of {@link #getOrdering()}: either the subclass declared that it does via
+   * {@link #isLoadBatchSorted()}, or it is a {@link SortedMap} whose
+   * comparator is that ordering.
+   */
+  private boolean isSortedByOrdering(Map<K, List<V>> map) {
+    if (isLoadBatchSorted()) {
+      return true;
+    }
+    if (!(map instanceof SortedMap)) {
+      return false;
+    }
+    Comparator<?> comparator = ((SortedMap<K, List<V>>) map).comparator();
+    Ordering<K> ordering = getOrdering();
+    return comparator == null
+        ? ordering.equals(Ordering.natural())
+        : ordering.equals(comparator)
+            || ordering.equals(Ordering.from(comparator));
+  }
+
+  private static <K, V> int countValues(Map<K, List<V>> map) {
+    int valueCount = 0;
+    for (List<V> values : map.values()) {
+      valueCount += values.size();
+    }
+    return valueCount;
+  }
+
+  /**
+   * Removes the last key from the given sorted keyed batches, since it may be
+   * incomplete, unless it is the only key.
+   */
+  private List<KeyedBatch<K, V>> trimLastKey(
+      List<KeyedBatch<K, V>> keyedBatches, int batchSize) {
+    // exit early if we didn't load any entries.
+    if (keyedBatches.isEmpty()) {
+      return keyedBatches;
+    }
 
     // if there is only one element, make sure that this one key doesn't
-    // have too many values. if it does log an exception. We will also just
-    // return this single element list.
+    // have too many values. if it does log it, since only resume ids let us
+    // split it. We will also just return this single element list.
 
     if (keyedBatches.size() == 1) {
       KeyedBatch<K, V> keyedBatch = getOnlyElement(keyedBatches);
       if (keyedBatch.getBatch().size() >= batchSize) {
         logger.log(Level.SEVERE, String.format(
-            "%s has gone over batch size %s", keyedBatch.getKey(), batchSize),
-            new Exception());
+            "%s has gone over batch size %s; override getResumeId() to have "
+                + "it returned in bounded chunks",
+            keyedBatch.getKey(), batchSize));
       }
       return keyedBatches;
     }
@@ -131,12 +269,28 @@ public abstract class MapLoadingIterable<K, V, I>
     return keyedBatches;
   }
 
+  @Override BatchSource<I, KeyedBatch<K, V>> newBatchSource() {
+    return new CarryOverBatchSource();
+  }
+
   /**
    * Returns an ordering for how to sort the map keys so that we can return
    * them in the correct order.
    */
   protected abstract Ordering<K> getOrdering();
 
+  /**
+   * Returns whether the maps returned by {@link #loadBatch} already iterate
+   * over their keys in the order of {@link #getOrdering()}, such as a
+   * {@link java.util.LinkedHashMap} filled from a sorted query, so that the
+   * entries of each load need no sorting.  This returns {@code false} unless
+   * overridden; a {@link SortedMap} whose comparator is the ordering is
+   * recognized as sorted either way.
+   */
+  protected boolean isLoadBatchSorted() {
+    return false;
+  }
+
   /**
    * Returns the nextId that should be use to load the next batch, based on
    * the last key that was part of the previous batch.
@@ -146,4 +300,97 @@ public abstract class MapLoadingIterable<K, V, I>
   @Override protected I getNextId(KeyedBatch<K, V> previousEnd) {
     return innerGetNextId(previousEnd.getKey());
   }
+
+  /**
+   * Batch source that carries the last key of each load over to the next load
+   * when {@link #getResumeId} allows it to, and that otherwise behaves like
+   * {@link #loadNextBatch}.
+   */
+  private class CarryOverBatchSource
+      implements BatchSource<I, KeyedBatch<K, V>> {
+
+    /** The possibly incomplete last key of the previous load, if any. */
+    private KeyedBatch<K, V> carriedOver;
+
+    @Override public LoadedBatch<I, KeyedBatch<K, V>> loadFrom(I beginId) {
+      I idForLoad = beginId;
+      while (true) {
+        final I loadId = idForLoad;
+        final int batchSize = batchSizeController.getBatchSize();
+        List<KeyedBatch<K, V>> keyedBatches = loadThroughTransform(loadId,
+            new Callable<List<KeyedBatch<K, V>>>() {
+              @Override public List<KeyedBatch<K, V>> call() {
+                return loadSortedBatches(loadId, batchSize);
+              }
+            });
+
+        if (carriedOver != null) {
+          KeyedBatch<K, V> previous = carriedOver;
+          carriedOver = null;
+          // nothing follows the carried over key, so it was complete.
+          if (keyedBatches.isEmpty()) {
+            List<KeyedBatch<K, V>> lastBatch = ImmutableList.of(previous);
+            return LoadedBatch.of(lastBatch, null);
+          }
+          stitch(previous, keyedBatches);
+        }
+
+        if (keyedBatches.isEmpty()) {
+          return LoadedBatch.end();
+        }
+
+        KeyedBatch<K, V> lastKeyedBatch =
+            keyedBatches.get(keyedBatches.size() - 1);
+        // a key without values has no value to resume after, so it is
+        // handled as it is without resume ids: dropped and loaded again.
+        I resumeId = lastKeyedBatch.getBatch().isEmpty()
+            ? null
+            : getResumeId(lastKeyedBatch.getKey(),
+                Iterables.getLast(lastKeyedBatch.getBatch()));
+        if (resumeId == null) {
+          List<KeyedBatch<K, V>> trimmed =
+              trimLastKey(keyedBatches, batchSize);
+          return LoadedBatch.of(trimmed, nextIdAfter(trimmed));
+        }
+
+        KeyedBatch<K, V> lastKey = keyedBatches.remove(keyedBatches.size() - 1);
+        if (!keyedBatches.isEmpty()) {
+          carriedOver = lastKey;
+          return LoadedBatch.of(keyedBatches, resumeId);
+        }
+        // the load held nothing but the last key.  If that key is oversized,
+        // hand out what we have of it as one chunk rather than letting it
+        // grow; otherwise keep loading it.
+        if (lastKey.getBatch().size() >= batchSize) {
+          List<KeyedBatch<K, V>> chunk = ImmutableList.of(lastKey);
+          return LoadedBatch.of(chunk, resumeId);
+        }
+        carriedOver = lastKey;
+        idForLoad = resumeId;
+      }
+    }
+
+    @Override public boolean dependsOnEarlierLoads() {
+      return carriedOver != null;
+    }
+
+    /**
+     * Merges the given carried over key into the first of the given keyed
+     * batches if both are for the same key, or else puts it first.
+     */
+    private void stitch(
+        KeyedBatch<K, V> previous, List<KeyedBatch<K, V>> keyedBatches) {
+      KeyedBatch<K, V> first = keyedBatches.get(0);
+      if (getOrdering().compare(previous.getKey(), first.getKey()) != 0) {
+        keyedBatches.add(0, previous);
+        return;
+      }
+      List<V> values = Lists.newArrayListWithCapacity(
+          previous.getBatch().size() + first.getBatch().size());
+      values.addAll(previous.getBatch());
+      values.addAll(first.getBatch());
+      keyedBatches.set(0,
+          KeyedBatch.of(previous.getKey(), Batches.forCollection(values)));
+    }
+  }
 }
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A record read from a file by a {@link RecordFileLoadingIterable}: the bytes
+ * of the record, along with where in the file it lies.  The bytes are a view
+ * of the mapped file rather than a copy.
+ */
+public final class MappedRecord {
+
+  private final long offset;
+  private final ByteBuffer data;
+
+  MappedRecord(long offset, ByteBuffer data) {
+    this.offset = offset;
+    this.data = data;
+  }
+
+  /** Returns the offset in the file of the length prefix of this record. */
+  public long getOffset() {
+    return offset;
+  }
+
+  /** Returns the offset in the file of the record after this one. */
+  public long getEndOffset() {
+    return offset + RecordFileLoadingIterable.LENGTH_PREFIX_SIZE
+        + data.capacity();
+  }
+
+  /** Returns how many bytes this record holds, besides its length prefix. */
+  public int getLength() {
+    return data.capacity();
+  }
+
+  /**
+   * Returns a read-only buffer over the bytes of this record, positioned at
+   * its first byte.  Each call returns a new buffer, so that readers don't
+   * move each other's positions.
+   */
+  public ByteBuffer getData() {
+    return data.duplicate();
+  }
+
+  @Override public String toString() {
+    return "MappedRecord{offset=" + offset + ", length=" + getLength() + "}";
+  }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.PeekingIterator;
+import com.google.gimlet.parallel.ExecutionStrategy;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * An {@link Iterable} that merges several streams of
+ * {@link KeyedBatch keyed batches}, each sorted by key, into a single stream
+ * sorted by key, such as the {@link MapLoadingIterable}s of several shards.
+ * <p>
+ * The merge keeps the next keyed batch of each stream in a heap, so it holds
+ * one keyed batch per stream at a time rather than the whole data set.  When
+ * several streams have batches with equal keys, those batches are combined
+ * into one keyed batch, with the values in the order the streams were given.
+ * Consecutive batches with the same key from one stream, as returned for
+ * keys with many values, are not combined with each other.
+ * <p>
+ * Merging {@link MapLoadingIterable}s through
+ * {@link #ofLoadingIterables} loads all shards at the same time: each shard
+ * loads its next batch on an {@link ExecutionStrategy} while the merge works
+ * on the current ones.
+ *
+ * @param <K> the type of keys.
+ * @param <V> the type of values.
+ */
+public final class MergingKeyedBatchIterable<K, V>
+    implements Iterable<KeyedBatch<K, V>> {
+
+  private final List<Iterable<KeyedBatch<K, V>>> streams;
+  private final Ordering<? super K> ordering;
+
+  private MergingKeyedBatchIterable(
+      List<Iterable<KeyedBatch<K, V>>> streams,
+      Ordering<? super K> ordering) {
+    this.streams = streams;
+    this.ordering = checkNotNull(ordering);
+  }
+
+  /**
+   * Returns an iterable that merges the given {@code streams} of keyed
+   * batches, each of which must be sorted by {@code ordering}.
+   */
+  public static <K, V> MergingKeyedBatchIterable<K, V> of(
+      Ordering<? super K> ordering,
+      List<? extends Iterable<KeyedBatch<K, V>>> streams) {
+    return new MergingKeyedBatchIterable<K, V>(
+        ImmutableList.<Iterable<KeyedBatch<K, V>>>copyOf(streams), ordering);
+  }
+
+  /**
+   * Returns an iterable that merges the given {@code loadingIterables}, all
+   * of which must use {@code ordering}, while each of them loads up to
+   * {@code prefetchDepth} batches ahead via the given
+   * {@code executionStrategy}.
+   */
+  public static <K, V, I> MergingKeyedBatchIterable<K, V> ofLoadingIterables(
+      Ordering<? super K> ordering,
+      ExecutionStrategy executionStrategy,
+      int prefetchDepth,
+      List<? extends MapLoadingIterable<K, V, I>> loadingIterables) {
+    checkArgument(prefetchDepth > 0,
+        "Prefetch depth must be positive but was %s", prefetchDepth);
+    List<Iterable<KeyedBatch<K, V>>> streams = Lists.newArrayList();
+    for (MapLoadingIterable<K, V, I> loadingIterable : loadingIterables) {
+      streams.add(PrefetchingListLoadingIterable.of(
+          loadingIterable, executionStrategy, prefetchDepth));
+    }
+    return new MergingKeyedBatchIterable<K, V>(
+        ImmutableList.copyOf(streams), ordering);
+  }
+
+  @Override public Iterator<KeyedBatch<K, V>> iterator() {
+    return new MergingIterator();
+  }
+
+  /** The upcoming keyed batches of one stream. */
+  private class Cursor {
+    final int streamIndex;
+    final PeekingIterator<KeyedBatch<K, V>> keyedBatches;
+
+    Cursor(int streamIndex, Iterator<KeyedBatch<K, V>> keyedBatches) {
+      this.streamIndex = streamIndex;
+      this.keyedBatches = Iterators.peekingIterator(keyedBatches);
+    }
+
+    K nextKey() {
+      return keyedBatches.peek().getKey();
+    }
+  }
+
+  private class MergingIterator extends AbstractIterator<KeyedBatch<K, V>> {
+
+    /** Holds the cursors that have keyed batches left, by their next key. */
+    private final PriorityQueue<Cursor> heap;
+
+    MergingIterator() {
+      heap = new PriorityQueue<Cursor>(
+          Math.max(1, streams.size()), new Comparator<Cursor>() {
+            @Override public int compare(Cursor left, Cursor right) {
+              int result = ordering.compare(left.nextKey(), right.nextKey());
+              return result != 0
+                  ? result : left.streamIndex - right.streamIndex;
+            }
+          });
+      // starting every stream first lets those that load ahead do so at once.
+      List<Iterator<KeyedBatch<K, V>>> iterators = Lists.newArrayList();
+      for (Iterable<KeyedBatch<K, V>> stream : streams) {
+        iterators.add(stream.iterator());
+      }
+      for (int i = 0; i < iterators.size(); i++) {
+        offer(new Cursor(i, iterators.get(i)));
+      }
+    }
+
+    @Override protected KeyedBatch<K, V> computeNext() {
+      Cursor first = heap.poll();
+      if (first == null) {
+        return endOfData();
+      }
+      KeyedBatch<K, V> keyedBatch = first.keyedBatches.next();
+      K key = keyedBatch.getKey();
+
+      List<Cursor> sameKeyCursors = Lists.newArrayListWithCapacity(2);
+      sameKeyCursors.add(first);
+      List<V> combinedValues = null;
+      while (!heap.isEmpty()
+          && ordering.compare(key, heap.peek().nextKey()) == 0) {
+        Cursor cursor = heap.poll();
+        if (combinedValues == null) {
+          combinedValues = Lists.<V>newArrayList(keyedBatch.getBatch());
+        }
+        combinedValues.addAll(cursor.keyedBatches.next().getBatch());
+        sameKeyCursors.add(cursor);
+      }
+
+      for (Cursor cursor : sameKeyCursors) {
+        offer(cursor);
+      }
+      return combinedValues == null
+          ? keyedBatch : KeyedBatch.of(key, Batches.copyOf(combinedValues));
+    }
+
+    private void offer(Cursor cursor) {
+      if (cursor.keyedBatches.hasNext()) {
+        heap.add(cursor);
+      }
+    }
+  }
+}
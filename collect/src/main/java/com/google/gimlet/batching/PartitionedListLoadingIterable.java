@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.gimlet.parallel.ExecutionStrategy;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Scans a {@link ListLoadingIterable} with one loading cursor per range of
+ * ids, so that several loads are outstanding at once rather than the single
+ * one that a chain of {@link ListLoadingIterable#getNextId} calls allows.
+ * <p>
+ * The ids are cut into partitions by a sorted list of split points: the first
+ * partition begins with the initial value of the iterable and each split point
+ * begins the next one.  Every iterator starts one cursor per partition on the
+ * given {@link ExecutionStrategy}, each of which prefetches up to a fixed
+ * number of batches of its own partition.
+ * <p>
+ * A cursor stops as soon as the id of its next batch reaches the beginning of
+ * the next partition, and drops the items of its last batch that belong to
+ * the next partition.  An item belongs to a partition if the id that
+ * {@link ListLoadingIterable#getNextId} returns for it is no greater than the
+ * end of the partition, which holds as long as the id following an item is
+ * the smallest id greater than that of the item.
+ * <p>
+ * {@link #iterator()} returns the items in the same order as the underlying
+ * iterable, whereas {@link #unordered()} returns the batches of all partitions
+ * in the order in which they finish loading.
+ *
+ * @param <I> the type of id used in fetching.
+ * @param <T> the type of objects being loaded.
+ */
+public final class PartitionedListLoadingIterable<I, T>
+    implements Iterable<T> {
+
+  private final ListLoadingIterable<I, T> loadingIterable;
+  private final List<I> partitionBeginIds;
+  private final Ordering<? super I> idOrdering;
+  private final ExecutionStrategy executionStrategy;
+  private final int prefetchDepth;
+
+  private PartitionedListLoadingIterable(
+      ListLoadingIterable<I, T> loadingIterable,
+      Iterable<? extends I> splitPoints,
+      Ordering<? super I> idOrdering,
+      ExecutionStrategy executionStrategy,
+      int prefetchDepth) {
+    checkArgument(prefetchDepth > 0,
+        "Prefetch depth must be positive but was %s", prefetchDepth);
+    this.loadingIterable = checkNotNull(loadingIterable);
+    this.idOrdering = checkNotNull(idOrdering);
+    this.executionStrategy = checkNotNull(executionStrategy);
+    this.prefetchDepth = prefetchDepth;
+
+    I initialValue = checkNotNull(loadingIterable.getInitialValue(),
+        "Can't have a null initial value");
+    this.partitionBeginIds = ImmutableList.<I>builder()
+        .add(initialValue)
+        .addAll(splitPoints)
+        .build();
+    checkArgument(idOrdering.isStrictlyOrdered(partitionBeginIds),
+        "Split points must be strictly increasing and greater than the "
+            + "initial value %s but were %s", initialValue, splitPoints);
+  }
+
+  /**
+   * Returns an iterable that scans the given {@code loadingIterable} with one
+   * cursor for each partition cut by the given {@code splitPoints}, each of
+   * which prefetches up to {@code prefetchDepth} batches via the given
+   * {@code executionStrategy}.
+   */
+  public static <I, T> PartitionedListLoadingIterable<I, T> of(
+      ListLoadingIterable<I, T> loadingIterable,
+      Iterable<? extends I> splitPoints,
+      Ordering<? super I> idOrdering,
+      ExecutionStrategy executionStrategy,
+      int prefetchDepth) {
+    return new PartitionedListLoadingIterable<I, T>(loadingIterable,
+        splitPoints, idOrdering, executionStrategy, prefetchDepth);
+  }
+
+  /**
+   * Like {@link #of(ListLoadingIterable, Iterable, Ordering,
+   * ExecutionStrategy, int)}, but obtains the split points by applying the
+   * given {@code splitter} to the initial value of the
+   * {@code loadingIterable}.
+   */
+  public static <I, T> PartitionedListLoadingIterable<I, T> of(
+      ListLoadingIterable<I, T> loadingIterable,
+      Function<? super I, ? extends Iterable<? extends I>> splitter,
+      Ordering<? super I> idOrdering,
+      ExecutionStrategy executionStrategy,
+      int prefetchDepth) {
+    return of(loadingIterable,
+        splitter.apply(loadingIterable.getInitialValue()),
+        idOrdering, executionStrategy, prefetchDepth);
+  }
+
+  /** Returns the number of partitions that the ids are cut into. */
+  public int getPartitionCount() {
+    return partitionBeginIds.size();
+  }
+
+  /**
+   * Returns an iterator over the items of all partitions, in the same order
+   * as the underlying iterable.  The cursors of all partitions load
+   * concurrently, but a cursor only gets ahead of the consumer by its
+   * prefetch depth.
+   */
+  @Override public Iterator<T> iterator() {
+    final List<BatchPrefetcher<I, T>> cursors = startCursors(null);
+
+    return Batches.concat(new AbstractIterator<List<T>>() {
+      private int currentCursor;
+
+      @Override protected List<T> computeNext() {
+        while (currentCursor < cursors.size()) {
+          List<T> batch = cursors.get(currentCursor).nextBatch();
+          if (batch != null) {
+            return batch;
+          }
+          currentCursor++;
+        }
+        return endOfData();
+      }
+    });
+  }
+
+  /**
+   * Returns an iterable whose iterators return the batches of all partitions
+   * in the order in which they finish loading, so that a slow partition does
+   * not hold back the others.  Items within a batch keep their order.
+   */
+  public Iterable<T> unordered() {
+    return new Iterable<T>() {
+      @Override public Iterator<T> iterator() {
+        return Batches.concat(new UnorderedBatchIterator());
+      }
+    };
+  }
+
+  /**
+   * Starts one cursor per partition, each of which runs the given callback,
+   * if any, whenever one of its loads completes.
+   */
+  private List<BatchPrefetcher<I, T>> startCursors(
+      Function<Integer, Runnable> loadCompletionCallbacks) {
+    List<BatchPrefetcher<I, T>> cursors = Lists.newArrayList();
+    for (int i = 0; i < partitionBeginIds.size(); i++) {
+      BatchSource<I, T> batchSource = loadingIterable.newBatchSource();
+      if (i + 1 < partitionBeginIds.size()) {
+        batchSource = new BoundedBatchSource<I, T>(batchSource,
+            loadingIterable, partitionBeginIds.get(i + 1), idOrdering);
+      }
+      cursors.add(new BatchPrefetcher<I, T>(
+          batchSource,
+          executionStrategy,
+          prefetchDepth,
+          null,
+          Long.MAX_VALUE,
+          partitionBeginIds.get(i),
+          loadCompletionCallbacks == null
+              ? null : loadCompletionCallbacks.apply(i)));
+    }
+    return cursors;
+  }
+
+  /**
+   * Iterator that takes its next batch from whichever cursor reported a
+   * completed load first.
+   */
+  private class UnorderedBatchIterator extends AbstractIterator<List<T>> {
+
+    /** Indexes of cursors, one for each load that has completed. */
+    private final BlockingQueue<Integer> completedLoads =
+        new LinkedBlockingQueue<Integer>();
+    private final List<BatchPrefetcher<I, T>> cursors;
+    private final boolean[] finishedCursors;
+    private int unfinishedCursorCount;
+
+    private UnorderedBatchIterator() {
+      cursors = startCursors(new Function<Integer, Runnable>() {
+        @Override public Runnable apply(final Integer cursorIndex) {
+          return new Runnable() {
+            @Override public void run() {
+              completedLoads.add(cursorIndex);
+            }
+          };
+        }
+      });
+      finishedCursors = new boolean[cursors.size()];
+      unfinishedCursorCount = cursors.size();
+    }
+
+    @Override protected List<T> computeNext() {
+      while (unfinishedCursorCount > 0) {
+        int cursorIndex = takeCompletedLoad();
+        BatchPrefetcher<I, T> cursor = cursors.get(cursorIndex);
+        // loads that get cancelled once a cursor ends also report in.
+        if (finishedCursors[cursorIndex] || !cursor.isNextBatchReady()) {
+          continue;
+        }
+        List<T> batch = cursor.nextBatch();
+        // a cursor that handed out its last batch won't report in again.
+        if (batch == null || cursor.isExhausted()) {
+          finishedCursors[cursorIndex] = true;
+          unfinishedCursorCount--;
+        }
+        if (batch != null) {
+          return batch;
+        }
+      }
+      return endOfData();
+    }
+
+    private int takeCompletedLoad() {
+      try {
+        return completedLoads.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for a batch", e);
+      }
+    }
+  }
+
+  /**
+   * Batch source that ends its scan at an upper bound, dropping the items that
+   * lie beyond it.
+   */
+  private static final class BoundedBatchSource<I, T>
+      implements BatchSource<I, T> {
+
+    private final BatchSource<I, T> delegate;
+    private final ListLoadingIterable<I, T> loadingIterable;
+    private final I upperBound;
+    private final Ordering<? super I> idOrdering;
+
+    BoundedBatchSource(
+        BatchSource<I, T> delegate,
+        ListLoadingIterable<I, T> loadingIterable,
+        I upperBound,
+        Ordering<? super I> idOrdering) {
+      this.delegate = delegate;
+      this.loadingIterable = loadingIterable;
+      this.upperBound = upperBound;
+      this.idOrdering = idOrdering;
+    }
+
+    @Override public LoadedBatch<I, T> loadFrom(I beginId) {
+      LoadedBatch<I, T> loadedBatch = delegate.loadFrom(beginId);
+      if (loadedBatch.isEnd()) {
+        return loadedBatch;
+      }
+      List<T> batch = loadedBatch.getBatch();
+      if (!isWithinBound(batch.get(batch.size() - 1))) {
+        int itemsWithinBound = 0;
+        while (isWithinBound(batch.get(itemsWithinBound))) {
+          itemsWithinBound++;
+        }
+        return LoadedBatch.of(batch.subList(0, itemsWithinBound), null);
+      }
+      I nextId = loadedBatch.getNextId();
+      if (nextId != null && idOrdering.compare(nextId, upperBound) >= 0) {
+        return LoadedBatch.of(batch, null);
+      }
+      return loadedBatch;
+    }
+
+    @Override public boolean dependsOnEarlierLoads() {
+      return delegate.dependsOnEarlierLoads();
+    }
+
+    private boolean isWithinBound(T item) {
+      return idOrdering.compare(
+          loadingIterable.getNextId(item), upperBound) <= 0;
+    }
+  }
+}
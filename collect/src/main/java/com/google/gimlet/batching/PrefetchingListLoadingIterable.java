@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.gimlet.parallel.ExecutionStrategy;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An {@link Iterable} over the same items as a given
+ * {@link ListLoadingIterable}, but whose iterators read ahead: as soon as a
+ * batch arrives, loading of the batch after it is started on an
+ * {@link ExecutionStrategy}, so that the consumer processes one batch while
+ * the next ones are being loaded.
+ * <p>
+ * The prefetch depth bounds how many batches are loaded, or being loaded,
+ * ahead of the batch the consumer is working on.  A depth of one overlaps
+ * each load with the processing of the previous batch, which is enough when
+ * loading and processing take roughly the same time.
+ * <p>
+ * When batches vary a lot in size, a count of batches says little about the
+ * memory they take up.  A {@link Weigher} may then also bound the total
+ * weight of the batches loaded ahead: loading pauses while the buffered
+ * batches weigh at least the given maximum, and resumes once the consumer
+ * has taken enough of them.
+ * <p>
+ * Note that the loads of a single iterator still happen one after the other,
+ * since the id of each batch depends on the batch before it.  Each call to
+ * {@link #iterator()} starts its own chain of loads.
+ *
+ * @param <I> the type of id used in fetching.
+ * @param <T> the type of objects being loaded.
+ */
+public final class PrefetchingListLoadingIterable<I, T>
+    implements Iterable<T> {
+
+  private final ListLoadingIterable<I, T> loadingIterable;
+  private final ExecutionStrategy executionStrategy;
+  private final int prefetchDepth;
+  private final Weigher<? super T> weigher;
+  private final long maxBufferedWeight;
+
+  private PrefetchingListLoadingIterable(
+      ListLoadingIterable<I, T> loadingIterable,
+      ExecutionStrategy executionStrategy,
+      int prefetchDepth,
+      Weigher<? super T> weigher,
+      long maxBufferedWeight) {
+    checkArgument(prefetchDepth > 0,
+        "Prefetch depth must be positive but was %s", prefetchDepth);
+    checkArgument(maxBufferedWeight > 0,
+        "Max buffered weight must be positive but was %s", maxBufferedWeight);
+    this.loadingIterable = checkNotNull(loadingIterable);
+    this.executionStrategy = checkNotNull(executionStrategy);
+    this.prefetchDepth = prefetchDepth;
+    this.weigher = weigher;
+    this.maxBufferedWeight = maxBufferedWeight;
+  }
+
+  /**
+   * Returns an iterable that prefetches up to {@code prefetchDepth} batches
+   * of the given {@code loadingIterable}, loading them via the given
+   * {@code executionStrategy}.
+   */
+  public static <I, T> PrefetchingListLoadingIterable<I, T> of(
+      ListLoadingIterable<I, T> loadingIterable,
+      ExecutionStrategy executionStrategy,
+      int prefetchDepth) {
+    return new PrefetchingListLoadingIterable<I, T>(
+        loadingIterable, executionStrategy, prefetchDepth, null,
+        Long.MAX_VALUE);
+  }
+
+  /**
+   * Returns an iterable that prefetches up to {@code prefetchDepth} batches
+   * of the given {@code loadingIterable}, loading them via the given
+   * {@code executionStrategy}, but that starts no further load while the
+   * loaded batches that the consumer has not taken yet weigh
+   * {@code maxBufferedWeight} or more in total according to the given
+   * {@code weigher}.
+   */
+  public static <I, T> PrefetchingListLoadingIterable<I, T> of(
+      ListLoadingIterable<I, T> loadingIterable,
+      ExecutionStrategy executionStrategy,
+      int prefetchDepth,
+      Weigher<? super T> weigher,
+      long maxBufferedWeight) {
+    return new PrefetchingListLoadingIterable<I, T>(
+        loadingIterable, executionStrategy, prefetchDepth,
+        checkNotNull(weigher), maxBufferedWeight);
+  }
+
+  @Override public Iterator<T> iterator() {
+    return Batches.concat(batches().iterator());
+  }
+
+  /**
+   * Returns a view of this iterable that hands out whole batches rather than
+   * one item at a time, while still loading them ahead of the consumer.
+   */
+  public BatchIterable<T> batches() {
+    return new BatchIterable<T>() {
+      @Override public Iterator<Batch<? extends T>> iterator() {
+        final BatchPrefetcher<I, T> prefetcher = newPrefetcher();
+
+        return new AbstractIterator<Batch<? extends T>>() {
+          @Override protected Batch<? extends T> computeNext() {
+            List<T> batch = nextBatch(prefetcher);
+            return batch == null
+                ? endOfData() : Batches.forCollection(batch);
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Takes the next batch from the given {@code prefetcher}, telling the load
+   * listener of the underlying iterable how long that took.
+   */
+  private List<T> nextBatch(BatchPrefetcher<I, T> prefetcher) {
+    long waitStartNanos = System.nanoTime();
+    List<T> batch = prefetcher.nextBatch();
+    loadingIterable.getLoadListener().recordWait(
+        System.nanoTime() - waitStartNanos);
+    return batch;
+  }
+
+  private BatchPrefetcher<I, T> newPrefetcher() {
+    return new BatchPrefetcher<I, T>(
+        loadingIterable.newBatchSource(),
+        executionStrategy,
+        prefetchDepth,
+        weigher,
+        maxBufferedWeight,
+        loadingIterable.getInitialValue(),
+        null);
+  }
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.gimlet.parallel.CallableTransform;
+import com.google.gimlet.parallel.CallableTransforms;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ListLoadingIterable} over the records of a local file, each of
+ * which is a big-endian four byte length followed by that many bytes, as
+ * written by {@link java.io.DataOutputStream#writeInt} and
+ * {@link java.io.DataOutputStream#write(byte[])}.  Ids are byte offsets into
+ * the file, so a scan may begin at the offset of any record.
+ * <p>
+ * Each scan reads the file through a memory-mapped window of its own, of a
+ * fixed size, that rolls forward as the scan moves through the file, so that
+ * files of any size can be scanned without mapping all of them at once, and
+ * concurrent scans don't move each other's window.  Records are handed out as
+ * {@link MappedRecord}s that view the mapped bytes rather than copy them.  A
+ * window that a record is still referenced from stays mapped until the
+ * record is garbage collected.
+ * <p>
+ * The file must not change while it is being scanned.
+ */
+public final class RecordFileLoadingIterable
+    extends ListLoadingIterable<Long, MappedRecord> {
+
+  static final int LENGTH_PREFIX_SIZE = 4;
+  private static final int DEFAULT_WINDOW_SIZE = 64 << 20;
+
+  private final File file;
+  private final int batchSize;
+  private final int windowSize;
+  private final AtomicInteger mappedWindowCount = new AtomicInteger();
+
+  private RecordFileLoadingIterable(
+      File file,
+      CallableTransform loadingCallableTransform,
+      int batchSize,
+      int windowSize) {
+    super(0L, loadingCallableTransform);
+    checkArgument(batchSize > 0,
+        "Batch size must be positive but was %s", batchSize);
+    checkArgument(windowSize > 0,
+        "Window size must be positive but was %s", windowSize);
+    this.file = checkNotNull(file);
+    this.batchSize = batchSize;
+    this.windowSize = windowSize;
+  }
+
+  /**
+   * Returns an iterable over the records of the given {@code file}, which
+   * loads up to {@code batchSize} of them at a time through a 64MB window.
+   */
+  public static RecordFileLoadingIterable of(File file, int batchSize) {
+    return new RecordFileLoadingIterable(file,
+        CallableTransforms.getIdentityTransform(), batchSize,
+        DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * Returns an iterable over the records of the given {@code file}, which
+   * loads up to {@code batchSize} of them at a time through the given
+   * {@code loadingCallableTransform}, and which maps {@code windowSize} bytes
+   * of the file at a time.  A record that is larger than the window is
+   * mapped on its own.
+   */
+  public static RecordFileLoadingIterable of(
+      File file,
+      CallableTransform loadingCallableTransform,
+      int batchSize,
+      int windowSize) {
+    return new RecordFileLoadingIterable(
+        file, loadingCallableTransform, batchSize, windowSize);
+  }
+
+  @Override protected Long getNextId(MappedRecord previousEnd) {
+    return previousEnd.getEndOffset();
+  }
+
+  /**
+   * Loads the records that begin at {@code beginIdForBatch} through a window
+   * of its own.  Scans don't call this, but load through the window of their
+   * batch source instead.
+   */
+  @Override protected List<MappedRecord> loadNextBatch(Long beginIdForBatch) {
+    return new ScanWindow().loadFrom(beginIdForBatch);
+  }
+
+  @Override BatchSource<Long, MappedRecord> newBatchSource() {
+    final ScanWindow scanWindow = new ScanWindow();
+    return new BatchSource<Long, MappedRecord>() {
+      @Override public LoadedBatch<Long, MappedRecord> loadFrom(
+          final Long beginId) {
+        List<MappedRecord> batch = load(beginId,
+            new Callable<List<MappedRecord>>() {
+              @Override public List<MappedRecord> call() {
+                return scanWindow.loadFrom(beginId);
+              }
+            });
+        return LoadedBatch.of(batch, nextIdAfter(batch));
+      }
+
+      @Override public boolean dependsOnEarlierLoads() {
+        return false;
+      }
+    };
+  }
+
+  /** Returns how many windows of the file have been mapped so far. */
+  @VisibleForTesting
+  int getMappedWindowCount() {
+    return mappedWindowCount.get();
+  }
+
+  /**
+   * The mapped window of a single scan, which is loaded from one batch at a
+   * time.
+   */
+  private class ScanWindow {
+    /** The mapped part of the file, or {@code null} before the first load. */
+    private ByteBuffer window;
+    private long windowStart;
+
+    /**
+     * Loads the records that begin at {@code beginIdForBatch}, up to the
+     * batch size of them, or fewer if the window ends before them.
+     */
+    List<MappedRecord> loadFrom(long beginIdForBatch) {
+      ByteBuffer buffer = windowAt(beginIdForBatch);
+      if (buffer == null) {
+        return ImmutableList.of();
+      }
+
+      List<MappedRecord> records = Lists.newArrayList();
+      long offset = beginIdForBatch;
+      while (records.size() < batchSize
+          && buffer.remaining() >= LENGTH_PREFIX_SIZE) {
+        int position = buffer.position();
+        int length = readLength(buffer, offset);
+        if (buffer.remaining() - LENGTH_PREFIX_SIZE < length) {
+          break;
+        }
+        buffer.position(position + LENGTH_PREFIX_SIZE);
+        buffer.limit(position + LENGTH_PREFIX_SIZE + length);
+        records.add(new MappedRecord(offset, buffer.slice()));
+        buffer.limit(buffer.capacity());
+        buffer.position(position + LENGTH_PREFIX_SIZE + length);
+        offset += LENGTH_PREFIX_SIZE + length;
+      }
+      return records;
+    }
+
+    /**
+     * Returns a buffer over the mapped file that is positioned at the given
+     * {@code offset} and that holds at least the whole record there, or
+     * {@code null} if the offset is at the end of the file.  Rolls the window
+     * forward to the offset if the current one doesn't hold that record.
+     */
+    private ByteBuffer windowAt(long offset) {
+      if (window == null || !holdsRecordAt(offset)) {
+        mapWindowAt(offset);
+        if (window == null) {
+          return null;
+        }
+      }
+      ByteBuffer buffer = window.duplicate();
+      buffer.position((int) (offset - windowStart));
+      return buffer;
+    }
+
+    private boolean holdsRecordAt(long offset) {
+      long position = offset - windowStart;
+      if (position < 0 || position > window.capacity() - LENGTH_PREFIX_SIZE) {
+        return false;
+      }
+      ByteBuffer buffer = window.duplicate();
+      buffer.position((int) position);
+      return buffer.remaining() - LENGTH_PREFIX_SIZE
+          >= readLength(buffer, offset);
+    }
+
+    /**
+     * Maps the window that begins at the given {@code offset}, which is large
+     * enough to hold the whole record there, or sets the window to
+     * {@code null} if the offset is at the end of the file.
+     */
+    private void mapWindowAt(long offset) {
+      RandomAccessFile randomAccessFile = null;
+      try {
+        randomAccessFile = new RandomAccessFile(file, "r");
+        long bytesLeft = randomAccessFile.length() - offset;
+        if (bytesLeft <= 0) {
+          window = null;
+          return;
+        }
+        if (bytesLeft < LENGTH_PREFIX_SIZE) {
+          throw new IllegalStateException(String.format(
+              "Length of record at %s is cut off by the end of %s",
+              offset, file));
+        }
+        randomAccessFile.seek(offset);
+        long recordSize =
+            LENGTH_PREFIX_SIZE + (long) randomAccessFile.readInt();
+        if (recordSize < LENGTH_PREFIX_SIZE || recordSize > bytesLeft) {
+          throw new IllegalStateException(String.format(
+              "Record at %s runs past the end of %s", offset, file));
+        }
+        if (recordSize > Integer.MAX_VALUE) {
+          throw new IllegalStateException(String.format(
+              "Record at %s of %s is too large to map", offset, file));
+        }
+        long mappedSize =
+            Math.min(Math.max(windowSize, recordSize), bytesLeft);
+        window = randomAccessFile.getChannel().map(
+            MapMode.READ_ONLY, offset, mappedSize);
+        windowStart = offset;
+        mappedWindowCount.incrementAndGet();
+      } catch (IOException e) {
+        throw new RuntimeException(
+            "Could not map " + file + " at offset " + offset, e);
+      } finally {
+        Closeables.closeQuietly(randomAccessFile);
+      }
+    }
+  }
+
+  /**
+   * Reads the length prefix at the position of the given {@code buffer},
+   * without moving it.
+   */
+  private int readLength(ByteBuffer buffer, long offset) {
+    int length = buffer.getInt(buffer.position());
+    if (length < 0) {
+      throw new IllegalStateException(String.format(
+          "Record at %s of %s has negative length %s", offset, file, length));
+    }
+    return length;
+  }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * A histogram over the most recent values recorded to it: once it holds a
+ * full window of values, each new value replaces the oldest one.  Besides the
+ * summary statistics of the window, it tells how the window is spread over
+ * buckets of any bounds.
+ * <p>
+ * Instances are thread safe.
+ */
+public final class RollingHistogram {
+
+  // All fields are guarded by this.
+  private final long[] window;
+  /** The index in the window that the next value is recorded at. */
+  private int nextIndex;
+  private long totalCount;
+
+  RollingHistogram(int windowSize) {
+    checkArgument(windowSize > 0,
+        "Window size must be positive but was %s", windowSize);
+    this.window = new long[windowSize];
+  }
+
+  /** Records the given {@code value}, evicting the oldest one if need be. */
+  public synchronized void record(long value) {
+    window[nextIndex] = value;
+    nextIndex = (nextIndex + 1) % window.length;
+    totalCount++;
+  }
+
+  /** Returns how many values the window holds. */
+  public synchronized int getCount() {
+    return (int) Math.min(totalCount, window.length);
+  }
+
+  /** Returns how many values were ever recorded, including evicted ones. */
+  public synchronized long getTotalCount() {
+    return totalCount;
+  }
+
+  /** Returns the smallest value in the window, or 0 if it is empty. */
+  public synchronized long getMin() {
+    long[] values = sortedValues();
+    return values.length == 0 ? 0 : values[0];
+  }
+
+  /** Returns the largest value in the window, or 0 if it is empty. */
+  public synchronized long getMax() {
+    long[] values = sortedValues();
+    return values.length == 0 ? 0 : values[values.length - 1];
+  }
+
+  /** Returns the mean of the values in the window, or 0 if it is empty. */
+  public synchronized double getMean() {
+    int count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+    double sum = 0;
+    for (int i = 0; i < count; i++) {
+      sum += window[i];
+    }
+    return sum / count;
+  }
+
+  /**
+   * Returns the smallest value in the window that at least the given
+   * {@code percentile} of the values do not exceed, or 0 if the window is
+   * empty.
+   *
+   * @param percentile a number from 0 to 100
+   */
+  public synchronized long getPercentile(double percentile) {
+    checkArgument(percentile >= 0 && percentile <= 100,
+        "Percentile must be from 0 to 100 but was %s", percentile);
+    long[] values = sortedValues();
+    if (values.length == 0) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(percentile / 100 * values.length);
+    return values[Math.max(rank, 1) - 1];
+  }
+
+  /**
+   * Returns how many values in the window fall into each of the buckets
+   * delimited by the given {@code upperBounds}: the first count is of the
+   * values up to the first bound, each following count is of the values above
+   * the previous bound and up to the next one, and the last count is of the
+   * values above all bounds.
+   *
+   * @param upperBounds the inclusive upper bounds of the buckets, ascending
+   */
+  public synchronized int[] getBucketCounts(long... upperBounds) {
+    for (int i = 1; i < upperBounds.length; i++) {
+      checkArgument(upperBounds[i - 1] < upperBounds[i],
+          "Upper bounds must be ascending but were %s",
+          Arrays.toString(upperBounds));
+    }
+    int[] bucketCounts = new int[upperBounds.length + 1];
+    int count = getCount();
+    for (int i = 0; i < count; i++) {
+      int bucket = Arrays.binarySearch(upperBounds, window[i]);
+      bucketCounts[bucket >= 0 ? bucket : -bucket - 1]++;
+    }
+    return bucketCounts;
+  }
+
+  private long[] sortedValues() {
+    long[] values = Arrays.copyOf(window, getCount());
+    Arrays.sort(values);
+    return values;
+  }
+
+  @Override public synchronized String toString() {
+    return String.format("{count=%s, mean=%.1f, p50=%s, p99=%s, max=%s}",
+        getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import java.util.Iterator;
+
+/**
+ * An iterator over the items of a {@link ListLoadingIterable} that can be
+ * moved to another id between items, so that items that aren't needed are
+ * never loaded.
+ *
+ * @param <I> the type of id used in fetching.
+ * @param <T> the type of objects being loaded.
+ * @see ListLoadingIterable#seekableIterator
+ */
+public interface SeekableIterator<I, T> extends Iterator<T> {
+
+  /**
+   * Drops the rest of the current batch, so that the next item is the first
+   * one of a load that begins with the given {@code id}.  The id may lie
+   * before or after the current position.
+   */
+  void seek(I id);
+
+  /**
+   * Moves forward so that the next item is the first one at or after the
+   * given {@code id}: items of the current batch before it are skipped, and
+   * a new load beginning with the id is only started if the id lies beyond
+   * the current batch.  Ids that don't lie ahead leave the iterator where it
+   * is.
+   *
+   * @throws IllegalStateException if the iterator was created without an id
+   * comparator
+   */
+  void skipTo(I id);
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * An {@link Iterable} over the same items as a given
+ * {@link ListLoadingIterable}, whose iterators share one physical scan when
+ * they are used at the same time, rather than each loading every batch
+ * itself.
+ * <p>
+ * The shared scan loads each batch once, in the thread of the first iterator
+ * that asks for it; iterators that ask for the same batch meanwhile wait for
+ * that load instead of starting their own.  The most recently loaded batches
+ * stay in a window of the given size, so that iterators that lag slightly
+ * behind the fastest one reuse them.  An iterator that falls further behind
+ * than the window leaves the shared scan and loads the rest of its batches
+ * itself, beginning with the id of the batch it needs next.  If the batch
+ * source of the shared scan held on to items of earlier loads when that
+ * batch was loaded, as a {@link MapLoadingIterable} does with the key it
+ * carries over, the iterator begins instead with the id that follows the
+ * last item it was handed, which {@link ListLoadingIterable#getNextId}
+ * gives, so that it loads those items again rather than miss them.
+ * <p>
+ * A new iterator joins the current shared scan if the first batch of that
+ * scan is still in the window or has yet to be loaded, and the scan has yet
+ * to load its last batch; otherwise it starts a new shared scan.  Once every
+ * iterator of a shared scan has reached its end or left the scan, its window
+ * is dropped, so that later scans load their batches afresh rather than
+ * reuse stale ones.  An iterator that is abandoned before then still counts
+ * as using its scan, which keeps the window, and lets later iterators join
+ * the scan and reuse its batches; iterators should therefore be drained.
+ *
+ * @param <I> the type of id used in fetching.
+ * @param <T> the type of objects being loaded.
+ */
+public final class SharedScanListLoadingIterable<I, T>
+    implements Iterable<T> {
+
+  private final ListLoadingIterable<I, T> loadingIterable;
+  private final int windowSize;
+
+  // All fields below are guarded by this.
+  /** The scan that new iterators join, or {@code null} if there is none. */
+  private SharedScan currentScan;
+
+  private SharedScanListLoadingIterable(
+      ListLoadingIterable<I, T> loadingIterable, int windowSize) {
+    checkArgument(windowSize > 0,
+        "Window size must be positive but was %s", windowSize);
+    this.loadingIterable = checkNotNull(loadingIterable);
+    this.windowSize = windowSize;
+  }
+
+  /**
+   * Returns an iterable whose concurrent iterators share the loads of the
+   * given {@code loadingIterable}, keeping the last {@code windowSize} loaded
+   * batches around for iterators that lag behind.
+   */
+  public static <I, T> SharedScanListLoadingIterable<I, T> of(
+      ListLoadingIterable<I, T> loadingIterable, int windowSize) {
+    return new SharedScanListLoadingIterable<I, T>(
+        loadingIterable, windowSize);
+  }
+
+  @Override public Iterator<T> iterator() {
+    return Batches.concat(batches().iterator());
+  }
+
+  /**
+   * Returns a view of this iterable that hands out whole batches rather than
+   * one item at a time, and whose iterators share loads in the same way.
+   */
+  public BatchIterable<T> batches() {
+    return new BatchIterable<T>() {
+      @Override public BatchIterator<T> iterator() {
+        return new SharedScanIterator(joinScan());
+      }
+    };
+  }
+
+  private synchronized SharedScan joinScan() {
+    if (currentScan == null || !currentScan.isFirstBatchAvailable()
+        || currentScan.isLastBatchLoaded()) {
+      currentScan = new SharedScan();
+    }
+    currentScan.activeIterators++;
+    return currentScan;
+  }
+
+  /**
+   * Is called once by each iterator of the given {@code sharedScan} when it
+   * is done with it, and drops the scan once no iterator uses it.
+   */
+  private synchronized void leaveScan(SharedScan sharedScan) {
+    if (--sharedScan.activeIterators == 0) {
+      if (currentScan == sharedScan) {
+        currentScan = null;
+      }
+      sharedScan.dropWindow();
+    }
+  }
+
+  /**
+   * A single chain of loads, whose batches are numbered by their position in
+   * the scan.
+   */
+  private class SharedScan {
+
+    private final BatchSource<I, T> batchSource =
+        loadingIterable.newBatchSource();
+
+    /**
+     * How many iterators use this scan.  Guarded by the enclosing iterable.
+     */
+    private int activeIterators;
+
+    // All fields below are guarded by this.
+    /** The loads of the batches in the window, in order of position. */
+    private final LinkedList<FutureTask<ScanBatch>> window =
+        Lists.newLinkedList();
+    /** The position of the first batch in the window. */
+    private int windowStart;
+    /** The id of the batch after the last one loaded, or null at the end. */
+    private I idForNextLoad = checkNotNull(loadingIterable.getInitialValue(),
+        "Can't have a null initial value");
+    /**
+     * The id from which a batch source of its own loads the batches after
+     * the last one loaded.
+     */
+    private I restartIdForNextLoad = idForNextLoad;
+
+    /**
+     * Returns whether the first batch of the scan is still in the window, or
+     * has yet to be loaded.
+     */
+    synchronized boolean isFirstBatchAvailable() {
+      return windowStart == 0;
+    }
+
+    /** Returns whether the last batch of the scan has been loaded. */
+    synchronized boolean isLastBatchLoaded() {
+      return idForNextLoad == null;
+    }
+
+    /** Lets go of the batches in the window. */
+    synchronized void dropWindow() {
+      windowStart += window.size();
+      window.clear();
+    }
+
+    /**
+     * Returns the batch at the given position, loading it if no iterator has
+     * asked for it yet, or {@code null} if it has already left the window.
+     * An iterator only asks for a position once it has the batch before it.
+     */
+    ScanBatch get(int position) {
+      FutureTask<ScanBatch> load;
+      boolean isNewLoad = false;
+      synchronized (this) {
+        if (position < windowStart) {
+          return null;
+        }
+        if (position < windowStart + window.size()) {
+          load = window.get(position - windowStart);
+        } else if (idForNextLoad == null) {
+          return new ScanBatch(LoadedBatch.<I, T>end(), null);
+        } else {
+          // the oldest batch only leaves the window once this load succeeds.
+          load = newLoad(idForNextLoad);
+          window.add(load);
+          isNewLoad = true;
+        }
+      }
+
+      if (isNewLoad) {
+        load.run();
+      }
+      return BatchingFutures.getUnchecked(load);
+    }
+
+    private FutureTask<ScanBatch> newLoad(final I beginId) {
+      return new FutureTask<ScanBatch>(
+          new Callable<ScanBatch>() {
+            @Override public ScanBatch call() {
+              LoadedBatch<I, T> loadedBatch;
+              try {
+                loadedBatch = batchSource.loadFrom(beginId);
+              } catch (RuntimeException e) {
+                // drop the failed load, which is always the last one, so
+                // that the next iterator to get here tries it again.
+                synchronized (SharedScan.this) {
+                  window.removeLast();
+                }
+                throw e;
+              }
+              synchronized (SharedScan.this) {
+                idForNextLoad =
+                    loadedBatch.isEnd() ? null : loadedBatch.getNextId();
+                if (!batchSource.dependsOnEarlierLoads()) {
+                  restartIdForNextLoad = idForNextLoad;
+                } else if (!loadedBatch.getBatch().isEmpty()) {
+                  // the next load begins past items that were held back.
+                  restartIdForNextLoad = loadingIterable.getNextId(
+                      Iterables.getLast(loadedBatch.getBatch()));
+                }
+                if (window.size() > windowSize) {
+                  window.removeFirst();
+                  windowStart++;
+                }
+                return new ScanBatch(loadedBatch, restartIdForNextLoad);
+              }
+            }
+          });
+    }
+  }
+
+  /** A batch of a shared scan. */
+  private class ScanBatch {
+    final LoadedBatch<I, T> loadedBatch;
+    /**
+     * The id from which a batch source of its own loads the batches after
+     * this one.
+     */
+    final I restartId;
+
+    ScanBatch(LoadedBatch<I, T> loadedBatch, I restartId) {
+      this.loadedBatch = loadedBatch;
+      this.restartId = restartId;
+    }
+  }
+
+  /**
+   * Hands out the batches of a shared scan until it falls behind the window,
+   * and then those of a scan of its own.
+   */
+  private class SharedScanIterator
+      extends AbstractIterator<Batch<? extends T>>
+      implements BatchIterator<T> {
+
+    private final SharedScan sharedScan;
+    private int position;
+    private I idForNextBatch;
+    private BatchIterator<T> ownScan;
+    private boolean leftSharedScan;
+
+    SharedScanIterator(SharedScan sharedScan) {
+      this.sharedScan = sharedScan;
+      this.idForNextBatch = loadingIterable.getInitialValue();
+    }
+
+    @Override protected Batch<? extends T> computeNext() {
+      if (ownScan == null) {
+        long waitStartNanos = System.nanoTime();
+        ScanBatch scanBatch = sharedScan.get(position);
+        if (scanBatch != null) {
+          LoadedBatch<I, T> loadedBatch = scanBatch.loadedBatch;
+          loadingIterable.getLoadListener().recordWait(
+              System.nanoTime() - waitStartNanos);
+          if (loadedBatch.isEnd()) {
+            leaveSharedScan();
+            return endOfData();
+          }
+          position++;
+          idForNextBatch = scanBatch.restartId;
+          return Batches.forCollection(loadedBatch.getBatch());
+        }
+        leaveSharedScan();
+        ownScan = new LoadingBatchIterator<I, T>(
+            loadingIterable.newBatchSource(), idForNextBatch,
+            loadingIterable.getLoadListener());
+      }
+      return ownScan.hasNext() ? ownScan.next() : endOfData();
+    }
+
+    private void leaveSharedScan() {
+      if (!leftSharedScan) {
+        leftSharedScan = true;
+        leaveScan(sharedScan);
+      }
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.PeekingIterator;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An {@link Iterable} that joins two streams of
+ * {@link KeyedBatch keyed batches}, both sorted by key, by walking them side
+ * by side: whichever side is behind is advanced until the keys meet, so only
+ * the values of the current key of each side are held at a time.
+ * <p>
+ * Each key that the join keeps yields a {@link JoinedBatch} with the values
+ * of both sides for that key.  A key may come as consecutive keyed batches
+ * from one side, as a {@link MapLoadingIterable} returns keys with more
+ * values than a load holds.  Those of the left side are streamed: each
+ * yields a joined batch of its own, paired with all values that the right
+ * side has for the key, so the left side's values are never held at once.
+ * Those of the right side are combined into one batch, so it is the right
+ * side's keys that must fit in memory, and the side with the wider keys
+ * belongs on the left.  Keys that only the right side has, in full outer
+ * joins, are streamed the same way as the left side's.
+ * <p>
+ * Inner joins keep the keys that both sides have, left joins keep all keys of
+ * the left side, and full outer joins keep all keys of either side.
+ * <p>
+ * Each side is read through its own iterator, and both iterators are created
+ * before either is read, so that sides wrapped in a
+ * {@link PrefetchingListLoadingIterable} load their batches at the same time.
+ *
+ * @param <K> the type of keys.
+ * @param <L> the type of values of the left side.
+ * @param <R> the type of values of the right side.
+ */
+public final class SortMergeJoinIterable<K, L, R>
+    implements Iterable<JoinedBatch<K, L, R>> {
+
+  private enum JoinType { INNER, LEFT, FULL_OUTER }
+
+  private final Ordering<? super K> ordering;
+  private final Iterable<KeyedBatch<K, L>> left;
+  private final Iterable<KeyedBatch<K, R>> right;
+  private final JoinType joinType;
+
+  private SortMergeJoinIterable(
+      Ordering<? super K> ordering,
+      Iterable<KeyedBatch<K, L>> left,
+      Iterable<KeyedBatch<K, R>> right,
+      JoinType joinType) {
+    this.ordering = checkNotNull(ordering);
+    this.left = checkNotNull(left);
+    this.right = checkNotNull(right);
+    this.joinType = joinType;
+  }
+
+  /**
+   * Returns the inner join of the given sides, both of which must be sorted
+   * by {@code ordering}.
+   */
+  public static <K, L, R> SortMergeJoinIterable<K, L, R> innerJoin(
+      Ordering<? super K> ordering,
+      Iterable<KeyedBatch<K, L>> left,
+      Iterable<KeyedBatch<K, R>> right) {
+    return new SortMergeJoinIterable<K, L, R>(
+        ordering, left, right, JoinType.INNER);
+  }
+
+  /**
+   * Returns the left outer join of the given sides, both of which must be
+   * sorted by {@code ordering}.
+   */
+  public static <K, L, R> SortMergeJoinIterable<K, L, R> leftJoin(
+      Ordering<? super K> ordering,
+      Iterable<KeyedBatch<K, L>> left,
+      Iterable<KeyedBatch<K, R>> right) {
+    return new SortMergeJoinIterable<K, L, R>(
+        ordering, left, right, JoinType.LEFT);
+  }
+
+  /**
+   * Returns the full outer join of the given sides, both of which must be
+   * sorted by {@code ordering}.
+   */
+  public static <K, L, R> SortMergeJoinIterable<K, L, R> fullOuterJoin(
+      Ordering<? super K> ordering,
+      Iterable<KeyedBatch<K, L>> left,
+      Iterable<KeyedBatch<K, R>> right) {
+    return new SortMergeJoinIterable<K, L, R>(
+        ordering, left, right, JoinType.FULL_OUTER);
+  }
+
+  @Override public Iterator<JoinedBatch<K, L, R>> iterator() {
+    final Side<L> leftSide = new Side<L>(left.iterator());
+    final Side<R> rightSide = new Side<R>(right.iterator());
+
+    return new AbstractIterator<JoinedBatch<K, L, R>>() {
+      /** The key whose remaining keyed batches are being streamed, if any. */
+      private K streamedKey;
+      /** Whether the left side is streamed, rather than the right one. */
+      private boolean streamingLeft;
+      /** All right values of the key, paired with each left keyed batch. */
+      private Batch<? extends R> rightValues;
+
+      @Override protected JoinedBatch<K, L, R> computeNext() {
+        if (streamedKey != null) {
+          if (streamingLeft && leftSide.hasNextOf(streamedKey)) {
+            return JoinedBatch.of(
+                streamedKey, leftSide.nextChunk(), rightValues);
+          }
+          if (!streamingLeft && rightSide.hasNextOf(streamedKey)) {
+            return JoinedBatch.of(
+                streamedKey, Batches.<L>empty(), rightSide.nextChunk());
+          }
+          streamedKey = null;
+          rightValues = null;
+        }
+
+        while (true) {
+          boolean hasLeft = leftSide.hasNext();
+          boolean hasRight = rightSide.hasNext();
+          if (!hasLeft && !hasRight) {
+            return endOfData();
+          }
+
+          int comparison;
+          if (!hasLeft) {
+            comparison = 1;
+          } else if (!hasRight) {
+            comparison = -1;
+          } else {
+            comparison =
+                ordering.compare(leftSide.nextKey(), rightSide.nextKey());
+          }
+
+          if (comparison == 0) {
+            return streamLeft(rightSide.next());
+          }
+          if (comparison < 0) {
+            // only the left side has this key.
+            if (joinType == JoinType.INNER && !hasRight) {
+              return endOfData();
+            }
+            if (joinType != JoinType.INNER) {
+              return streamLeft(Batches.<R>empty());
+            }
+            leftSide.skipKey();
+          } else {
+            // only the right side has this key.
+            if (joinType != JoinType.FULL_OUTER && !hasLeft) {
+              return endOfData();
+            }
+            if (joinType == JoinType.FULL_OUTER) {
+              streamedKey = rightSide.nextKey();
+              streamingLeft = false;
+              return JoinedBatch.of(
+                  streamedKey, Batches.<L>empty(), rightSide.nextChunk());
+            }
+            rightSide.skipKey();
+          }
+        }
+      }
+
+      /**
+       * Returns the first left keyed batch of the next key, paired with the
+       * given right values, and streams the rest of them from then on.
+       */
+      private JoinedBatch<K, L, R> streamLeft(Batch<? extends R> right) {
+        streamedKey = leftSide.nextKey();
+        streamingLeft = true;
+        rightValues = right;
+        return JoinedBatch.of(streamedKey, leftSide.nextChunk(), rightValues);
+      }
+    };
+  }
+
+  /** One side of the join, handing out all values of one key at a time. */
+  private class Side<V> {
+    private final PeekingIterator<KeyedBatch<K, V>> keyedBatches;
+
+    Side(Iterator<KeyedBatch<K, V>> keyedBatches) {
+      this.keyedBatches = Iterators.peekingIterator(keyedBatches);
+    }
+
+    boolean hasNext() {
+      return keyedBatches.hasNext();
+    }
+
+    K nextKey() {
+      return keyedBatches.peek().getKey();
+    }
+
+    /** Returns whether the next keyed batch is for the given key. */
+    boolean hasNextOf(K key) {
+      return keyedBatches.hasNext() && ordering.compare(key, nextKey()) == 0;
+    }
+
+    /** Returns the values of the next keyed batch. */
+    Batch<? extends V> nextChunk() {
+      return keyedBatches.next().getBatch();
+    }
+
+    /** Skips the keyed batches of the next key. */
+    void skipKey() {
+      K key = keyedBatches.next().getKey();
+      while (hasNextOf(key)) {
+        keyedBatches.next();
+      }
+    }
+
+    /** Returns the values of the next key, combining consecutive batches. */
+    Batch<? extends V> next() {
+      KeyedBatch<K, V> keyedBatch = keyedBatches.next();
+      K key = keyedBatch.getKey();
+      List<V> values = null;
+      while (hasNextOf(key)) {
+        if (values == null) {
+          values = Lists.<V>newArrayList(keyedBatch.getBatch());
+        }
+        values.addAll(keyedBatches.next().getBatch());
+      }
+      return values == null ? keyedBatch.getBatch() : Batches.copyOf(values);
+    }
+  }
+}
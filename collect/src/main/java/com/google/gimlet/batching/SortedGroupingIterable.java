@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An {@link Iterable} of {@link KeyedBatch keyed batches} that groups a
+ * stream of records already sorted by key, cutting a new keyed batch each
+ * time the key changes.
+ * <p>
+ * Unlike {@link MapLoadingIterable}, this needs no intermediate map and no
+ * sorting: each record is looked at once, and only the values of the current
+ * key are held at a time.  Since the records are read as a single stream,
+ * the records of one key may span several loads of the underlying iterable,
+ * typically a {@link ListLoadingIterable} over the flat records, without
+ * having to reload any of them.
+ * <p>
+ * All records of a key must be adjacent in the stream, which sorting them
+ * by key guarantees; keys are compared with {@link Object#equals}.  A bound
+ * on the number of values per batch may be given, in which case a key with
+ * more values is returned as consecutive keyed batches with the same key.
+ *
+ * @param <R> the type of records being grouped.
+ * @param <K> the type of keys.
+ * @param <V> the type of values.
+ */
+public final class SortedGroupingIterable<R, K, V>
+    implements Iterable<KeyedBatch<K, V>> {
+
+  private final Iterable<? extends R> records;
+  private final Function<? super R, ? extends K> keyFunction;
+  private final Function<? super R, ? extends V> valueFunction;
+  private final int maxBatchSize;
+
+  private SortedGroupingIterable(
+      Iterable<? extends R> records,
+      Function<? super R, ? extends K> keyFunction,
+      Function<? super R, ? extends V> valueFunction,
+      int maxBatchSize) {
+    checkArgument(maxBatchSize > 0,
+        "Max batch size must be positive but was %s", maxBatchSize);
+    this.records = checkNotNull(records);
+    this.keyFunction = checkNotNull(keyFunction);
+    this.valueFunction = checkNotNull(valueFunction);
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Returns an iterable that groups the given {@code records}, sorted by the
+   * key that {@code keyFunction} extracts, into one keyed batch per key of
+   * the values that {@code valueFunction} extracts.
+   */
+  public static <R, K, V> SortedGroupingIterable<R, K, V> of(
+      Iterable<? extends R> records,
+      Function<? super R, ? extends K> keyFunction,
+      Function<? super R, ? extends V> valueFunction) {
+    return new SortedGroupingIterable<R, K, V>(
+        records, keyFunction, valueFunction, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Like {@link #of(Iterable, Function, Function)}, but returns keys with
+   * more than {@code maxBatchSize} values as several consecutive keyed
+   * batches, none of which holds more than {@code maxBatchSize} values.
+   */
+  public static <R, K, V> SortedGroupingIterable<R, K, V> of(
+      Iterable<? extends R> records,
+      Function<? super R, ? extends K> keyFunction,
+      Function<? super R, ? extends V> valueFunction,
+      int maxBatchSize) {
+    return new SortedGroupingIterable<R, K, V>(
+        records, keyFunction, valueFunction, maxBatchSize);
+  }
+
+  @Override public Iterator<KeyedBatch<K, V>> iterator() {
+    final PeekingIterator<? extends R> recordIterator =
+        Iterators.peekingIterator(records.iterator());
+
+    return new AbstractIterator<KeyedBatch<K, V>>() {
+      /** Holds the values of the key being grouped; reused across keys. */
+      private final List<V> values = Lists.newArrayList();
+
+      @Override protected KeyedBatch<K, V> computeNext() {
+        if (!recordIterator.hasNext()) {
+          return endOfData();
+        }
+        K key = keyFunction.apply(recordIterator.peek());
+        values.clear();
+        do {
+          values.add(valueFunction.apply(recordIterator.next()));
+        } while (values.size() < maxBatchSize
+            && recordIterator.hasNext()
+            && Objects.equal(key, keyFunction.apply(recordIterator.peek())));
+        return KeyedBatch.of(key, Batches.copyOf(values));
+      }
+    };
+  }
+}
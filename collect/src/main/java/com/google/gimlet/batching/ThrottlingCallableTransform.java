@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.base.Ticker;
+import com.google.gimlet.parallel.CallableTransform;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link CallableTransform} that throttles the loads it decorates to a
+ * steady number of batches per second and of rows per second, so that full
+ * scans don't flood a backend that is shared with other traffic.  Given as
+ * the loading callable transform of a {@link ListLoadingIterable}, it
+ * throttles every load of the iterable.
+ * <p>
+ * Each rate is enforced by a token bucket that holds up to one second worth
+ * of tokens, so that a scan may burst after it has been idle for a while.  A
+ * load takes a batch token before it starts, and waits if there is none.
+ * How many rows it returns is only known once it completes, so its rows are
+ * then taken from the row bucket, possibly driving it into debt; the next
+ * load waits until the debt is paid off.  A load that returns a
+ * {@link Collection} counts the values of its {@link KeyedBatch}es as rows,
+ * and any other items as a row each.  One that returns an {@link Integer},
+ * as the loads of {@link IntLoadingIterable}, {@link LongLoadingIterable} and
+ * {@link DoubleLoadingIterable} return how many values they loaded, counts
+ * that many rows.  Loads that return anything else have no rows to count,
+ * and fail unless the row rate is {@link #UNLIMITED}.
+ * <p>
+ * Time that loads are held back is reported to the
+ * {@link BatchLoadListener} the transform is given, if any, through
+ * {@link BatchLoadListener#recordThrottle}.
+ * <p>
+ * Both rates may be changed at any time, which affects loads that start
+ * afterwards.  Instances are thread safe, and may be shared between
+ * iterables so that their loads share the rates.
+ */
+public final class ThrottlingCallableTransform implements CallableTransform {
+
+  /** A rate that doesn't throttle at all. */
+  public static final double UNLIMITED = Double.POSITIVE_INFINITY;
+
+  private static final Ticker SYSTEM_TICKER = new Ticker() {
+    @Override public long read() {
+      return System.nanoTime();
+    }
+  };
+
+  private static final Sleeper SYSTEM_SLEEPER = new Sleeper() {
+    @Override public void sleep(long nanos) throws InterruptedException {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+  };
+
+  private final Ticker ticker;
+  private final Sleeper sleeper;
+  private final BatchLoadListener loadListener;
+  private final TokenBucket batchBucket;
+  private final TokenBucket rowBucket;
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong rowCount = new AtomicLong();
+  private final AtomicLong throttledNanos = new AtomicLong();
+
+  ThrottlingCallableTransform(double batchesPerSecond, double rowsPerSecond,
+      BatchLoadListener loadListener, Ticker ticker, Sleeper sleeper) {
+    this.loadListener = checkNotNull(loadListener);
+    this.ticker = checkNotNull(ticker);
+    this.sleeper = checkNotNull(sleeper);
+    long nowNanos = ticker.read();
+    this.batchBucket = new TokenBucket(batchesPerSecond, nowNanos);
+    this.rowBucket = new TokenBucket(rowsPerSecond, nowNanos);
+  }
+
+  /**
+   * Returns a transform that lets through up to {@code batchesPerSecond}
+   * loads and {@code rowsPerSecond} rows per second.  Either rate may be
+   * {@link #UNLIMITED}.
+   */
+  public static ThrottlingCallableTransform of(
+      double batchesPerSecond, double rowsPerSecond) {
+    return of(batchesPerSecond, rowsPerSecond,
+        ListLoadingIterable.NO_OP_LOAD_LISTENER);
+  }
+
+  /**
+   * Like {@link #of(double, double)}, but also reports how long each load is
+   * held back to the given {@code loadListener}.
+   */
+  public static ThrottlingCallableTransform of(double batchesPerSecond,
+      double rowsPerSecond, BatchLoadListener loadListener) {
+    return new ThrottlingCallableTransform(batchesPerSecond, rowsPerSecond,
+        loadListener, SYSTEM_TICKER, SYSTEM_SLEEPER);
+  }
+
+  @Override public <T> Callable<T> transform(final Callable<T> callable) {
+    return new Callable<T>() {
+      @Override public T call() throws Exception {
+        long waitNanos;
+        synchronized (ThrottlingCallableTransform.this) {
+          long nowNanos = ticker.read();
+          waitNanos = Math.max(
+              batchBucket.take(1, nowNanos), rowBucket.take(0, nowNanos));
+        }
+        if (waitNanos > 0) {
+          throttledNanos.addAndGet(waitNanos);
+          loadListener.recordThrottle(waitNanos);
+          try {
+            sleeper.sleep(waitNanos);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+          }
+        }
+
+        T result = callable.call();
+        long rows = countRows(result);
+        synchronized (ThrottlingCallableTransform.this) {
+          if (rows < 0) {
+            checkState(rowBucket.rate == UNLIMITED,
+                "Can't count the rows of %s to throttle them", result);
+            rows = 0;
+          }
+          rowBucket.take(rows, ticker.read());
+        }
+        batchCount.incrementAndGet();
+        rowCount.addAndGet(rows);
+        return result;
+      }
+    };
+  }
+
+  /** Changes the number of loads let through per second. */
+  public synchronized void setBatchesPerSecond(double batchesPerSecond) {
+    batchBucket.setRate(batchesPerSecond, ticker.read());
+  }
+
+  /** Changes the number of rows let through per second. */
+  public synchronized void setRowsPerSecond(double rowsPerSecond) {
+    rowBucket.setRate(rowsPerSecond, ticker.read());
+  }
+
+  /** Returns the number of loads let through per second. */
+  public synchronized double getBatchesPerSecond() {
+    return batchBucket.rate;
+  }
+
+  /** Returns the number of rows let through per second. */
+  public synchronized double getRowsPerSecond() {
+    return rowBucket.rate;
+  }
+
+  /** Returns how many loads completed. */
+  public long getBatchCount() {
+    return batchCount.get();
+  }
+
+  /** Returns how many rows the completed loads returned. */
+  public long getRowCount() {
+    return rowCount.get();
+  }
+
+  /** Returns how long loads were held back in total, in nanoseconds. */
+  public long getThrottledNanos() {
+    return throttledNanos.get();
+  }
+
+  /**
+   * Returns how many rows the given result of a load holds, or -1 if that
+   * isn't known.
+   */
+  private static long countRows(Object result) {
+    if (result instanceof Integer) {
+      return (Integer) result;
+    }
+    if (!(result instanceof Collection)) {
+      return -1;
+    }
+    long rows = 0;
+    for (Object item : (Collection<?>) result) {
+      rows += item instanceof KeyedBatch
+          ? ((KeyedBatch<?, ?>) item).getBatch().size() : 1;
+    }
+    return rows;
+  }
+
+  /** Waits for a given time; replaced in tests to avoid sleeping. */
+  interface Sleeper {
+    void sleep(long nanos) throws InterruptedException;
+  }
+
+  /**
+   * A bucket that fills with tokens at a fixed rate, up to one second worth
+   * of them.  Its tokens may go negative, which is paid off by later tokens.
+   * Guarded by the enclosing transform.
+   */
+  private static final class TokenBucket {
+    double rate;
+    double tokens;
+    long lastRefillNanos;
+
+    TokenBucket(double rate, long nowNanos) {
+      checkRate(rate);
+      this.rate = rate;
+      this.tokens = rate;
+      this.lastRefillNanos = nowNanos;
+    }
+
+    /**
+     * Takes the given number of tokens, and returns how long to wait until
+     * the bucket is out of debt again, in nanoseconds.
+     */
+    long take(double permits, long nowNanos) {
+      refill(nowNanos);
+      tokens -= permits;
+      return tokens >= 0
+          ? 0 : (long) Math.ceil(-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    void setRate(double rate, long nowNanos) {
+      checkRate(rate);
+      refill(nowNanos);
+      this.rate = rate;
+      tokens = Math.min(tokens, rate);
+    }
+
+    private void refill(long nowNanos) {
+      if (nowNanos > lastRefillNanos) {
+        double elapsedSeconds =
+            (nowNanos - lastRefillNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        tokens = Math.min(rate, tokens + elapsedSeconds * rate);
+        lastRefillNanos = nowNanos;
+      }
+    }
+
+    private static void checkRate(double rate) {
+      checkArgument(rate > 0, "Rate must be positive but was %s", rate);
+    }
+  }
+}
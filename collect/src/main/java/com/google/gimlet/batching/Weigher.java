@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+/**
+ * Estimates how much of some resource, typically memory, an item takes up,
+ * so that the number of items held at once can be bounded by their total
+ * weight rather than by their count.
+ * <p>
+ * Weights need not be exact, but should be consistent with each other, and
+ * must not be negative.  Implementations must be thread safe, since items
+ * may be weighed on whichever threads load them.
+ *
+ * @param <T> the type of items being weighed.
+ * @see Weighers
+ */
+public interface Weigher<T> {
+
+  /** Returns the weight of the given {@code item}. */
+  long weigh(T item);
+}
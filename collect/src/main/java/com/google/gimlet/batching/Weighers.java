@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Contains static factories for {@link Weigher}s.
+ *
+ */
+public final class Weighers {
+  private Weighers() { }
+
+  /** Returns a weigher that gives every item a weight of one. */
+  @SuppressWarnings("unchecked")
+  public static <T> Weigher<T> singleton() {
+    return (Weigher<T>) SingletonWeigher.INSTANCE;
+  }
+
+  /**
+   * Returns a weigher for the keyed batches loaded by a
+   * {@link MapLoadingIterable}, which weighs each one as the total weight of
+   * its values according to the given {@code valueWeigher}.
+   */
+  public static <K, V> Weigher<KeyedBatch<K, V>> forKeyedBatches(
+      final Weigher<? super V> valueWeigher) {
+    checkNotNull(valueWeigher);
+    return new Weigher<KeyedBatch<K, V>>() {
+      @Override public long weigh(KeyedBatch<K, V> keyedBatch) {
+        long weight = 0;
+        for (V value : keyedBatch.getBatch()) {
+          weight += valueWeigher.weigh(value);
+        }
+        return weight;
+      }
+    };
+  }
+
+  private enum SingletonWeigher implements Weigher<Object> {
+    INSTANCE;
+
+    @Override public long weigh(Object item) {
+      return 1;
+    }
+  }
+}
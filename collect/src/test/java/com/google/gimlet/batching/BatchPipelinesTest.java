@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.gimlet.parallel.ExecutionStrategies;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for {@link BatchPipelines}.
+ *
+ */
+public class BatchPipelinesTest extends TestCase {
+
+  private static final Function<String, String> TO_UPPER_CASE =
+      new Function<String, String>() {
+        @Override public String apply(String item) {
+          return item.toUpperCase();
+        }
+      };
+
+  public void testParallelMapKeepsOrder() {
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      FakeListLoadingIterable loadingIterable = new FakeListLoadingIterable(
+          3, "a", "b", "c", "d", "e", "f", "g", "h");
+
+      assertEquals(
+          ImmutableList.of(ImmutableList.of("A", "B", "C"),
+              ImmutableList.of("D", "E", "F"), ImmutableList.of("G", "H")),
+          describe(BatchPipelines.parallelMap(loadingIterable.batches(),
+              TO_UPPER_CASE,
+              ExecutionStrategies.executorServiceStrategy(executorService),
+              2, 2)));
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  public void testProcessesBatchesAhead() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "a", "b", "c", "d");
+    Iterator<Batch<? extends String>> iterator = BatchPipelines.parallelMap(
+        loadingIterable.batches(), TO_UPPER_CASE,
+        ExecutionStrategies.sameThreadStrategy(), 1, 3).iterator();
+
+    assertEquals(ImmutableList.of("A"), ImmutableList.copyOf(iterator.next()));
+    assertEquals(ImmutableList.of(0, 1, 2), loadingIterable.getLoadedIds());
+  }
+
+  public void testFailureIsRethrownAtItsBatch() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "a", "b");
+    Function<String, String> failOnB = new Function<String, String>() {
+      @Override public String apply(String item) {
+        if (item.equals("b")) {
+          throw new IllegalStateException("bad item");
+        }
+        return item;
+      }
+    };
+    Iterator<Batch<? extends String>> iterator = BatchPipelines.parallelMap(
+        loadingIterable.batches(), failOnB,
+        ExecutionStrategies.sameThreadStrategy(), 1, 2).iterator();
+
+    assertEquals(ImmutableList.of("a"), ImmutableList.copyOf(iterator.next()));
+    try {
+      iterator.next();
+      fail();
+    } catch (RuntimeException expected) {
+    }
+  }
+
+  public void testFailureOnOtherThreadIsRethrownUnwrapped() {
+    ExecutorService executorService = Executors.newFixedThreadPool(2);
+    try {
+      Function<String, String> alwaysFail = new Function<String, String>() {
+        @Override public String apply(String item) {
+          throw new IllegalStateException("bad item");
+        }
+      };
+      Iterator<Batch<? extends String>> iterator = BatchPipelines.parallelMap(
+          new FakeListLoadingIterable(1, "a").batches(), alwaysFail,
+          ExecutionStrategies.executorServiceStrategy(executorService), 1, 1)
+          .iterator();
+
+      try {
+        iterator.next();
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  public void testRejectsNonPositiveChunkSize() {
+    try {
+      BatchPipelines.parallelMap(new FakeListLoadingIterable(1).batches(),
+          TO_UPPER_CASE, ExecutionStrategies.sameThreadStrategy(), 0, 1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static List<List<String>> describe(BatchIterable<String> batches) {
+    List<List<String>> descriptions = Lists.newArrayList();
+    for (Batch<? extends String> batch : batches) {
+      descriptions.add(ImmutableList.<String>copyOf(batch));
+    }
+    return descriptions;
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link BatchSizeControllers}.
+ *
+ */
+public class BatchSizeControllersTest extends TestCase {
+
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long SLOW = TimeUnit.SECONDS.toNanos(1);
+
+  public void testFixed() {
+    BatchSizeController controller = BatchSizeControllers.fixed(7);
+    controller.recordLoad(7, SLOW, 7);
+    assertEquals(7, controller.getBatchSize());
+  }
+
+  public void testAimdGrowsAdditivelyOnFastFullLoads() {
+    BatchSizeController controller =
+        BatchSizeControllers.aimd(10, 35, 100, TimeUnit.MILLISECONDS);
+    assertEquals(10, controller.getBatchSize());
+
+    controller.recordLoad(10, FAST, 10);
+    assertEquals(20, controller.getBatchSize());
+    controller.recordLoad(20, FAST, 20);
+    assertEquals(30, controller.getBatchSize());
+    controller.recordLoad(30, FAST, 30);
+    assertEquals(35, controller.getBatchSize());
+  }
+
+  public void testAimdKeepsSizeOnPartialLoads() {
+    BatchSizeController controller =
+        BatchSizeControllers.aimd(10, 100, 100, TimeUnit.MILLISECONDS);
+    controller.recordLoad(10, FAST, 4);
+    assertEquals(10, controller.getBatchSize());
+  }
+
+  public void testAimdHalvesOnSlowLoads() {
+    BatchSizeController controller =
+        BatchSizeControllers.aimd(10, 100, 100, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < 5; i++) {
+      controller.recordLoad(controller.getBatchSize(), FAST, 100);
+    }
+    assertEquals(60, controller.getBatchSize());
+
+    controller.recordLoad(60, SLOW, 60);
+    assertEquals(30, controller.getBatchSize());
+    controller.recordLoad(30, SLOW, 30);
+    controller.recordLoad(15, SLOW, 15);
+    assertEquals(10, controller.getBatchSize());
+  }
+
+  public void testAimdRejectsBadBounds() {
+    try {
+      BatchSizeControllers.aimd(10, 5, 100, TimeUnit.MILLISECONDS);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
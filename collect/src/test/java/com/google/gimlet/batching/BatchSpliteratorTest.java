@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.gimlet.testing.tl4j.JUnitAsserts.assertContentsAnyOrder;
+import static com.google.gimlet.testing.tl4j.JUnitAsserts.assertContentsInOrder;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.gimlet.parallel.ExecutionStrategies;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for {@link BatchSpliterator}.
+ *
+ */
+public class BatchSpliteratorTest extends TestCase {
+
+  public void testSplitsAlongBatchBoundaries() {
+    BatchSpliterator<String> spliterator = BatchSpliterator.of(
+        new FakeListLoadingIterable(2, "a", "b", "c", "d", "e").batches(), 5);
+
+    assertEquals(5, spliterator.estimateSize());
+    assertContentsInOrder(spliterator.trySplit(), "a", "b");
+    assertEquals(3, spliterator.estimateSize());
+    assertContentsInOrder(spliterator.trySplit(), "c", "d");
+    assertContentsInOrder(spliterator.trySplit(), "e");
+    assertNull(spliterator.trySplit());
+    assertEquals(0, spliterator.estimateSize());
+  }
+
+  public void testUnknownSize() {
+    BatchSpliterator<String> spliterator = BatchSpliterator.of(
+        new FakeListLoadingIterable(2, "a", "b", "c").batches());
+
+    assertEquals(BatchSpliterator.UNKNOWN_SIZE, spliterator.estimateSize());
+    spliterator.trySplit();
+    assertEquals(BatchSpliterator.UNKNOWN_SIZE, spliterator.estimateSize());
+  }
+
+  public void testForEachInParallel() {
+    ExecutorService executorService = Executors.newFixedThreadPool(3);
+    try {
+      final List<String> processed =
+          Collections.synchronizedList(Lists.<String>newArrayList());
+      FakeListLoadingIterable loadingIterable = new FakeListLoadingIterable(
+          2, "a", "b", "c", "d", "e", "f", "g");
+
+      BatchSpliterator.of(PrefetchingListLoadingIterable.of(loadingIterable,
+          ExecutionStrategies.sameThreadStrategy(), 2).batches())
+          .forEachInParallel(
+              new Function<String, Void>() {
+                @Override public Void apply(String item) {
+                  processed.add(item);
+                  return null;
+                }
+              },
+              ExecutionStrategies.executorServiceStrategy(executorService),
+              3);
+
+      assertContentsAnyOrder(processed, "a", "b", "c", "d", "e", "f", "g");
+      assertEquals(ImmutableList.of(0, 2, 4, 6, 7),
+          loadingIterable.getLoadedIds());
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  public void testForEachInParallelRethrowsFailure() {
+    BatchSpliterator<String> spliterator = BatchSpliterator.of(
+        new FakeListLoadingIterable(2, "a", "b", "c").batches());
+    try {
+      spliterator.forEachInParallel(
+          new Function<String, Void>() {
+            @Override public Void apply(String item) {
+              throw new IllegalStateException(item);
+            }
+          },
+          ExecutionStrategies.sameThreadStrategy(), 2);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Tests for {@link Batches}.
+ *
+ */
+public class BatchesTest extends TestCase {
+
+  public void testOfArrayUsesTheArray() {
+    String[] items = {"a", "b", "c"};
+    ArrayBatch<String> batch = Batches.ofArray(items);
+
+    assertEquals(ImmutableList.of("a", "b", "c"), batch);
+    assertEquals("b", batch.get(1));
+    assertTrue(batch instanceof RandomAccess);
+    items[1] = "x";
+    assertEquals("x", batch.get(1));
+  }
+
+  public void testCopyOfCopies() {
+    String[] items = {"a", "b"};
+    ArrayBatch<String> fromArray = Batches.copyOf(items);
+    ArrayBatch<String> fromCollection =
+        Batches.copyOf(Arrays.asList(items));
+    items[0] = "x";
+
+    assertEquals(ImmutableList.of("a", "b"), fromArray);
+    assertEquals(ImmutableList.of("a", "b"), fromCollection);
+    assertSame(fromArray, Batches.copyOf(fromArray));
+  }
+
+  public void testEmptyBatchesAreShared() {
+    ArrayBatch<String> empty = Batches.empty();
+
+    assertTrue(empty.isEmpty());
+    assertSame(empty, Batches.ofArray(new String[0]));
+    assertSame(empty, Batches.copyOf(ImmutableList.<String>of()));
+  }
+
+  public void testIsImmutable() {
+    ArrayBatch<String> batch = Batches.ofArray("a");
+    try {
+      batch.add("b");
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      batch.set(0, "b");
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  public void testSubBatch() {
+    ArrayBatch<String> batch = Batches.ofArray("a", "b", "c", "d");
+    ArrayBatch<String> subBatch = batch.subBatch(1, 3);
+
+    assertEquals(ImmutableList.of("b", "c"), subBatch);
+    assertEquals(ImmutableList.of("c"), subBatch.subBatch(1, 2));
+    assertEquals(ImmutableList.of("b", "c").hashCode(), subBatch.hashCode());
+    assertTrue(Arrays.equals(new Object[] {"b", "c"}, subBatch.toArray()));
+    assertTrue(batch.subBatch(2, 2).isEmpty());
+    assertSame(batch, batch.subBatch(0, 4));
+    try {
+      subBatch.get(2);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+    try {
+      batch.subBatch(3, 5);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+  }
+
+  public void testHashCodeAndEquals() {
+    ArrayBatch<String> batch = Batches.ofArray("a", null);
+
+    assertEquals(Arrays.asList("a", null).hashCode(), batch.hashCode());
+    assertEquals(batch.hashCode(), batch.hashCode());
+    assertEquals(Arrays.asList("a", null), batch);
+    assertEquals(KeyedBatch.of(1, batch),
+        KeyedBatch.of(1, Batches.copyOf(Arrays.asList("a", null))));
+  }
+}
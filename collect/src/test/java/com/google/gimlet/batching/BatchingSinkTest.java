@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.gimlet.parallel.ExecutionStrategies;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link BatchingSink}.
+ *
+ */
+public class BatchingSinkTest extends TestCase {
+
+  private final List<List<String>> writtenBatches =
+      Collections.synchronizedList(Lists.<List<String>>newArrayList());
+
+  private final BatchWriter<String> recordingWriter =
+      new BatchWriter<String>() {
+        @Override public void write(Batch<String> batch) {
+          writtenBatches.add(ImmutableList.copyOf(batch));
+        }
+      };
+
+  public void testFlushesFullBatches() {
+    BatchingSink<String> sink = BatchingSink.newBuilder(recordingWriter)
+        .maxBatchSize(2)
+        .build();
+    sink.offer("a");
+    sink.offer("b");
+    sink.offer("c");
+
+    assertEquals(
+        ImmutableList.of(ImmutableList.of("a", "b")), writtenBatches);
+    assertEquals(1, sink.getBufferedItemCount());
+
+    sink.close();
+    assertEquals(
+        ImmutableList.of(ImmutableList.of("a", "b"), ImmutableList.of("c")),
+        writtenBatches);
+  }
+
+  public void testFlushesHeavyBatches() {
+    Weigher<String> lengthWeigher = new Weigher<String>() {
+      @Override public long weigh(String item) {
+        return item.length();
+      }
+    };
+    BatchingSink<String> sink = BatchingSink.newBuilder(recordingWriter)
+        .maxBatchWeight(lengthWeigher, 4)
+        .build();
+    sink.offer("ab");
+    sink.offer("c");
+    sink.offer("defg");
+    sink.offer("h");
+
+    assertEquals(ImmutableList.of(ImmutableList.of("ab", "c", "defg")),
+        writtenBatches);
+  }
+
+  public void testExplicitFlush() {
+    BatchingSink<String> sink = BatchingSink.newBuilder(recordingWriter)
+        .build();
+    sink.flush();
+    assertTrue(writtenBatches.isEmpty());
+
+    sink.offer("a");
+    sink.flush();
+    assertEquals(ImmutableList.of(ImmutableList.of("a")), writtenBatches);
+  }
+
+  public void testFlushesLingeringBatch() throws Exception {
+    ScheduledExecutorService lingerExecutor =
+        Executors.newSingleThreadScheduledExecutor();
+    try {
+      final CountDownLatch written = new CountDownLatch(1);
+      BatchingSink<String> sink = BatchingSink.newBuilder(
+          new BatchWriter<String>() {
+            @Override public void write(Batch<String> batch) {
+              writtenBatches.add(ImmutableList.copyOf(batch));
+              written.countDown();
+            }
+          })
+          .linger(10, TimeUnit.MILLISECONDS, lingerExecutor)
+          .build();
+      sink.offer("a");
+
+      assertTrue(written.await(5, TimeUnit.SECONDS));
+      assertEquals(ImmutableList.of(ImmutableList.of("a")), writtenBatches);
+      assertEquals(0, sink.getBufferedItemCount());
+    } finally {
+      lingerExecutor.shutdownNow();
+    }
+  }
+
+  public void testBoundsInFlightFlushes() {
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      final AtomicInteger inFlight = new AtomicInteger();
+      final AtomicInteger maxInFlight = new AtomicInteger();
+      BatchingSink<String> sink = BatchingSink.newBuilder(
+          new BatchWriter<String>() {
+            @Override public void write(Batch<String> batch)
+                throws InterruptedException {
+              int current = inFlight.incrementAndGet();
+              synchronized (maxInFlight) {
+                maxInFlight.set(Math.max(maxInFlight.get(), current));
+              }
+              Thread.sleep(5);
+              writtenBatches.add(ImmutableList.copyOf(batch));
+              inFlight.decrementAndGet();
+            }
+          })
+          .maxBatchSize(1)
+          .executionStrategy(
+              ExecutionStrategies.executorServiceStrategy(executorService), 2)
+          .build();
+      for (int i = 0; i < 10; i++) {
+        sink.offer(String.valueOf(i));
+      }
+      sink.close();
+
+      assertEquals(10, writtenBatches.size());
+      assertTrue(maxInFlight.get() <= 2);
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  public void testWriteFailureIsRethrown() {
+    BatchingSink<String> sink = BatchingSink.newBuilder(
+        new BatchWriter<String>() {
+          @Override public void write(Batch<String> batch) {
+            throw new IllegalStateException("backend down");
+          }
+        })
+        .maxBatchSize(1)
+        .build();
+    sink.offer("a");
+    try {
+      sink.offer("b");
+      fail();
+    } catch (RuntimeException expected) {
+      assertTrue(expected.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  public void testWriteFailureOnOtherThreadDoesNotBlockProducer()
+      throws Exception {
+    ExecutorService executorService = Executors.newFixedThreadPool(2);
+    ExecutorService producerExecutor = Executors.newSingleThreadExecutor();
+    try {
+      final BatchingSink<String> sink = BatchingSink.newBuilder(
+          new BatchWriter<String>() {
+            @Override public void write(Batch<String> batch) {
+              throw new IllegalStateException("backend down");
+            }
+          })
+          .maxBatchSize(1)
+          .executionStrategy(
+              ExecutionStrategies.executorServiceStrategy(executorService), 1)
+          .build();
+
+      Future<?> producer = producerExecutor.submit(
+          new Runnable() {
+            @Override public void run() {
+              for (String item : ImmutableList.of("a", "b", "c")) {
+                try {
+                  sink.offer(item);
+                } catch (RuntimeException expected) {
+                }
+              }
+              try {
+                sink.close();
+              } catch (RuntimeException expected) {
+              }
+            }
+          });
+      producer.get(10, TimeUnit.SECONDS);
+    } finally {
+      executorService.shutdownNow();
+      producerExecutor.shutdownNow();
+    }
+  }
+
+  public void testCancelsLingerOfBatchFlushedEarly() {
+    ScheduledThreadPoolExecutor lingerExecutor =
+        new ScheduledThreadPoolExecutor(1);
+    try {
+      BatchingSink<String> sink = BatchingSink.newBuilder(recordingWriter)
+          .maxBatchSize(2)
+          .linger(1, TimeUnit.HOURS, lingerExecutor)
+          .build();
+      sink.offer("a");
+      sink.offer("b");
+      sink.offer("c");
+      sink.flush();
+
+      assertEquals(2, lingerExecutor.getQueue().size());
+      for (Runnable lingerTask : lingerExecutor.getQueue()) {
+        assertTrue(((Future<?>) lingerTask).isCancelled());
+      }
+    } finally {
+      lingerExecutor.shutdownNow();
+    }
+  }
+
+  public void testCantOfferAfterClose() {
+    BatchingSink<String> sink = BatchingSink.newBuilder(recordingWriter)
+        .build();
+    sink.close();
+    sink.close();
+    try {
+      sink.offer("a");
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CachingListLoadingIterable}.
+ *
+ */
+public class CachingListLoadingIterableTest extends TestCase {
+
+  public void testLaterScansAreServedFromCache() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(2, "a", "b", "c", "d", "e");
+    CachingListLoadingIterable<Integer, String> caching =
+        CachingListLoadingIterable.newBuilder(loadingIterable).build();
+
+    assertEquals(ImmutableList.of("a", "b", "c", "d", "e"),
+        ImmutableList.copyOf(caching));
+    assertEquals(ImmutableList.of("a", "b", "c", "d", "e"),
+        ImmutableList.copyOf(caching));
+    assertEquals(ImmutableList.of(0, 2, 4, 5), loadingIterable.getLoadedIds());
+    assertEquals(4, caching.getHitCount());
+    assertEquals(4, caching.getMissCount());
+  }
+
+  public void testEvictsLeastRecentlyUsedBatches() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(2, "a", "b", "c", "d");
+    CachingListLoadingIterable<Integer, String> caching =
+        CachingListLoadingIterable.newBuilder(loadingIterable)
+            .maxBatches(2)
+            .build();
+
+    ImmutableList.copyOf(caching);
+    assertEquals(2, caching.getCachedBatchCount());
+    // the batch at 0 was evicted, and loading it again evicts the one at 2.
+    assertEquals(ImmutableList.of("a", "b"),
+        ImmutableList.copyOf(caching.batches().iterator().next()));
+    assertEquals(ImmutableList.of("a", "b", "c", "d"),
+        ImmutableList.copyOf(caching));
+    assertEquals(
+        ImmutableList.of(0, 2, 4, 0, 2, 4), loadingIterable.getLoadedIds());
+    assertEquals(1, caching.getHitCount());
+  }
+
+  public void testEvictsBatchesBeyondMaxWeight() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "aa", "bbb", "c");
+    CachingListLoadingIterable<Integer, String> caching =
+        CachingListLoadingIterable.newBuilder(loadingIterable)
+            .maxWeight(new LengthWeigher(), 4)
+            .build();
+
+    ImmutableList.copyOf(caching);
+    // "aa" was evicted to make room for "bbb", and "c" and the end still fit.
+    assertEquals(3, caching.getCachedBatchCount());
+    assertEquals(ImmutableList.of("aa"),
+        ImmutableList.copyOf(caching.batches().iterator().next()));
+    assertEquals(ImmutableList.of(0, 1, 2, 3, 0),
+        loadingIterable.getLoadedIds());
+  }
+
+  public void testDoesNotCacheBatchesHeavierThanMaxWeight() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "aaaaa", "b");
+    CachingListLoadingIterable<Integer, String> caching =
+        CachingListLoadingIterable.newBuilder(loadingIterable)
+            .maxWeight(new LengthWeigher(), 4)
+            .build();
+
+    ImmutableList.copyOf(caching);
+    ImmutableList.copyOf(caching);
+    assertEquals(ImmutableList.of(0, 1, 2, 0), loadingIterable.getLoadedIds());
+  }
+
+  public void testExpiresBatchesAfterWrite() {
+    FakeTicker ticker = new FakeTicker();
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(2, "a", "b");
+    CachingListLoadingIterable<Integer, String> caching =
+        CachingListLoadingIterable.newBuilder(loadingIterable)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .ticker(ticker)
+            .build();
+
+    ImmutableList.copyOf(caching);
+    ticker.nanos = TimeUnit.SECONDS.toNanos(59);
+    ImmutableList.copyOf(caching);
+    assertEquals(ImmutableList.of(0, 2), loadingIterable.getLoadedIds());
+
+    ticker.nanos = TimeUnit.SECONDS.toNanos(60);
+    ImmutableList.copyOf(caching);
+    assertEquals(ImmutableList.of(0, 2, 0, 2), loadingIterable.getLoadedIds());
+  }
+
+  public void testCachesMapLoadsWithoutCarriedOverKeys() {
+    FakeMapLoadingIterable mapLoadingIterable =
+        new FakeMapLoadingIterable(4, false, "a", 3, "b", 3, "c", 1);
+    CachingListLoadingIterable<Integer, KeyedBatch<String, Integer>> caching =
+        CachingListLoadingIterable.newBuilder(mapLoadingIterable).build();
+
+    List<String> firstScan = describe(caching);
+    assertEquals(firstScan, describe(caching));
+    assertEquals(ImmutableList.of(0, 3, 6, 7),
+        mapLoadingIterable.getLoadedIds());
+  }
+
+  public void testDoesNotCacheMapLoadsWithCarriedOverKeys() {
+    FakeMapLoadingIterable mapLoadingIterable =
+        new FakeMapLoadingIterable(4, true, "a", 3, "b", 3, "c", 1);
+    CachingListLoadingIterable<Integer, KeyedBatch<String, Integer>> caching =
+        CachingListLoadingIterable.newBuilder(mapLoadingIterable).build();
+
+    assertEquals(ImmutableList.of("a:[0, 1, 2]", "b:[0, 1, 2]", "c:[0]"),
+        describe(caching));
+    assertEquals(ImmutableList.of("a:[0, 1, 2]", "b:[0, 1, 2]", "c:[0]"),
+        describe(caching));
+    // every load either leaves a key to carry over or stitches one in.
+    assertEquals(ImmutableList.of(0, 4, 7, 0, 4, 7),
+        mapLoadingIterable.getLoadedIds());
+    assertEquals(0, caching.getHitCount());
+  }
+
+  private static class LengthWeigher implements Weigher<String> {
+    @Override public long weigh(String item) {
+      return item.length();
+    }
+  }
+
+  private static class FakeTicker implements Ticker {
+    long nanos;
+
+    @Override public long read() {
+      return nanos;
+    }
+  }
+
+  private static List<String> describe(
+      Iterable<KeyedBatch<String, Integer>> keyedBatches) {
+    List<String> descriptions = Lists.newArrayList();
+    for (KeyedBatch<String, Integer> keyedBatch : keyedBatches) {
+      descriptions.add(keyedBatch.getKey() + ":"
+          + ImmutableList.copyOf(keyedBatch.getBatch()));
+    }
+    return descriptions;
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.gimlet.testing.tl4j.JUnitAsserts.assertContentsInOrder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CheckpointingListLoadingIterable} and
+ * {@link FileCheckpointStore}.
+ *
+ */
+public class CheckpointingListLoadingIterableTest extends TestCase {
+
+  private static final Function<String, Integer> PARSE_INT =
+      new Function<String, Integer>() {
+        @Override public Integer apply(String from) {
+          return Integer.valueOf(from);
+        }
+      };
+
+  private File checkpointFile;
+  private CheckpointStore<Integer> checkpointStore;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    checkpointFile = File.createTempFile("checkpoint", ".txt");
+    checkpointFile.delete();
+    checkpointStore = FileCheckpointStore.of(
+        checkpointFile, Functions.toStringFunction(), PARSE_INT);
+  }
+
+  @Override protected void tearDown() throws Exception {
+    checkpointFile.delete();
+    backupFile().delete();
+    super.tearDown();
+  }
+
+  public void testResumesFromLastCheckpoint() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "a", "b", "c", "d", "e");
+    Iterable<String> checkpointingIterable =
+        CheckpointingListLoadingIterable.of(loadingIterable, checkpointStore,
+            2, 1, TimeUnit.HOURS);
+
+    Iterator<String> interruptedScan = checkpointingIterable.iterator();
+    assertEquals("a", interruptedScan.next());
+    assertEquals("b", interruptedScan.next());
+    assertNull(checkpointStore.load());
+    // moving on to the third batch takes a checkpoint.
+    assertEquals("c", interruptedScan.next());
+    assertEquals(Integer.valueOf(2), checkpointStore.load());
+    assertEquals("d", interruptedScan.next());
+
+    assertContentsInOrder(checkpointingIterable, "c", "d", "e");
+  }
+
+  public void testResumesCarriedOverKeyFromItsStart() {
+    FakeMapLoadingIterable mapLoadingIterable =
+        new FakeMapLoadingIterable(4, true, "a", 2, "b", 5, "c", 2);
+    Iterable<KeyedBatch<String, Integer>> checkpointingIterable =
+        CheckpointingListLoadingIterable.of(mapLoadingIterable,
+            checkpointStore, 1, 1, TimeUnit.HOURS);
+
+    Iterator<KeyedBatch<String, Integer>> interruptedScan =
+        checkpointingIterable.iterator();
+    assertEquals("a", interruptedScan.next().getKey());
+    assertEquals("b", interruptedScan.next().getKey());
+    // the load of "b" began at its third value, as its first two were
+    // carried over, but the checkpoint is where "b" begins.
+    assertEquals(Integer.valueOf(2), checkpointStore.load());
+
+    // "b" no longer follows another key, so it comes in bounded chunks.
+    List<String> resumed = Lists.newArrayList();
+    for (KeyedBatch<String, Integer> keyedBatch : checkpointingIterable) {
+      resumed.add(keyedBatch.getKey() + ":"
+          + ImmutableList.copyOf(keyedBatch.getBatch()));
+    }
+    assertEquals(ImmutableList.of("b:[0, 1, 2, 3]", "b:[4]", "c:[0, 1]"),
+        resumed);
+  }
+
+  public void testClearsCheckpointAtEnd() {
+    checkpointStore.save(3);
+    Iterable<String> checkpointingIterable =
+        CheckpointingListLoadingIterable.of(
+            new FakeListLoadingIterable(1, "a", "b", "c", "d", "e"),
+            checkpointStore, 1, 1, TimeUnit.HOURS);
+
+    assertContentsInOrder(checkpointingIterable, "d", "e");
+    assertNull(checkpointStore.load());
+    assertFalse(checkpointFile.exists());
+  }
+
+  public void testFileCheckpointStoreReplacesCheckpoint() {
+    checkpointStore.save(7);
+    checkpointStore.save(11);
+    assertEquals(Integer.valueOf(11), FileCheckpointStore.of(
+        checkpointFile, Functions.toStringFunction(), PARSE_INT).load());
+  }
+
+  public void testFileCheckpointStoreFallsBackToBackup() throws Exception {
+    // as if a crash happened between moving the checkpoint to the backup
+    // and renaming the new checkpoint into place.
+    Files.write("5", backupFile(), Charsets.UTF_8);
+    assertEquals(Integer.valueOf(5), checkpointStore.load());
+
+    checkpointStore.save(6);
+    assertEquals(Integer.valueOf(6), checkpointStore.load());
+    checkpointStore.clear();
+    assertNull(checkpointStore.load());
+    assertFalse(backupFile().exists());
+  }
+
+  private File backupFile() {
+    return new File(checkpointFile.getPath() + ".bak");
+  }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gimlet.batching.ColumnarBatch.ColumnType;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Tests for {@link ColumnarBatch}.
+ *
+ */
+public class ColumnarBatchTest extends TestCase {
+
+  private static final int COUNT = 0;
+  private static final int AMOUNT = 1;
+  private static final int NAME = 2;
+
+  private static ColumnarBatch<String> newBatch() {
+    ColumnarBatch.Builder<String> builder = ColumnarBatch.newBuilder(
+        ColumnType.INT, ColumnType.DOUBLE, ColumnType.OBJECT);
+    builder.startKey("a");
+    for (int i = 0; i < 20; i++) {
+      builder.startRow()
+          .setInt(COUNT, i)
+          .setDouble(AMOUNT, i * 0.5)
+          .setObject(NAME, "a" + i);
+    }
+    builder.startKey("b");
+    builder.startRow()
+        .setInt(COUNT, 7)
+        .setDouble(AMOUNT, 2)
+        .setObject(NAME, "b");
+    builder.startKey("c");
+    return builder.build();
+  }
+
+  public void testKeyRanges() {
+    ColumnarBatch<String> batch = newBatch();
+
+    assertEquals(21, batch.getRowCount());
+    assertEquals(3, batch.getKeyCount());
+    assertEquals("b", batch.getKey(1));
+    assertEquals(0, batch.getKeyStart(0));
+    assertEquals(20, batch.getKeyEnd(0));
+    assertEquals(20, batch.getKeyStart(1));
+    assertEquals(21, batch.getKeyEnd(1));
+    assertEquals(21, batch.getKeyStart(2));
+    assertEquals(21, batch.getKeyEnd(2));
+  }
+
+  public void testColumns() {
+    ColumnarBatch<String> batch = newBatch();
+
+    IntBatch counts = batch.getIntColumn(COUNT);
+    assertEquals(21, counts.size());
+    assertEquals(19, counts.get(19));
+    assertEquals(7, counts.get(20));
+    assertEquals(2.0, batch.getDoubleColumn(AMOUNT).get(20));
+    assertEquals("a3", batch.getObjectColumn(NAME).get(3));
+    try {
+      batch.getLongColumn(COUNT);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testRowViews() {
+    List<KeyedBatch<String, ColumnarBatch.Row>> keyedBatches =
+        newBatch().asKeyedBatches();
+
+    assertEquals(3, keyedBatches.size());
+    assertEquals("b", keyedBatches.get(1).getKey());
+    ColumnarBatch.Row row =
+        ImmutableList.copyOf(keyedBatches.get(1).getBatch()).get(0);
+    assertEquals(7, row.getInt(COUNT));
+    assertEquals(2.0, row.getDouble(AMOUNT));
+    assertEquals("b", row.getObject(NAME));
+    assertTrue(keyedBatches.get(2).getBatch().isEmpty());
+  }
+
+  public void testIncompleteRowIsRejected() {
+    ColumnarBatch.Builder<String> builder =
+        ColumnarBatch.newBuilder(ColumnType.INT, ColumnType.LONG);
+    builder.startKey("a").startRow().setInt(0, 1);
+    try {
+      builder.startRow();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  public void testColumnSetTwiceIsRejected() {
+    ColumnarBatch.Builder<String> builder =
+        ColumnarBatch.newBuilder(ColumnType.INT, ColumnType.INT);
+    builder.startKey("a").startRow().setInt(0, 1);
+    try {
+      // setting the first column again must not pass for setting both.
+      builder.setInt(0, 2);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  public void testIncompleteLastRowIsRejected() {
+    ColumnarBatch.Builder<String> builder =
+        ColumnarBatch.newBuilder(ColumnType.INT, ColumnType.OBJECT);
+    builder.startKey("a").startRow().setObject(1, "x");
+    try {
+      builder.build();
+      fail();
+    } catch (IllegalStateException expected) {
+      assertEquals("Column 0 of row 0 is not set", expected.getMessage());
+    }
+  }
+
+  public void testRowNeedsKey() {
+    try {
+      ColumnarBatch.newBuilder(ColumnType.INT).startRow();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+}
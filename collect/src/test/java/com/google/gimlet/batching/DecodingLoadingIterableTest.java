@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.gimlet.parallel.CallableTransforms;
+import com.google.gimlet.parallel.ExecutionStrategies;
+import com.google.gimlet.parallel.ExecutionStrategy;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link DecodingLoadingIterable}.
+ *
+ */
+public class DecodingLoadingIterableTest extends TestCase {
+
+  public void testDecodesBatchesInOrder() {
+    FakeDecodingLoadingIterable decodingIterable =
+        new FakeDecodingLoadingIterable(
+            ExecutionStrategies.sameThreadStrategy(), 2, "a,b", "", "c");
+
+    assertEquals(ImmutableList.of("a", "b", "c"),
+        ImmutableList.copyOf(decodingIterable));
+    assertEquals(ImmutableList.of(0, 1, 2), decodingIterable.getFetchedIds());
+  }
+
+  public void testWithNoBatches() {
+    assertFalse(new FakeDecodingLoadingIterable(
+        ExecutionStrategies.sameThreadStrategy(), 2).iterator().hasNext());
+  }
+
+  public void testDecodesSeveralBatchesAtOnce() throws Exception {
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      // no decoding completes until three of them have started.
+      final CountDownLatch decodingStarted = new CountDownLatch(3);
+      FakeDecodingLoadingIterable decodingIterable =
+          new FakeDecodingLoadingIterable(
+              ExecutionStrategies.executorServiceStrategy(executorService), 3,
+              "a", "b", "c", "d") {
+            @Override protected List<String> decode(String raw) {
+              decodingStarted.countDown();
+              try {
+                assertTrue(decodingStarted.await(10, TimeUnit.SECONDS));
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+              return super.decode(raw);
+            }
+          };
+
+      assertEquals(ImmutableList.of("a", "b", "c", "d"),
+          ImmutableList.copyOf(decodingIterable));
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  public void testKeepsOrderOfBatchesDecodedOutOfOrder() {
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      FakeDecodingLoadingIterable decodingIterable =
+          new FakeDecodingLoadingIterable(
+              ExecutionStrategies.executorServiceStrategy(executorService), 4,
+              "a,b,c,d", "e,f,g", "h,i", "j") {
+            @Override protected List<String> decode(String raw) {
+              // longer batches take longer to decode.
+              try {
+                Thread.sleep(5 * raw.length());
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+              return super.decode(raw);
+            }
+          };
+
+      assertEquals(
+          ImmutableList.of("a", "b", "c", "d", "e", "f", "g", "h", "i", "j"),
+          ImmutableList.copyOf(decodingIterable));
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  public void testFailedDecodingIsRethrownInOrder() {
+    FakeDecodingLoadingIterable decodingIterable =
+        new FakeDecodingLoadingIterable(
+            ExecutionStrategies.sameThreadStrategy(), 2, "a", "b", "c") {
+          @Override protected List<String> decode(String raw) {
+            if (raw.equals("b")) {
+              throw new IllegalStateException("corrupt batch");
+            }
+            return super.decode(raw);
+          }
+        };
+
+    Iterator<String> iterator = decodingIterable.iterator();
+    assertEquals("a", iterator.next());
+    try {
+      iterator.next();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  /**
+   * A {@link DecodingLoadingIterable} over in-memory raw batches of
+   * comma-separated items, whose ids are indexes into the raw batches.
+   */
+  private static class FakeDecodingLoadingIterable
+      extends DecodingLoadingIterable<Integer, String, String> {
+
+    private final List<String> rawBatches;
+    private final List<Integer> fetchedIds =
+        Collections.synchronizedList(Lists.<Integer>newArrayList());
+
+    FakeDecodingLoadingIterable(ExecutionStrategy executionStrategy,
+        int maxBatchesAhead, String... rawBatches) {
+      super(0, CallableTransforms.getIdentityTransform(), executionStrategy,
+          maxBatchesAhead);
+      this.rawBatches = ImmutableList.copyOf(rawBatches);
+    }
+
+    List<Integer> getFetchedIds() {
+      synchronized (fetchedIds) {
+        return ImmutableList.copyOf(fetchedIds);
+      }
+    }
+
+    @Override protected String fetchRaw(Integer beginIdForBatch) {
+      fetchedIds.add(beginIdForBatch);
+      return beginIdForBatch < rawBatches.size()
+          ? rawBatches.get(beginIdForBatch) : null;
+    }
+
+    @Override protected Integer getNextId(String raw) {
+      int id = rawBatches.indexOf(raw);
+      return id + 1 < rawBatches.size() ? id + 1 : null;
+    }
+
+    @Override protected List<String> decode(String raw) {
+      return ImmutableList.copyOf(
+          Splitter.on(',').omitEmptyStrings().split(raw));
+    }
+  }
+}
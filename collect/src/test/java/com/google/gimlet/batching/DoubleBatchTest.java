@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Tests for {@link DoubleBatch}.
+ *
+ */
+public class DoubleBatchTest extends TestCase {
+
+  public void testAccessors() {
+    DoubleBatch batch = DoubleBatch.of(3.0, 1.5, 4.25);
+
+    assertEquals(3, batch.size());
+    assertFalse(batch.isEmpty());
+    assertEquals(1.5, batch.get(1));
+    assertTrue(Arrays.equals(new double[] {3.0, 1.5, 4.25}, batch.toArray()));
+    assertEquals("[3.0, 1.5, 4.25]", batch.toString());
+    assertTrue(DoubleBatch.of().isEmpty());
+  }
+
+  public void testDoubleIterator() {
+    DoubleBatch.DoubleIterator iterator =
+        DoubleBatch.of(5.0, 6.0).doubleIterator();
+
+    assertEquals(5.0, iterator.nextDouble());
+    assertEquals(6.0, iterator.nextDouble());
+    assertFalse(iterator.hasNext());
+    try {
+      iterator.nextDouble();
+      fail();
+    } catch (NoSuchElementException expected) {
+    }
+  }
+
+  public void testNaNEqualsItself() {
+    DoubleBatch batch = DoubleBatch.of(1.0, Double.NaN);
+
+    assertEquals(batch, DoubleBatch.of(1.0, Double.NaN));
+    assertEquals(batch.hashCode(), DoubleBatch.of(1.0, Double.NaN).hashCode());
+    assertEquals(batch, batch);
+  }
+
+  public void testNegativeZeroDiffersFromZero() {
+    assertFalse(DoubleBatch.of(0.0).equals(DoubleBatch.of(-0.0)));
+    assertFalse(DoubleBatch.of(-0.0).equals(DoubleBatch.of(0.0)));
+    assertEquals(DoubleBatch.of(-0.0), DoubleBatch.of(-0.0));
+    assertEquals(
+        DoubleBatch.of(-0.0).hashCode(), DoubleBatch.of(-0.0).hashCode());
+  }
+
+  public void testViewOnlyCoversItsSize() {
+    DoubleBatch view = DoubleBatch.view(new double[] {1.0, 2.0, 3.0}, 2);
+
+    assertEquals(DoubleBatch.of(1.0, 2.0), view);
+    assertEquals(DoubleBatch.of(1.0, 2.0).hashCode(), view.hashCode());
+    assertFalse(view.equals(DoubleBatch.of(1.0, 2.0, 3.0)));
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.Lists;
+import com.google.gimlet.parallel.CallableTransforms;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for {@link DoubleLoadingIterable}.
+ *
+ */
+public class DoubleLoadingIterableTest extends TestCase {
+
+  /** Loads the halves from the begin id up to an exclusive limit. */
+  private static class HalvesLoadingIterable
+      extends DoubleLoadingIterable<Double> {
+    private final double limit;
+    private final List<Double> loadedIds = Lists.newArrayList();
+
+    HalvesLoadingIterable(int batchCapacity, double limit) {
+      super(0.0, batchCapacity, CallableTransforms.getIdentityTransform());
+      this.limit = limit;
+    }
+
+    @Override protected Double getNextId(double previousEnd) {
+      return previousEnd + 0.5;
+    }
+
+    @Override protected int loadNextBatch(
+        Double beginIdForBatch, double[] buffer) {
+      loadedIds.add(beginIdForBatch);
+      int count = 0;
+      for (double d = beginIdForBatch; d < limit && count < buffer.length;
+          d += 0.5) {
+        buffer[count++] = d;
+      }
+      return count;
+    }
+  }
+
+  public void testIteratesOverAllValues() {
+    HalvesLoadingIterable loadingIterable = new HalvesLoadingIterable(3, 2.5);
+    DoubleBatch.DoubleIterator iterator = loadingIterable.doubleIterator();
+
+    for (int i = 0; i < 5; i++) {
+      assertTrue(iterator.hasNext());
+      assertEquals(i * 0.5, iterator.nextDouble());
+    }
+    assertFalse(iterator.hasNext());
+    assertEquals(
+        Lists.newArrayList(0.0, 1.5, 2.5), loadingIterable.loadedIds);
+  }
+
+  public void testEmpty() {
+    assertFalse(new HalvesLoadingIterable(3, 0.0).doubleIterator().hasNext());
+  }
+
+  public void testBatchesReuseOneBuffer() {
+    Iterator<DoubleBatch> batches =
+        new HalvesLoadingIterable(2, 2.0).batchIterator();
+
+    DoubleBatch first = batches.next();
+    assertEquals(DoubleBatch.of(0.0, 0.5), first);
+    double[] kept = first.toArray();
+    assertEquals(DoubleBatch.of(1.0, 1.5), batches.next());
+    assertEquals(DoubleBatch.of(1.0, 1.5), first);
+    assertEquals(DoubleBatch.of(0.0, 0.5), DoubleBatch.of(kept));
+    assertFalse(batches.hasNext());
+  }
+}
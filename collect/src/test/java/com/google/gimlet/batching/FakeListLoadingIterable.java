@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.gimlet.parallel.CallableTransform;
+import com.google.gimlet.parallel.CallableTransforms;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link ListLoadingIterable} over an in-memory list of distinct items,
+ * whose ids are indexes into that list.  It records the id of every load so
+ * that tests can assert on how loading happened.
+ *
+ */
+class FakeListLoadingIterable extends ListLoadingIterable<Integer, String> {
+
+  private final List<String> items;
+  private final int batchSize;
+  private final List<Integer> loadedIds =
+      Collections.synchronizedList(Lists.<Integer>newArrayList());
+
+  FakeListLoadingIterable(int batchSize, String... items) {
+    this(CallableTransforms.getIdentityTransform(), batchSize, items);
+  }
+
+  FakeListLoadingIterable(
+      CallableTransform loadingCallableTransform,
+      int batchSize,
+      String... items) {
+    super(0, loadingCallableTransform);
+    this.items = ImmutableList.copyOf(items);
+    this.batchSize = batchSize;
+  }
+
+  FakeListLoadingIterable(
+      BatchLoadListener loadListener, int batchSize, String... items) {
+    super(0, CallableTransforms.getIdentityTransform(), loadListener);
+    this.items = ImmutableList.copyOf(items);
+    this.batchSize = batchSize;
+  }
+
+  /** Returns the ids passed to {@link #loadNextBatch}, in order. */
+  List<Integer> getLoadedIds() {
+    synchronized (loadedIds) {
+      return ImmutableList.copyOf(loadedIds);
+    }
+  }
+
+  @Override protected Integer getNextId(String previousEnd) {
+    return items.indexOf(previousEnd) + 1;
+  }
+
+  @Override protected List<String> loadNextBatch(Integer beginIdForBatch) {
+    loadedIds.add(beginIdForBatch);
+    int begin = Math.min(beginIdForBatch, items.size());
+    return items.subList(begin, Math.min(begin + batchSize, items.size()));
+  }
+}
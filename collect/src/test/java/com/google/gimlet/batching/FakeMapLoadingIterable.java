@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.gimlet.parallel.CallableTransforms;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link MapLoadingIterable} over an in-memory list of key-value pairs that
+ * are sorted by key.  Ids are indexes into that list, so that loading can
+ * begin anywhere, including in the middle of a key.  It records the id and
+ * the number of values of every load so that tests can assert on how loading
+ * happened.
+ *
+ */
+class FakeMapLoadingIterable extends MapLoadingIterable<String, Integer, Integer> {
+
+  private final List<String> keys = Lists.newArrayList();
+  private final List<Integer> values = Lists.newArrayList();
+  private final boolean resumable;
+  private final List<Integer> loadedIds =
+      Collections.synchronizedList(Lists.<Integer>newArrayList());
+  private int loadedValueCount;
+
+  /**
+   * @param resumable whether the iterable supports resuming in the middle of
+   * a key
+   * @param keysAndValueCounts the keys in order, each followed by the number of
+   * values it has.  The values of a key are numbered from 0.
+   */
+  FakeMapLoadingIterable(
+      int batchSize, boolean resumable, Object... keysAndValueCounts) {
+    this(ListLoadingIterable.NO_OP_LOAD_LISTENER, batchSize, resumable,
+        keysAndValueCounts);
+  }
+
+  FakeMapLoadingIterable(BatchLoadListener loadListener,
+      int batchSize, boolean resumable, Object... keysAndValueCounts) {
+    super(0, CallableTransforms.getIdentityTransform(),
+        BatchSizeControllers.fixed(batchSize), loadListener);
+    this.resumable = resumable;
+    for (int i = 0; i < keysAndValueCounts.length; i += 2) {
+      for (int value = 0; value < (Integer) keysAndValueCounts[i + 1];
+          value++) {
+        keys.add((String) keysAndValueCounts[i]);
+        values.add(value);
+      }
+    }
+  }
+
+  List<Integer> getLoadedIds() {
+    synchronized (loadedIds) {
+      return ImmutableList.copyOf(loadedIds);
+    }
+  }
+
+  synchronized int getLoadedValueCount() {
+    return loadedValueCount;
+  }
+
+  @Override protected Map<String, List<Integer>> loadBatch(
+      Integer beginIdForBatch, Integer batchSize) {
+    loadedIds.add(beginIdForBatch);
+    // a hash map, so that the iterable has to sort the keys.
+    Map<String, List<Integer>> batch = Maps.newHashMap();
+    int end = Math.min(beginIdForBatch + batchSize, keys.size());
+    for (int i = beginIdForBatch; i < end; i++) {
+      if (!batch.containsKey(keys.get(i))) {
+        batch.put(keys.get(i), Lists.<Integer>newArrayList());
+      }
+      batch.get(keys.get(i)).add(values.get(i));
+    }
+    synchronized (this) {
+      loadedValueCount += Math.max(0, end - beginIdForBatch);
+    }
+    return batch;
+  }
+
+  @Override protected Ordering<String> getOrdering() {
+    return Ordering.natural();
+  }
+
+  @Override protected Integer innerGetNextId(String previousEnd) {
+    return keys.lastIndexOf(previousEnd) + 1;
+  }
+
+  @Override protected Integer getResumeId(String key, Integer lastLoadedValue) {
+    return resumable ? keys.indexOf(key) + lastLoadedValue + 1 : null;
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Tests for {@link IntBatch}.
+ *
+ */
+public class IntBatchTest extends TestCase {
+
+  public void testAccessors() {
+    IntBatch batch = IntBatch.of(3, 1, 4);
+
+    assertEquals(3, batch.size());
+    assertFalse(batch.isEmpty());
+    assertEquals(1, batch.get(1));
+    assertTrue(Arrays.equals(new int[] {3, 1, 4}, batch.toArray()));
+    assertEquals("[3, 1, 4]", batch.toString());
+    assertTrue(IntBatch.of().isEmpty());
+  }
+
+  public void testGetOutOfRange() {
+    try {
+      IntBatch.of(1).get(1);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+  }
+
+  public void testOwnsItsValues() {
+    int[] values = {1, 2};
+    IntBatch batch = IntBatch.of(values);
+    values[0] = 5;
+
+    assertEquals(1, batch.get(0));
+    batch.toArray()[1] = 5;
+    assertEquals(2, batch.get(1));
+  }
+
+  public void testCopyTo() {
+    int[] destination = new int[5];
+    IntBatch.of(7, 8).copyTo(destination, 2);
+    assertTrue(Arrays.equals(new int[] {0, 0, 7, 8, 0}, destination));
+
+    try {
+      IntBatch.of(7, 8).copyTo(destination, 4);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+  }
+
+  public void testIntIterator() {
+    IntBatch.IntIterator iterator = IntBatch.of(5, 6).intIterator();
+
+    assertTrue(iterator.hasNext());
+    assertEquals(5, iterator.nextInt());
+    assertEquals(6, iterator.nextInt());
+    assertFalse(iterator.hasNext());
+    try {
+      iterator.nextInt();
+      fail();
+    } catch (NoSuchElementException expected) {
+    }
+  }
+
+  public void testViewOnlyCoversItsSize() {
+    IntBatch view = IntBatch.view(new int[] {1, 2, 3}, 2);
+
+    assertEquals(IntBatch.of(1, 2), view);
+    assertEquals(IntBatch.of(1, 2).hashCode(), view.hashCode());
+    assertFalse(view.equals(IntBatch.of(1, 2, 3)));
+  }
+}
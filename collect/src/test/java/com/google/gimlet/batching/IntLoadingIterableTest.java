@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.Lists;
+import com.google.gimlet.parallel.CallableTransforms;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for {@link IntLoadingIterable}.
+ *
+ */
+public class IntLoadingIterableTest extends TestCase {
+
+  /** Loads the integers from the begin id up to an exclusive limit. */
+  private static class RangeLoadingIterable
+      extends IntLoadingIterable<Integer> {
+    private final int limit;
+    private final List<Integer> loadedIds =
+        Collections.synchronizedList(Lists.<Integer>newArrayList());
+
+    RangeLoadingIterable(int batchCapacity, int limit) {
+      super(0, batchCapacity, CallableTransforms.getIdentityTransform());
+      this.limit = limit;
+    }
+
+    @Override protected Integer getNextId(int previousEnd) {
+      return previousEnd + 1;
+    }
+
+    @Override protected int loadNextBatch(
+        Integer beginIdForBatch, int[] buffer) {
+      loadedIds.add(beginIdForBatch);
+      int count = 0;
+      for (int i = beginIdForBatch; i < limit && count < buffer.length; i++) {
+        buffer[count++] = i;
+      }
+      return count;
+    }
+  }
+
+  public void testIteratesOverAllValues() {
+    RangeLoadingIterable loadingIterable = new RangeLoadingIterable(3, 7);
+    IntBatch.IntIterator iterator = loadingIterable.intIterator();
+
+    for (int i = 0; i < 7; i++) {
+      assertTrue(iterator.hasNext());
+      assertEquals(i, iterator.nextInt());
+    }
+    assertFalse(iterator.hasNext());
+    assertEquals(
+        Lists.newArrayList(0, 3, 6, 7), loadingIterable.loadedIds);
+  }
+
+  public void testEmpty() {
+    assertFalse(new RangeLoadingIterable(3, 0).intIterator().hasNext());
+  }
+
+  public void testBatchesReuseOneBuffer() {
+    Iterator<IntBatch> batches =
+        new RangeLoadingIterable(2, 4).batchIterator();
+
+    IntBatch first = batches.next();
+    assertEquals(IntBatch.of(0, 1), first);
+    int[] kept = first.toArray();
+    assertEquals(IntBatch.of(2, 3), batches.next());
+    // the first batch was a view over the buffer that the second load filled.
+    assertEquals(IntBatch.of(2, 3), first);
+    assertEquals(IntBatch.of(0, 1), IntBatch.of(kept));
+    assertFalse(batches.hasNext());
+  }
+
+  public void testLoadingTooManyValuesFails() {
+    IntLoadingIterable<Integer> overflowing =
+        new RangeLoadingIterable(2, 4) {
+          @Override protected int loadNextBatch(
+              Integer beginIdForBatch, int[] buffer) {
+            return buffer.length + 1;
+          }
+        };
+    try {
+      overflowing.intIterator().hasNext();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+}
@@ -19,6 +19,7 @@ package com.google.gimlet.batching;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Ordering;
 import com.google.gimlet.collect.GimletMaps;
 import com.google.gimlet.parallel.CallableTransforms;
 import com.google.gimlet.testing.tl4j.JUnitAsserts;
@@ -76,6 +77,57 @@ public class ListLoadingIterableTest extends TestCase {
         "a", "b", "c", "d", "e", "g");
   }
 
+  public void testSeek() {
+    FakeListLoadingIterable loadingIterable = new FakeListLoadingIterable(
+        3, "a", "b", "c", "d", "e", "f", "g", "h");
+    SeekableIterator<Integer, String> iterator =
+        loadingIterable.seekableIterator(Ordering.natural());
+
+    assertEquals("a", iterator.next());
+    iterator.seek(6);
+    assertEquals("g", iterator.next());
+    iterator.seek(1);
+    assertEquals("b", iterator.next());
+    assertEquals(ImmutableList.of(0, 6, 1), loadingIterable.getLoadedIds());
+  }
+
+  public void testSkipToWithinBatch() {
+    FakeListLoadingIterable loadingIterable = new FakeListLoadingIterable(
+        4, "a", "b", "c", "d", "e", "f");
+    SeekableIterator<Integer, String> iterator =
+        loadingIterable.seekableIterator(Ordering.natural());
+
+    assertEquals("a", iterator.next());
+    iterator.skipTo(2);
+    assertEquals("c", iterator.next());
+    // an id behind the iterator leaves it where it is.
+    iterator.skipTo(1);
+    assertEquals("d", iterator.next());
+    assertEquals(ImmutableList.of(0), loadingIterable.getLoadedIds());
+  }
+
+  public void testSkipToBeyondBatch() {
+    FakeListLoadingIterable loadingIterable = new FakeListLoadingIterable(
+        3, "a", "b", "c", "d", "e", "f", "g", "h");
+    SeekableIterator<Integer, String> iterator =
+        loadingIterable.seekableIterator(Ordering.natural());
+
+    iterator.skipTo(4);
+    assertEquals("e", iterator.next());
+    iterator.skipTo(7);
+    assertEquals("h", iterator.next());
+    assertFalse(iterator.hasNext());
+    assertEquals(ImmutableList.of(4, 7, 8), loadingIterable.getLoadedIds());
+  }
+
+  public void testSkipToPastTheEnd() {
+    SeekableIterator<Integer, String> iterator = new FakeListLoadingIterable(
+        3, "a", "b").seekableIterator(Ordering.natural());
+
+    assertEquals("a", iterator.next());
+    iterator.skipTo(5);
+    assertFalse(iterator.hasNext());
+  }
 
   private void assertWithBatches(Map<String, Integer> nextIds,
       Map<Integer, List<String>> batches, String... results) {
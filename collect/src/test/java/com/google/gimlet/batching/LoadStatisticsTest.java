@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gimlet.parallel.ExecutionStrategies;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link LoadStatistics} and {@link RollingHistogram}.
+ *
+ */
+public class LoadStatisticsTest extends TestCase {
+
+  public void testHistogramSummarizesWindow() {
+    RollingHistogram histogram = new RollingHistogram(4);
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(50));
+
+    for (long value : new long[] {5, 1, 4, 2, 3}) {
+      histogram.record(value);
+    }
+    // the first value was evicted by the last one.
+    assertEquals(4, histogram.getCount());
+    assertEquals(5, histogram.getTotalCount());
+    assertEquals(1, histogram.getMin());
+    assertEquals(4, histogram.getMax());
+    assertEquals(2.5, histogram.getMean());
+    assertEquals(2, histogram.getPercentile(50));
+    assertEquals(4, histogram.getPercentile(99));
+    assertEquals(1, histogram.getPercentile(0));
+  }
+
+  public void testHistogramCountsBuckets() {
+    RollingHistogram histogram = new RollingHistogram(10);
+    for (long value : new long[] {0, 1, 2, 9, 10, 11, 100}) {
+      histogram.record(value);
+    }
+
+    assertTrue(Arrays.equals(new int[] {2, 3, 2},
+        histogram.getBucketCounts(1, 10)));
+    assertTrue(Arrays.equals(new int[] {7}, histogram.getBucketCounts()));
+  }
+
+  public void testRecordsListLoadsAndWaits() {
+    LoadStatistics statistics = LoadStatistics.withWindowSize(10);
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(statistics, 2, "a", "b", "c", "d", "e");
+
+    ImmutableList.copyOf(loadingIterable);
+    assertEquals(4, statistics.getLoadNanos().getTotalCount());
+    assertTrue(Arrays.equals(new int[] {1, 1, 2},
+        statistics.getLoadedItemCounts().getBucketCounts(0, 1)));
+    assertEquals(4, statistics.getWaitNanos().getTotalCount());
+    // consumers of a loading iterable wait for each load as it happens.
+    assertTrue(
+        statistics.getTotalWaitNanos() >= statistics.getTotalLoadNanos());
+
+    ImmutableList.copyOf(loadingIterable.batches());
+    assertEquals(8, statistics.getLoadNanos().getTotalCount());
+    assertEquals(8, statistics.getWaitNanos().getTotalCount());
+  }
+
+  public void testRecordsKeyAndValueCountsOfMapLoads() {
+    LoadStatistics statistics = LoadStatistics.withWindowSize(10);
+    FakeMapLoadingIterable mapLoadingIterable = new FakeMapLoadingIterable(
+        statistics, 4, false, "a", 3, "b", 3, "c", 1);
+
+    ImmutableList.copyOf(mapLoadingIterable);
+    assertEquals(4, statistics.getLoadNanos().getTotalCount());
+    assertEquals(1.25, statistics.getLoadedItemCounts().getMean());
+    assertEquals(2.25, statistics.getLoadedValueCounts().getMean());
+    assertEquals(4, statistics.getLoadedValueCounts().getMax());
+    assertEquals(4, statistics.getWaitNanos().getTotalCount());
+  }
+
+  public void testRecordsWaitsOfPrefetchingIterators() {
+    LoadStatistics statistics = LoadStatistics.withWindowSize(10);
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(statistics, 2, "a", "b", "c");
+
+    assertEquals(ImmutableList.of("a", "b", "c"),
+        ImmutableList.copyOf(PrefetchingListLoadingIterable.of(
+            loadingIterable, ExecutionStrategies.sameThreadStrategy(), 1)));
+    assertEquals(3, statistics.getLoadNanos().getTotalCount());
+    assertEquals(3, statistics.getWaitNanos().getTotalCount());
+  }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.gimlet.parallel.ExecutionStrategies;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link LoadingBatchPublisher}.
+ *
+ */
+public class LoadingBatchPublisherTest extends TestCase {
+
+  public void testLoadsOnlyRequestedBatches() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(2, "a", "b", "c", "d", "e");
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    LoadingBatchPublisher.of(
+        loadingIterable, ExecutionStrategies.sameThreadStrategy())
+        .subscribe(subscriber);
+
+    assertEquals(ImmutableList.of(), loadingIterable.getLoadedIds());
+    subscriber.subscription.request(1);
+    assertEquals(ImmutableList.of("[a, b]"), subscriber.events);
+    assertEquals(ImmutableList.of(0), loadingIterable.getLoadedIds());
+
+    subscriber.subscription.request(5);
+    assertEquals(ImmutableList.of("[a, b]", "[c, d]", "[e]", "complete"),
+        subscriber.events);
+    assertEquals(ImmutableList.of(0, 2, 4, 5), loadingIterable.getLoadedIds());
+  }
+
+  public void testRequestsFromWithinOnNextKeepLoading() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "a", "b", "c");
+    RecordingSubscriber subscriber = new RecordingSubscriber() {
+      @Override public void onNext(Batch<? extends String> batch) {
+        super.onNext(batch);
+        subscription.request(1);
+      }
+    };
+    LoadingBatchPublisher.of(
+        loadingIterable, ExecutionStrategies.sameThreadStrategy())
+        .subscribe(subscriber);
+
+    subscriber.subscription.request(1);
+    assertEquals(ImmutableList.of("[a]", "[b]", "[c]", "complete"),
+        subscriber.events);
+  }
+
+  public void testCancelStopsLoading() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "a", "b", "c");
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    LoadingBatchPublisher.of(
+        loadingIterable, ExecutionStrategies.sameThreadStrategy())
+        .subscribe(subscriber);
+
+    subscriber.subscription.request(1);
+    subscriber.subscription.cancel();
+    subscriber.subscription.request(1);
+    assertEquals(ImmutableList.of("[a]"), subscriber.events);
+    assertEquals(ImmutableList.of(0), loadingIterable.getLoadedIds());
+  }
+
+  public void testFailedLoadEndsScanWithError() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "a", "b") {
+          @Override protected List<String> loadNextBatch(
+              Integer beginIdForBatch) {
+            if (beginIdForBatch == 1) {
+              throw new IllegalStateException("backend is down");
+            }
+            return super.loadNextBatch(beginIdForBatch);
+          }
+        };
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    LoadingBatchPublisher.of(
+        loadingIterable, ExecutionStrategies.sameThreadStrategy())
+        .subscribe(subscriber);
+
+    subscriber.subscription.request(Long.MAX_VALUE);
+    assertEquals(ImmutableList.of("[a]", "error"), subscriber.events);
+  }
+
+  public void testNonPositiveRequestIsAnError() {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    LoadingBatchPublisher.of(new FakeListLoadingIterable(1, "a"),
+        ExecutionStrategies.sameThreadStrategy())
+        .subscribe(subscriber);
+
+    subscriber.subscription.request(0);
+    subscriber.subscription.request(1);
+    assertEquals(ImmutableList.of("error"), subscriber.events);
+  }
+
+  public void testNonPositiveRequestWaitsForRunningLoad() throws Exception {
+    final CountDownLatch loadStarted = new CountDownLatch(1);
+    final CountDownLatch loadMayFinish = new CountDownLatch(1);
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "a", "b") {
+          @Override protected List<String> loadNextBatch(
+              Integer beginIdForBatch) {
+            loadStarted.countDown();
+            try {
+              loadMayFinish.await();
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            return super.loadNextBatch(beginIdForBatch);
+          }
+        };
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    try {
+      final CountDownLatch failed = new CountDownLatch(1);
+      RecordingSubscriber subscriber = new RecordingSubscriber() {
+        @Override public synchronized void onError(Throwable t) {
+          super.onError(t);
+          failed.countDown();
+        }
+      };
+      LoadingBatchPublisher.of(loadingIterable,
+          ExecutionStrategies.executorServiceStrategy(executorService))
+          .subscribe(subscriber);
+
+      subscriber.subscription.request(1);
+      assertTrue(loadStarted.await(10, TimeUnit.SECONDS));
+      subscriber.subscription.request(-1);
+      assertEquals(ImmutableList.of(), subscriber.getEvents());
+
+      loadMayFinish.countDown();
+      assertTrue(failed.await(10, TimeUnit.SECONDS));
+      assertEquals(ImmutableList.of("[a]", "error"), subscriber.getEvents());
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  public void testCarriedOverKeysAreStitchedAcrossRequests() {
+    FakeMapLoadingIterable loadingIterable =
+        new FakeMapLoadingIterable(4, true, "a", 3, "b", 3, "c", 1);
+    final List<String> keyedBatches = Lists.newArrayList();
+    final BatchSubscription[] subscription = new BatchSubscription[1];
+    LoadingBatchPublisher.of(
+        loadingIterable, ExecutionStrategies.sameThreadStrategy())
+        .subscribe(new BatchSubscriber<KeyedBatch<String, Integer>>() {
+          @Override public void onSubscribe(BatchSubscription s) {
+            subscription[0] = s;
+          }
+
+          @Override public void onNext(
+              Batch<? extends KeyedBatch<String, Integer>> batch) {
+            for (KeyedBatch<String, Integer> keyedBatch : batch) {
+              keyedBatches.add(keyedBatch.getKey() + ":"
+                  + ImmutableList.copyOf(keyedBatch.getBatch()));
+            }
+          }
+
+          @Override public void onError(Throwable t) {
+            keyedBatches.add("error");
+          }
+
+          @Override public void onComplete() {
+            keyedBatches.add("complete");
+          }
+        });
+
+    subscription[0].request(1);
+    // "b" is carried over rather than handed out in part.
+    assertEquals(ImmutableList.of("a:[0, 1, 2]"), keyedBatches);
+    assertEquals(ImmutableList.of(0), loadingIterable.getLoadedIds());
+
+    subscription[0].request(1);
+    subscription[0].request(1);
+    assertEquals(
+        ImmutableList.of("a:[0, 1, 2]", "b:[0, 1, 2]", "c:[0]", "complete"),
+        keyedBatches);
+    assertEquals(ImmutableList.of(0, 4, 7), loadingIterable.getLoadedIds());
+  }
+
+  public void testServesManySubscribersOnSmallPool() throws Exception {
+    ExecutorService executorService = Executors.newFixedThreadPool(2);
+    try {
+      LoadingBatchPublisher<Integer, String> publisher =
+          LoadingBatchPublisher.of(
+              new FakeListLoadingIterable(2, "a", "b", "c", "d", "e"),
+              ExecutionStrategies.executorServiceStrategy(executorService));
+      final CountDownLatch completed = new CountDownLatch(50);
+      List<RecordingSubscriber> subscribers = Lists.newArrayList();
+      for (int i = 0; i < 50; i++) {
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+          @Override public synchronized void onComplete() {
+            super.onComplete();
+            completed.countDown();
+          }
+        };
+        publisher.subscribe(subscriber);
+        subscribers.add(subscriber);
+      }
+      for (RecordingSubscriber subscriber : subscribers) {
+        subscriber.subscription.request(Long.MAX_VALUE);
+      }
+
+      assertTrue(completed.await(10, TimeUnit.SECONDS));
+      for (RecordingSubscriber subscriber : subscribers) {
+        assertEquals(ImmutableList.of("[a, b]", "[c, d]", "[e]", "complete"),
+            subscriber.getEvents());
+      }
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  /** Records what it is told, as text. */
+  private static class RecordingSubscriber implements BatchSubscriber<String> {
+    final List<String> events = Lists.newArrayList();
+    BatchSubscription subscription;
+
+    synchronized List<String> getEvents() {
+      return ImmutableList.copyOf(events);
+    }
+
+    @Override public void onSubscribe(BatchSubscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override public synchronized void onNext(Batch<? extends String> batch) {
+      events.add(ImmutableList.copyOf(batch).toString());
+    }
+
+    @Override public synchronized void onError(Throwable t) {
+      events.add("error");
+    }
+
+    @Override public synchronized void onComplete() {
+      events.add("complete");
+    }
+  }
+}
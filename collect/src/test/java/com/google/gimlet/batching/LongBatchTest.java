@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Tests for {@link LongBatch}.
+ *
+ */
+public class LongBatchTest extends TestCase {
+
+  public void testAccessors() {
+    LongBatch batch = LongBatch.of(3L, Long.MAX_VALUE, Long.MIN_VALUE);
+
+    assertEquals(3, batch.size());
+    assertFalse(batch.isEmpty());
+    assertEquals(Long.MAX_VALUE, batch.get(1));
+    assertTrue(Arrays.equals(
+        new long[] {3L, Long.MAX_VALUE, Long.MIN_VALUE}, batch.toArray()));
+    assertEquals(
+        "[3, 9223372036854775807, -9223372036854775808]", batch.toString());
+    assertTrue(LongBatch.of().isEmpty());
+  }
+
+  public void testOwnsItsValues() {
+    long[] values = {1L, 2L};
+    LongBatch batch = LongBatch.of(values);
+    values[0] = 5L;
+
+    assertEquals(1L, batch.get(0));
+    batch.toArray()[1] = 5L;
+    assertEquals(2L, batch.get(1));
+  }
+
+  public void testLongIterator() {
+    LongBatch.LongIterator iterator = LongBatch.of(5L, 6L).longIterator();
+
+    assertEquals(5L, iterator.nextLong());
+    assertEquals(6L, iterator.nextLong());
+    assertFalse(iterator.hasNext());
+    try {
+      iterator.nextLong();
+      fail();
+    } catch (NoSuchElementException expected) {
+    }
+  }
+
+  public void testEqualsComparesAllBits() {
+    // values that agree in their low 32 bits must still differ.
+    assertFalse(LongBatch.of(1L).equals(LongBatch.of(1L + (1L << 32))));
+    assertEquals(LongBatch.of(1L << 40), LongBatch.of(1L << 40));
+    assertEquals(LongBatch.of(1L << 40).hashCode(),
+        LongBatch.of(1L << 40).hashCode());
+  }
+
+  public void testViewOnlyCoversItsSize() {
+    LongBatch view = LongBatch.view(new long[] {1L, 2L, 3L}, 2);
+
+    assertEquals(LongBatch.of(1L, 2L), view);
+    assertEquals(LongBatch.of(1L, 2L).hashCode(), view.hashCode());
+    assertFalse(view.equals(LongBatch.of(1L, 2L, 3L)));
+  }
+}
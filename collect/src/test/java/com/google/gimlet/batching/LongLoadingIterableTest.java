@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.Lists;
+import com.google.gimlet.parallel.CallableTransforms;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for {@link LongLoadingIterable}.
+ *
+ */
+public class LongLoadingIterableTest extends TestCase {
+
+  /**
+   * Loads consecutive multiples of 2^32, starting with the begin id, up to
+   * an exclusive limit.
+   */
+  private static class WideRangeLoadingIterable
+      extends LongLoadingIterable<Long> {
+    private static final long STEP = 1L << 32;
+
+    private final long limit;
+    private final List<Long> loadedIds = Lists.newArrayList();
+
+    WideRangeLoadingIterable(int batchCapacity, long limit) {
+      super(0L, batchCapacity, CallableTransforms.getIdentityTransform());
+      this.limit = limit;
+    }
+
+    @Override protected Long getNextId(long previousEnd) {
+      return previousEnd + STEP;
+    }
+
+    @Override protected int loadNextBatch(Long beginIdForBatch, long[] buffer) {
+      loadedIds.add(beginIdForBatch);
+      int count = 0;
+      for (long i = beginIdForBatch; i < limit && count < buffer.length;
+          i += STEP) {
+        buffer[count++] = i;
+      }
+      return count;
+    }
+  }
+
+  public void testIteratesOverAllValues() {
+    long step = WideRangeLoadingIterable.STEP;
+    WideRangeLoadingIterable loadingIterable =
+        new WideRangeLoadingIterable(2, 5 * step);
+    LongBatch.LongIterator iterator = loadingIterable.longIterator();
+
+    for (int i = 0; i < 5; i++) {
+      assertTrue(iterator.hasNext());
+      assertEquals(i * step, iterator.nextLong());
+    }
+    assertFalse(iterator.hasNext());
+    assertEquals(Lists.newArrayList(0L, 2 * step, 4 * step, 5 * step),
+        loadingIterable.loadedIds);
+  }
+
+  public void testEmpty() {
+    assertFalse(new WideRangeLoadingIterable(3, 0L).longIterator().hasNext());
+  }
+
+  public void testBatchesReuseOneBuffer() {
+    long step = WideRangeLoadingIterable.STEP;
+    Iterator<LongBatch> batches =
+        new WideRangeLoadingIterable(2, 4 * step).batchIterator();
+
+    LongBatch first = batches.next();
+    assertEquals(LongBatch.of(0L, step), first);
+    assertEquals(LongBatch.of(2 * step, 3 * step), batches.next());
+    assertEquals(LongBatch.of(2 * step, 3 * step), first);
+    assertFalse(batches.hasNext());
+  }
+}
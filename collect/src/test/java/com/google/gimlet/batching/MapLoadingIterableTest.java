@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.gimlet.parallel.CallableTransforms;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Tests for {@link MapLoadingIterable}.
+ *
+ */
+public class MapLoadingIterableTest extends TestCase {
+
+  public void testReloadsLastKeyWithoutResumeIds() {
+    FakeMapLoadingIterable mapLoadingIterable =
+        new FakeMapLoadingIterable(4, false, "a", 3, "b", 3, "c", 1);
+
+    assertEquals(ImmutableList.of("a:[0, 1, 2]", "b:[0, 1, 2]", "c:[0]"),
+        describe(mapLoadingIterable));
+    // "b" is dropped from the first load and loaded again from its start.
+    assertEquals(ImmutableList.of(0, 3, 6, 7),
+        mapLoadingIterable.getLoadedIds());
+    assertEquals(9, mapLoadingIterable.getLoadedValueCount());
+  }
+
+  public void testCarriesOverLastKeyWithResumeIds() {
+    FakeMapLoadingIterable mapLoadingIterable =
+        new FakeMapLoadingIterable(4, true, "a", 3, "b", 3, "c", 1);
+
+    assertEquals(ImmutableList.of("a:[0, 1, 2]", "b:[0, 1, 2]", "c:[0]"),
+        describe(mapLoadingIterable));
+    // every value is loaded exactly once.
+    assertEquals(ImmutableList.of(0, 4, 7), mapLoadingIterable.getLoadedIds());
+    assertEquals(7, mapLoadingIterable.getLoadedValueCount());
+  }
+
+  public void testSplitsKeyWiderThanOneLoadIntoChunks() {
+    FakeMapLoadingIterable mapLoadingIterable =
+        new FakeMapLoadingIterable(2, true, "a", 1, "b", 5, "c", 2);
+
+    assertEquals(
+        ImmutableList.of("a:[0]", "b:[0, 1, 2]", "b:[3, 4]", "c:[0, 1]"),
+        describe(mapLoadingIterable));
+    assertEquals(8, mapLoadingIterable.getLoadedValueCount());
+  }
+
+  public void testReturnsOneLoadOfWideKeyWithoutResumeIds() {
+    FakeMapLoadingIterable mapLoadingIterable =
+        new FakeMapLoadingIterable(2, false, "a", 3);
+
+    assertEquals(ImmutableList.of("a:[0, 1]"), describe(mapLoadingIterable));
+  }
+
+  public void testReloadsLastKeyWithoutValues() {
+    for (boolean resumable : new boolean[] {false, true}) {
+      FakeMapLoadingIterable mapLoadingIterable =
+          new FakeMapLoadingIterable(3, resumable, "a", 2, "b", 1, "c", 1) {
+            @Override protected Map<String, List<Integer>> loadBatch(
+                Integer beginIdForBatch, Integer batchSize) {
+              Map<String, List<Integer>> batch =
+                  super.loadBatch(beginIdForBatch, batchSize);
+              if (batch.containsKey("b")) {
+                batch.get("b").clear();
+              }
+              return batch;
+            }
+          };
+
+      assertEquals(ImmutableList.of("a:[0, 1]", "b:[]", "c:[0]"),
+          describe(mapLoadingIterable));
+      // "b" is dropped from the first load and loaded again from its start,
+      // whether or not resume ids are used.
+      assertEquals(
+          resumable ? ImmutableList.of(0, 2, 4) : ImmutableList.of(0, 2, 3, 4),
+          mapLoadingIterable.getLoadedIds());
+    }
+  }
+
+  public void testWithNoEntries() {
+    assertEquals(ImmutableList.of(),
+        describe(new FakeMapLoadingIterable(4, true)));
+  }
+
+  public void testDoesNotSortSortedMaps() {
+    final CountingOrdering ordering = new CountingOrdering();
+    FakeMapLoadingIterable mapLoadingIterable =
+        new FakeMapLoadingIterable(4, false, "a", 2, "b", 1, "c", 2) {
+          @Override protected Map<String, List<Integer>> loadBatch(
+              Integer beginIdForBatch, Integer batchSize) {
+            SortedMap<String, List<Integer>> batch = Maps.newTreeMap(ordering);
+            batch.putAll(super.loadBatch(beginIdForBatch, batchSize));
+            ordering.compareCount = 0;
+            return batch;
+          }
+
+          @Override protected Ordering<String> getOrdering() {
+            return ordering;
+          }
+        };
+
+    assertEquals(ImmutableList.of("a:[0, 1]", "b:[0]", "c:[0, 1]"),
+        describe(mapLoadingIterable));
+    assertEquals(0, ordering.compareCount);
+  }
+
+  public void testDoesNotSortLoadsDeclaredSorted() {
+    final CountingOrdering ordering = new CountingOrdering();
+    FakeMapLoadingIterable mapLoadingIterable =
+        new FakeMapLoadingIterable(4, false, "a", 2, "b", 1, "c", 2) {
+          @Override protected Map<String, List<Integer>> loadBatch(
+              Integer beginIdForBatch, Integer batchSize) {
+            return Maps.newLinkedHashMap(new TreeMap<String, List<Integer>>(
+                super.loadBatch(beginIdForBatch, batchSize)));
+          }
+
+          @Override protected Ordering<String> getOrdering() {
+            return ordering;
+          }
+
+          @Override protected boolean isLoadBatchSorted() {
+            return true;
+          }
+        };
+
+    assertEquals(ImmutableList.of("a:[0, 1]", "b:[0]", "c:[0, 1]"),
+        describe(mapLoadingIterable));
+    assertEquals(0, ordering.compareCount);
+  }
+
+  public void testSortsMapsSortedByAnotherOrdering() {
+    FakeMapLoadingIterable mapLoadingIterable =
+        new FakeMapLoadingIterable(4, false, "a", 2, "b", 1, "c", 2) {
+          @Override protected Map<String, List<Integer>> loadBatch(
+              Integer beginIdForBatch, Integer batchSize) {
+            SortedMap<String, List<Integer>> batch =
+                Maps.newTreeMap(Ordering.natural().reverse());
+            batch.putAll(super.loadBatch(beginIdForBatch, batchSize));
+            return batch;
+          }
+        };
+
+    assertEquals(ImmutableList.of("a:[0, 1]", "b:[0]", "c:[0, 1]"),
+        describe(mapLoadingIterable));
+  }
+
+  public void testBatchSizeConstructorTakesAnyBatchSize() {
+    final List<Integer> batchSizes = Lists.newArrayList();
+    MapLoadingIterable<String, Integer, Integer> mapLoadingIterable =
+        new MapLoadingIterable<String, Integer, Integer>(
+            0, CallableTransforms.getIdentityTransform(), 0) {
+          @Override protected Map<String, List<Integer>> loadBatch(
+              Integer beginIdForBatch, Integer batchSize) {
+            batchSizes.add(batchSize);
+            return Maps.newHashMap();
+          }
+
+          @Override protected Ordering<String> getOrdering() {
+            return Ordering.natural();
+          }
+
+          @Override protected Integer innerGetNextId(String previousEnd) {
+            throw new AssertionError();
+          }
+        };
+
+    assertEquals(ImmutableList.of(), describe(mapLoadingIterable));
+    assertEquals(ImmutableList.of(0), batchSizes);
+  }
+
+  /** The natural ordering of strings, counting its comparisons. */
+  private static class CountingOrdering extends Ordering<String> {
+    int compareCount;
+
+    @Override public int compare(String left, String right) {
+      compareCount++;
+      return left.compareTo(right);
+    }
+  }
+
+  private static List<String> describe(
+      Iterable<KeyedBatch<String, Integer>> keyedBatches) {
+    List<String> descriptions = Lists.newArrayList();
+    for (KeyedBatch<String, Integer> keyedBatch : keyedBatches) {
+      descriptions.add(keyedBatch.getKey() + ":"
+          + ImmutableList.copyOf(keyedBatch.getBatch()));
+    }
+    return descriptions;
+  }
+}
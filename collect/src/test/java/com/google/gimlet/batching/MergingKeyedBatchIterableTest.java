@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.gimlet.parallel.ExecutionStrategies;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for {@link MergingKeyedBatchIterable}.
+ *
+ */
+public class MergingKeyedBatchIterableTest extends TestCase {
+
+  public void testMergesAndCombinesEqualKeys() {
+    List<KeyedBatch<String, Integer>> first = ImmutableList.of(
+        keyedBatch("a", 1), keyedBatch("c", 2, 3), keyedBatch("d", 4));
+    List<KeyedBatch<String, Integer>> second = ImmutableList.of(
+        keyedBatch("b", 5), keyedBatch("c", 6), keyedBatch("e", 7));
+
+    assertEquals(
+        ImmutableList.of("a:[1]", "b:[5]", "c:[2, 3, 6]", "d:[4]", "e:[7]"),
+        describe(MergingKeyedBatchIterable.of(Ordering.natural(),
+            ImmutableList.of(first, second))));
+  }
+
+  public void testKeepsChunksOfOneStreamApart() {
+    List<KeyedBatch<String, Integer>> first = ImmutableList.of(
+        keyedBatch("a", 1), keyedBatch("a", 2));
+    List<KeyedBatch<String, Integer>> second = ImmutableList.of(
+        keyedBatch("a", 3));
+
+    assertEquals(ImmutableList.of("a:[1, 3]", "a:[2]"),
+        describe(MergingKeyedBatchIterable.of(Ordering.natural(),
+            ImmutableList.of(first, second))));
+  }
+
+  public void testWithEmptyStreams() {
+    List<KeyedBatch<String, Integer>> empty = ImmutableList.of();
+
+    assertEquals(ImmutableList.of(),
+        describe(MergingKeyedBatchIterable.of(Ordering.natural(),
+            ImmutableList.of(empty, empty))));
+    assertEquals(ImmutableList.of(),
+        describe(MergingKeyedBatchIterable.of(Ordering.natural(),
+            ImmutableList.<List<KeyedBatch<String, Integer>>>of())));
+  }
+
+  public void testMergesLoadingIterablesConcurrently() {
+    ExecutorService executorService = Executors.newFixedThreadPool(2);
+    try {
+      FakeMapLoadingIterable first =
+          new FakeMapLoadingIterable(2, false, "a", 1, "c", 2, "e", 1);
+      FakeMapLoadingIterable second =
+          new FakeMapLoadingIterable(2, false, "b", 2, "c", 1, "d", 1);
+
+      assertEquals(
+          ImmutableList.of(
+              "a:[0]", "b:[0, 1]", "c:[0, 1, 0]", "d:[0]", "e:[0]"),
+          describe(MergingKeyedBatchIterable.ofLoadingIterables(
+              Ordering.natural(),
+              ExecutionStrategies.executorServiceStrategy(executorService),
+              1,
+              ImmutableList.of(first, second))));
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  private static KeyedBatch<String, Integer> keyedBatch(
+      String key, Integer... values) {
+    return KeyedBatch.of(key, Batches.ofArray(values));
+  }
+
+  private static List<String> describe(
+      Iterable<KeyedBatch<String, Integer>> keyedBatches) {
+    List<String> descriptions = Lists.newArrayList();
+    for (KeyedBatch<String, Integer> keyedBatch : keyedBatches) {
+      descriptions.add(keyedBatch.getKey() + ":"
+          + ImmutableList.copyOf(keyedBatch.getBatch()));
+    }
+    return descriptions;
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.gimlet.testing.tl4j.JUnitAsserts.assertContentsAnyOrder;
+import static com.google.gimlet.testing.tl4j.JUnitAsserts.assertContentsInOrder;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import com.google.gimlet.parallel.ExecutionStrategies;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for {@link PartitionedListLoadingIterable}.
+ *
+ */
+public class PartitionedListLoadingIterableTest extends TestCase {
+
+  private static final String[] ITEMS =
+      {"a", "b", "c", "d", "e", "f", "g", "h", "i", "j"};
+
+  public void testOrderedScanReturnsAllItemsInOrder() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(3, ITEMS);
+
+    assertContentsInOrder(
+        PartitionedListLoadingIterable.of(loadingIterable,
+            ImmutableList.of(4, 5, 8), Ordering.natural(),
+            ExecutionStrategies.sameThreadStrategy(), 1),
+        (Object[]) ITEMS);
+  }
+
+  public void testPartitionsStopAtTheirUpperBound() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(3, ITEMS);
+
+    assertContentsInOrder(
+        PartitionedListLoadingIterable.of(loadingIterable,
+            ImmutableList.of(5), Ordering.natural(),
+            ExecutionStrategies.sameThreadStrategy(), 1),
+        (Object[]) ITEMS);
+    // both partitions start loading at once, and the first one stops after
+    // its second batch, which is cut short.
+    assertEquals(ImmutableList.of(0, 5, 3, 8, 10),
+        loadingIterable.getLoadedIds());
+  }
+
+  public void testUnorderedScanReturnsAllItems() {
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      FakeListLoadingIterable loadingIterable =
+          new FakeListLoadingIterable(2, ITEMS);
+      assertContentsAnyOrder(
+          PartitionedListLoadingIterable.of(loadingIterable,
+              ImmutableList.of(3, 6, 9), Ordering.natural(),
+              ExecutionStrategies.executorServiceStrategy(executorService), 2)
+              .unordered(),
+          (Object[]) ITEMS);
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  public void testSplitterIsAppliedToTheInitialValue() {
+    PartitionedListLoadingIterable<Integer, String> partitionedIterable =
+        PartitionedListLoadingIterable.of(new FakeListLoadingIterable(3, ITEMS),
+            new Function<Integer, Iterable<Integer>>() {
+              @Override public Iterable<Integer> apply(Integer initialValue) {
+                return ImmutableList.of(initialValue + 5);
+              }
+            },
+            Ordering.natural(), ExecutionStrategies.sameThreadStrategy(), 1);
+
+    assertEquals(2, partitionedIterable.getPartitionCount());
+    assertContentsInOrder(partitionedIterable, (Object[]) ITEMS);
+  }
+
+  public void testRejectsUnsortedSplitPoints() {
+    try {
+      PartitionedListLoadingIterable.of(new FakeListLoadingIterable(3, ITEMS),
+          ImmutableList.of(5, 2), Ordering.natural(),
+          ExecutionStrategies.sameThreadStrategy(), 1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.gimlet.testing.tl4j.JUnitAsserts.assertContentsInOrder;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gimlet.parallel.ExecutionStrategies;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for {@link PrefetchingListLoadingIterable}.
+ *
+ */
+public class PrefetchingListLoadingIterableTest extends TestCase {
+
+  public void testIteratesOverAllItems() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(2, "a", "b", "c", "d", "e");
+
+    assertContentsInOrder(
+        PrefetchingListLoadingIterable.of(loadingIterable,
+            ExecutionStrategies.sameThreadStrategy(), 2),
+        "a", "b", "c", "d", "e");
+    assertEquals(ImmutableList.of(0, 2, 4, 5), loadingIterable.getLoadedIds());
+  }
+
+  public void testWithEmptyFirstBatch() {
+    FakeListLoadingIterable loadingIterable = new FakeListLoadingIterable(2);
+
+    assertFalse(PrefetchingListLoadingIterable.of(loadingIterable,
+        ExecutionStrategies.sameThreadStrategy(), 3).iterator().hasNext());
+    assertEquals(ImmutableList.of(0), loadingIterable.getLoadedIds());
+  }
+
+  public void testLoadsAheadOfConsumer() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "a", "b", "c", "d", "e");
+    Iterator<String> iterator = PrefetchingListLoadingIterable.of(
+        loadingIterable, ExecutionStrategies.sameThreadStrategy(), 2)
+        .iterator();
+
+    assertEquals("a", iterator.next());
+    // the batch being consumed plus two batches of read-ahead.
+    assertEquals(ImmutableList.of(0, 1, 2), loadingIterable.getLoadedIds());
+  }
+
+  public void testWithExecutorService() {
+    ExecutorService executorService = Executors.newFixedThreadPool(2);
+    try {
+      FakeListLoadingIterable loadingIterable =
+          new FakeListLoadingIterable(2, "a", "b", "c", "d", "e", "f", "g");
+      assertContentsInOrder(
+          PrefetchingListLoadingIterable.of(loadingIterable,
+              ExecutionStrategies.executorServiceStrategy(executorService), 3),
+          "a", "b", "c", "d", "e", "f", "g");
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  public void testLoadFailureIsRethrown() {
+    ListLoadingIterable<Integer, String> failingIterable =
+        new FakeListLoadingIterable(1, "a", "b") {
+          @Override protected java.util.List<String> loadNextBatch(
+              Integer beginIdForBatch) {
+            if (beginIdForBatch == 1) {
+              throw new IllegalStateException("backend down");
+            }
+            return super.loadNextBatch(beginIdForBatch);
+          }
+        };
+    Iterator<String> iterator = PrefetchingListLoadingIterable.of(
+        failingIterable, ExecutionStrategies.sameThreadStrategy(), 1)
+        .iterator();
+
+    assertEquals("a", iterator.next());
+    try {
+      iterator.next();
+      fail();
+    } catch (RuntimeException expected) {
+      assertTrue(expected.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  public void testBufferedWeightBoundsLoadsAhead() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "a", "b", "c", "d", "e");
+    Iterator<String> iterator = PrefetchingListLoadingIterable.of(
+        loadingIterable, ExecutionStrategies.sameThreadStrategy(), 10,
+        Weighers.<String>singleton(), 2)
+        .iterator();
+
+    assertEquals("a", iterator.next());
+    // the batch being consumed plus two batches weighing one each.
+    assertEquals(ImmutableList.of(0, 1, 2), loadingIterable.getLoadedIds());
+
+    assertEquals("b", iterator.next());
+    assertEquals(ImmutableList.of(0, 1, 2, 3), loadingIterable.getLoadedIds());
+  }
+
+  public void testOversizedBatchIsStillLoaded() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(3, "a", "b", "c", "d", "e");
+    Weigher<String> heavyWeigher = new Weigher<String>() {
+      @Override public long weigh(String item) {
+        return 100;
+      }
+    };
+
+    assertContentsInOrder(
+        PrefetchingListLoadingIterable.of(loadingIterable,
+            ExecutionStrategies.sameThreadStrategy(), 4, heavyWeigher, 10),
+        "a", "b", "c", "d", "e");
+  }
+
+  public void testWeightBoundWithExecutorService() {
+    ExecutorService executorService = Executors.newFixedThreadPool(2);
+    try {
+      FakeListLoadingIterable loadingIterable =
+          new FakeListLoadingIterable(2, "a", "b", "c", "d", "e", "f", "g");
+      assertContentsInOrder(
+          PrefetchingListLoadingIterable.of(loadingIterable,
+              ExecutionStrategies.executorServiceStrategy(executorService), 3,
+              Weighers.<String>singleton(), 3),
+          "a", "b", "c", "d", "e", "f", "g");
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  public void testRejectsNonPositiveWeight() {
+    try {
+      PrefetchingListLoadingIterable.of(new FakeListLoadingIterable(1),
+          ExecutionStrategies.sameThreadStrategy(), 1,
+          Weighers.<String>singleton(), 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testRejectsNonPositiveDepth() {
+    try {
+      PrefetchingListLoadingIterable.of(new FakeListLoadingIterable(1),
+          ExecutionStrategies.sameThreadStrategy(), 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.gimlet.parallel.CallableTransform;
+import com.google.gimlet.parallel.CallableTransforms;
+
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Tests for {@link RecordFileLoadingIterable}.
+ *
+ */
+public class RecordFileLoadingIterableTest extends TestCase {
+
+  private File file;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("records", ".dat");
+  }
+
+  @Override protected void tearDown() throws Exception {
+    file.delete();
+    super.tearDown();
+  }
+
+  public void testReadsRecordsInBatches() throws IOException {
+    writeRecords("alpha", "", "bravo", "c");
+    FakeLoadCounter counter = new FakeLoadCounter();
+    RecordFileLoadingIterable records = RecordFileLoadingIterable.of(
+        file, counter, 3, 1 << 10);
+
+    assertEquals(ImmutableList.of("alpha", "", "bravo", "c"),
+        decode(records));
+    assertEquals(ImmutableList.of(3, 1, 0), counter.batchSizes);
+  }
+
+  public void testIdsAreOffsetsOfRecords() throws IOException {
+    writeRecords("alpha", "bravo", "c");
+    Iterator<MappedRecord> iterator =
+        RecordFileLoadingIterable.of(file, 10).iterator();
+
+    MappedRecord first = iterator.next();
+    assertEquals(0, first.getOffset());
+    assertEquals(9, first.getEndOffset());
+    assertEquals(9, iterator.next().getOffset());
+    assertEquals(18, iterator.next().getOffset());
+  }
+
+  public void testRollsWindowForwardThroughFile() throws IOException {
+    writeRecords("alpha", "bravo", "charlie", "delta", "echo");
+
+    // each window of ten bytes holds one record, except that the third
+    // record is larger and gets mapped on its own.
+    assertEquals(ImmutableList.of("alpha", "bravo", "charlie", "delta", "echo"),
+        decode(RecordFileLoadingIterable.of(
+            file, CallableTransforms.getIdentityTransform(), 10, 10)));
+  }
+
+  public void testInterleavedScansKeepWindowsOfTheirOwn() throws IOException {
+    writeRecords("a", "b", "c", "d", "e", "f");
+    // each window of ten bytes holds two records of five bytes.
+    RecordFileLoadingIterable records = RecordFileLoadingIterable.of(
+        file, CallableTransforms.getIdentityTransform(), 1, 10);
+    Iterator<MappedRecord> first = records.iterator();
+    SeekableIterator<Long, MappedRecord> second =
+        records.seekableIterator(Ordering.<Long>natural());
+    second.seek(15L);
+
+    List<String> interleaved = Lists.newArrayList();
+    while (first.hasNext()) {
+      interleaved.add(toString(first.next()));
+      if (second.hasNext()) {
+        interleaved.add(toString(second.next()));
+      }
+    }
+    assertEquals(ImmutableList.of("a", "d", "b", "e", "c", "f", "d", "e", "f"),
+        interleaved);
+    // the first scan maps three windows and the second two, rather than
+    // taking turns moving a shared one.
+    assertEquals(5, records.getMappedWindowCount());
+  }
+
+  public void testSeeksToOffsetOfRecord() throws IOException {
+    writeRecords("alpha", "bravo", "c");
+    SeekableIterator<Long, MappedRecord> iterator =
+        RecordFileLoadingIterable.of(file, 10).seekableIterator(
+            Ordering.<Long>natural());
+
+    iterator.seek(9L);
+    assertEquals("bravo", toString(iterator.next()));
+    assertEquals("c", toString(iterator.next()));
+    assertFalse(iterator.hasNext());
+  }
+
+  public void testWithEmptyFile() {
+    assertEquals(ImmutableList.of(),
+        ImmutableList.copyOf(RecordFileLoadingIterable.of(file, 10)));
+  }
+
+  public void testFailsOnTruncatedRecord() throws IOException {
+    writeRecords("alpha", "bravo");
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.setLength(file.length() - 1);
+    randomAccessFile.close();
+
+    Iterator<MappedRecord> iterator =
+        RecordFileLoadingIterable.of(file, 1).iterator();
+    assertEquals("alpha", toString(iterator.next()));
+    try {
+      iterator.next();
+      fail();
+    } catch (RuntimeException expected) {
+      assertTrue(expected.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  /** Counts how many records each load returned. */
+  private static class FakeLoadCounter
+      implements CallableTransform {
+    final List<Integer> batchSizes = Lists.newArrayList();
+
+    @Override public <T> Callable<T> transform(final Callable<T> callable) {
+      return new Callable<T>() {
+        @Override public T call() throws Exception {
+          T batch = callable.call();
+          batchSizes.add(((List<?>) batch).size());
+          return batch;
+        }
+      };
+    }
+  }
+
+  private void writeRecords(String... records) throws IOException {
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+    try {
+      for (String record : records) {
+        byte[] bytes = record.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static List<String> decode(Iterable<MappedRecord> records) {
+    List<String> decoded = Lists.newArrayList();
+    for (MappedRecord record : records) {
+      decoded.add(toString(record));
+    }
+    return decoded;
+  }
+
+  private static String toString(MappedRecord record) {
+    ByteBuffer data = record.getData();
+    byte[] bytes = new byte[data.remaining()];
+    data.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+}
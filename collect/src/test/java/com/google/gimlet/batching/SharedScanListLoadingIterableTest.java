@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.gimlet.testing.tl4j.JUnitAsserts.assertContentsInOrder;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for {@link SharedScanListLoadingIterable}.
+ *
+ */
+public class SharedScanListLoadingIterableTest extends TestCase {
+
+  public void testIteratorsInLockstepShareLoads() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(2, "a", "b", "c", "d", "e");
+    SharedScanListLoadingIterable<Integer, String> sharedScan =
+        SharedScanListLoadingIterable.of(loadingIterable, 1);
+    Iterator<String> first = sharedScan.iterator();
+    Iterator<String> second = sharedScan.iterator();
+
+    for (String item : ImmutableList.of("a", "b", "c", "d", "e")) {
+      assertEquals(item, first.next());
+      assertEquals(item, second.next());
+    }
+    assertFalse(first.hasNext());
+    assertFalse(second.hasNext());
+    assertEquals(ImmutableList.of(0, 2, 4, 5), loadingIterable.getLoadedIds());
+  }
+
+  public void testLaggingIteratorReusesWindow() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "a", "b", "c", "d", "e");
+    SharedScanListLoadingIterable<Integer, String> sharedScan =
+        SharedScanListLoadingIterable.of(loadingIterable, 3);
+    Iterator<String> fast = sharedScan.iterator();
+    Iterator<String> slow = sharedScan.iterator();
+
+    assertEquals("a", fast.next());
+    assertEquals("b", fast.next());
+    assertEquals("a", slow.next());
+    assertEquals("b", slow.next());
+    assertEquals("c", slow.next());
+    assertContentsInOrder(ImmutableList.copyOf(fast), "c", "d", "e");
+    assertContentsInOrder(ImmutableList.copyOf(slow), "d", "e");
+    assertEquals(
+        ImmutableList.of(0, 1, 2, 3, 4, 5), loadingIterable.getLoadedIds());
+  }
+
+  public void testIteratorBehindWindowLoadsOnItsOwn() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(2, "a", "b", "c", "d", "e");
+    SharedScanListLoadingIterable<Integer, String> sharedScan =
+        SharedScanListLoadingIterable.of(loadingIterable, 1);
+    Iterator<String> fast = sharedScan.iterator();
+    Iterator<String> slow = sharedScan.iterator();
+
+    assertEquals("a", slow.next());
+    assertContentsInOrder(ImmutableList.copyOf(fast),
+        "a", "b", "c", "d", "e");
+    assertContentsInOrder(ImmutableList.copyOf(slow), "b", "c", "d", "e");
+    assertEquals(ImmutableList.of(0, 2, 4, 5, 2, 4, 5),
+        loadingIterable.getLoadedIds());
+  }
+
+  public void testLaterIteratorStartsNewScan() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(2, "a", "b", "c");
+    SharedScanListLoadingIterable<Integer, String> sharedScan =
+        SharedScanListLoadingIterable.of(loadingIterable, 1);
+
+    assertContentsInOrder(sharedScan, "a", "b", "c");
+    assertContentsInOrder(sharedScan, "a", "b", "c");
+    assertEquals(ImmutableList.of(0, 2, 3, 0, 2, 3),
+        loadingIterable.getLoadedIds());
+  }
+
+  public void testSequentialPassesLoadAfresh() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(2, "a", "b", "c");
+    SharedScanListLoadingIterable<Integer, String> sharedScan =
+        SharedScanListLoadingIterable.of(loadingIterable, 4);
+
+    for (int pass = 0; pass < 3; pass++) {
+      assertContentsInOrder(ImmutableList.copyOf(sharedScan), "a", "b", "c");
+    }
+    assertEquals(ImmutableList.of(0, 2, 3, 0, 2, 3, 0, 2, 3),
+        loadingIterable.getLoadedIds());
+  }
+
+  public void testIteratorStartedAfterLastLoadStartsNewScan() {
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(2, "a", "b", "c");
+    SharedScanListLoadingIterable<Integer, String> sharedScan =
+        SharedScanListLoadingIterable.of(loadingIterable, 4);
+    Iterator<String> lagging = sharedScan.iterator();
+    assertEquals("a", lagging.next());
+    assertContentsInOrder(ImmutableList.copyOf(sharedScan), "a", "b", "c");
+
+    // the lagging iterator still uses the scan, but it loaded its last batch.
+    assertContentsInOrder(ImmutableList.copyOf(sharedScan), "a", "b", "c");
+    assertContentsInOrder(ImmutableList.copyOf(lagging), "b", "c");
+    assertEquals(ImmutableList.of(0, 2, 3, 0, 2, 3),
+        loadingIterable.getLoadedIds());
+  }
+
+  public void testFailedLoadIsRetried() {
+    final boolean[] failed = new boolean[1];
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "a", "b") {
+          @Override protected List<String> loadNextBatch(
+              Integer beginIdForBatch) {
+            if (beginIdForBatch == 1 && !failed[0]) {
+              failed[0] = true;
+              throw new IllegalStateException("backend down");
+            }
+            return super.loadNextBatch(beginIdForBatch);
+          }
+        };
+    SharedScanListLoadingIterable<Integer, String> sharedScan =
+        SharedScanListLoadingIterable.of(loadingIterable, 2);
+    Iterator<String> first = sharedScan.iterator();
+    Iterator<String> second = sharedScan.iterator();
+
+    assertEquals("a", first.next());
+    try {
+      first.next();
+      fail();
+    } catch (RuntimeException expected) {
+    }
+    assertContentsInOrder(ImmutableList.copyOf(second), "a", "b");
+  }
+
+  public void testFailedLoadKeepsWindow() {
+    final boolean[] failed = new boolean[1];
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(1, "a", "b") {
+          @Override protected List<String> loadNextBatch(
+              Integer beginIdForBatch) {
+            if (beginIdForBatch == 1 && !failed[0]) {
+              failed[0] = true;
+              throw new IllegalStateException("backend down");
+            }
+            return super.loadNextBatch(beginIdForBatch);
+          }
+        };
+    SharedScanListLoadingIterable<Integer, String> sharedScan =
+        SharedScanListLoadingIterable.of(loadingIterable, 1);
+    Iterator<String> first = sharedScan.iterator();
+    Iterator<String> second = sharedScan.iterator();
+
+    assertEquals("a", first.next());
+    try {
+      first.next();
+      fail();
+    } catch (RuntimeException expected) {
+    }
+    // "a" is still in the window, so it isn't loaded again.
+    assertContentsInOrder(ImmutableList.copyOf(second), "a", "b");
+    assertEquals(ImmutableList.of(0, 1, 2), loadingIterable.getLoadedIds());
+  }
+
+  public void testIteratorBehindWindowReloadsCarriedOverKey() {
+    SharedScanListLoadingIterable<Integer, KeyedBatch<String, Integer>>
+        sharedScan = SharedScanListLoadingIterable.of(
+            new FakeMapLoadingIterable(4, true, "a", 2, "b", 5, "c", 2), 1);
+    Iterator<KeyedBatch<String, Integer>> lagging = sharedScan.iterator();
+    Iterator<KeyedBatch<String, Integer>> leading = sharedScan.iterator();
+
+    assertEquals(ImmutableList.of("a:[0, 1]"), describe(lagging, 1));
+    assertEquals(ImmutableList.of("a:[0, 1]", "b:[0, 1, 2, 3, 4]", "c:[0, 1]"),
+        describe(leading, 3));
+    assertFalse(leading.hasNext());
+    // "b" has left the window, so the lagging iterator loads it on its own,
+    // from where "b" begins rather than from where the shared load of it
+    // began, as its first two values had been carried over.
+    assertEquals(ImmutableList.of("b:[0, 1, 2, 3]", "b:[4]", "c:[0, 1]"),
+        describe(lagging, 3));
+    assertFalse(lagging.hasNext());
+  }
+
+  public void testConcurrentIterators() throws Exception {
+    final FakeListLoadingIterable loadingIterable = new FakeListLoadingIterable(
+        3, "a", "b", "c", "d", "e", "f", "g", "h", "i", "j");
+    final SharedScanListLoadingIterable<Integer, String> sharedScan =
+        SharedScanListLoadingIterable.of(loadingIterable, 2);
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<List<String>>> scans = Lists.newArrayList();
+      for (int i = 0; i < 4; i++) {
+        final Iterator<String> iterator = sharedScan.iterator();
+        scans.add(executorService.submit(new Callable<List<String>>() {
+          @Override public List<String> call() {
+            return ImmutableList.copyOf(iterator);
+          }
+        }));
+      }
+      for (Future<List<String>> scan : scans) {
+        assertContentsInOrder(scan.get(),
+            "a", "b", "c", "d", "e", "f", "g", "h", "i", "j");
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  public void testRejectsNonPositiveWindow() {
+    try {
+      SharedScanListLoadingIterable.of(new FakeListLoadingIterable(1), 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /** Describes the next {@code count} keyed batches of the given iterator. */
+  private static List<String> describe(
+      Iterator<KeyedBatch<String, Integer>> keyedBatches, int count) {
+    List<String> descriptions = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      KeyedBatch<String, Integer> keyedBatch = keyedBatches.next();
+      descriptions.add(keyedBatch.getKey() + ":"
+          + ImmutableList.copyOf(keyedBatch.getBatch()));
+    }
+    return descriptions;
+  }
+}
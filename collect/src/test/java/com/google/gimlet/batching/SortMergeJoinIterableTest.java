@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Tests for {@link SortMergeJoinIterable}.
+ *
+ */
+public class SortMergeJoinIterableTest extends TestCase {
+
+  private final List<KeyedBatch<String, Integer>> entities = ImmutableList.of(
+      keyedBatch("a", 1), keyedBatch("b", 2), keyedBatch("b", 3),
+      keyedBatch("d", 4));
+  private final List<KeyedBatch<String, Integer>> events = ImmutableList.of(
+      keyedBatch("b", 10), keyedBatch("c", 20), keyedBatch("d", 30, 40),
+      keyedBatch("e", 50));
+
+  public void testInnerJoin() {
+    assertEquals(ImmutableList.of("b:[2]|[10]", "b:[3]|[10]", "d:[4]|[30, 40]"),
+        describe(SortMergeJoinIterable.innerJoin(
+            Ordering.natural(), entities, events)));
+  }
+
+  public void testLeftJoin() {
+    assertEquals(
+        ImmutableList.of(
+            "a:[1]|[]", "b:[2]|[10]", "b:[3]|[10]", "d:[4]|[30, 40]"),
+        describe(SortMergeJoinIterable.leftJoin(
+            Ordering.natural(), entities, events)));
+  }
+
+  public void testFullOuterJoin() {
+    assertEquals(
+        ImmutableList.of("a:[1]|[]", "b:[2]|[10]", "b:[3]|[10]", "c:[]|[20]",
+            "d:[4]|[30, 40]", "e:[]|[50]"),
+        describe(SortMergeJoinIterable.fullOuterJoin(
+            Ordering.natural(), entities, events)));
+  }
+
+  public void testWithEmptySide() {
+    List<KeyedBatch<String, Integer>> empty = ImmutableList.of();
+
+    assertEquals(ImmutableList.of(), describe(
+        SortMergeJoinIterable.innerJoin(Ordering.natural(), entities, empty)));
+    assertEquals(
+        ImmutableList.of("a:[1]|[]", "b:[2]|[]", "b:[3]|[]", "d:[4]|[]"),
+        describe(SortMergeJoinIterable.leftJoin(
+            Ordering.natural(), entities, empty)));
+    assertEquals(ImmutableList.of(), describe(
+        SortMergeJoinIterable.leftJoin(Ordering.natural(), empty, events)));
+  }
+
+  public void testJoinsLoadingIterables() {
+    FakeMapLoadingIterable left =
+        new FakeMapLoadingIterable(2, false, "a", 1, "b", 2, "c", 1);
+    FakeMapLoadingIterable right =
+        new FakeMapLoadingIterable(2, false, "b", 1, "c", 2);
+
+    assertEquals(ImmutableList.of("b:[0, 1]|[0]", "c:[0]|[0, 1]"),
+        describe(SortMergeJoinIterable.innerJoin(
+            Ordering.natural(), left, right)));
+  }
+
+  public void testStreamsLeftKeyWiderThanOneLoad() {
+    FakeMapLoadingIterable left =
+        new FakeMapLoadingIterable(2, true, "a", 1, "b", 5);
+    FakeMapLoadingIterable right =
+        new FakeMapLoadingIterable(2, true, "b", 3, "c", 3);
+
+    // "b" comes from the left side in chunks of up to the batch size, each
+    // paired with the combined chunks of the right side.
+    assertEquals(ImmutableList.of("a:[0]|[]", "b:[0, 1, 2]|[0, 1, 2]",
+        "b:[3, 4]|[0, 1, 2]", "c:[]|[0, 1, 2]"),
+        describe(SortMergeJoinIterable.fullOuterJoin(
+            Ordering.natural(), left, right)));
+  }
+
+  private static KeyedBatch<String, Integer> keyedBatch(
+      String key, Integer... values) {
+    return KeyedBatch.of(key, Batches.ofArray(values));
+  }
+
+  private static List<String> describe(
+      Iterable<JoinedBatch<String, Integer, Integer>> joinedBatches) {
+    List<String> descriptions = Lists.newArrayList();
+    for (JoinedBatch<String, Integer, Integer> joinedBatch : joinedBatches) {
+      descriptions.add(joinedBatch.getKey() + ":"
+          + ImmutableList.copyOf(joinedBatch.getLeft()) + "|"
+          + ImmutableList.copyOf(joinedBatch.getRight()));
+    }
+    return descriptions;
+  }
+}
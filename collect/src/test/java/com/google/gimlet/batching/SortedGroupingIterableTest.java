@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import static com.google.gimlet.testing.tl4j.JUnitAsserts.assertContentsInOrder;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link SortedGroupingIterable}.
+ *
+ */
+public class SortedGroupingIterableTest extends TestCase {
+
+  /** Records look like "a1", keyed by their letter, valued by their digit. */
+  private static final Function<String, Character> KEY =
+      new Function<String, Character>() {
+        @Override public Character apply(String record) {
+          return record.charAt(0);
+        }
+      };
+
+  private static final Function<String, Integer> VALUE =
+      new Function<String, Integer>() {
+        @Override public Integer apply(String record) {
+          return Integer.valueOf(record.substring(1));
+        }
+      };
+
+  public void testGroupsAdjacentRecords() {
+    assertContentsInOrder(
+        SortedGroupingIterable.of(
+            ImmutableList.of("a1", "a2", "b3", "c4", "c5", "c6"), KEY, VALUE),
+        keyedBatch('a', 1, 2),
+        keyedBatch('b', 3),
+        keyedBatch('c', 4, 5, 6));
+  }
+
+  public void testEmpty() {
+    assertFalse(SortedGroupingIterable.of(
+        ImmutableList.<String>of(), KEY, VALUE).iterator().hasNext());
+  }
+
+  public void testKeysSpanLoads() {
+    FakeListLoadingIterable records = new FakeListLoadingIterable(
+        2, "a1", "a2", "a3", "b4", "b5", "c6");
+
+    assertContentsInOrder(
+        SortedGroupingIterable.of(records, KEY, VALUE),
+        keyedBatch('a', 1, 2, 3),
+        keyedBatch('b', 4, 5),
+        keyedBatch('c', 6));
+    // each record was loaded once.
+    assertEquals(ImmutableList.of(0, 2, 4, 6), records.getLoadedIds());
+  }
+
+  public void testSplitsLargeKeys() {
+    assertContentsInOrder(
+        SortedGroupingIterable.of(
+            ImmutableList.of("a1", "a2", "a3", "a4", "a5", "b6"),
+            KEY, VALUE, 2),
+        keyedBatch('a', 1, 2),
+        keyedBatch('a', 3, 4),
+        keyedBatch('a', 5),
+        keyedBatch('b', 6));
+  }
+
+  public void testRejectsNonPositiveMaxBatchSize() {
+    try {
+      SortedGroupingIterable.of(ImmutableList.<String>of(), KEY, VALUE, 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static KeyedBatch<Character, Integer> keyedBatch(
+      char key, Integer... values) {
+    return KeyedBatch.of(key, Batches.ofArray(values));
+  }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.gimlet.batching;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ThrottlingCallableTransform}.
+ *
+ */
+public class ThrottlingCallableTransformTest extends TestCase {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final FakeClock clock = new FakeClock();
+  private final LoadStatistics statistics = LoadStatistics.withWindowSize(8);
+
+  public void testThrottlesBatchesPerSecond() {
+    ThrottlingCallableTransform throttle =
+        newThrottle(2, ThrottlingCallableTransform.UNLIMITED);
+    FakeListLoadingIterable loadingIterable = new FakeListLoadingIterable(
+        throttle, 1, "a", "b", "c", "d", "e");
+
+    assertEquals(5, ImmutableList.copyOf(loadingIterable).size());
+    // two loads burst from the full bucket, and the other four wait.
+    assertEquals(ImmutableList.of(SECOND / 2, SECOND / 2, SECOND / 2,
+        SECOND / 2), clock.sleeps);
+    assertEquals(6, throttle.getBatchCount());
+    assertEquals(5, throttle.getRowCount());
+    assertEquals(2 * SECOND, throttle.getThrottledNanos());
+    assertEquals(2 * SECOND, statistics.getTotalThrottleNanos());
+  }
+
+  public void testThrottlesRowsPerSecond() {
+    ThrottlingCallableTransform throttle =
+        newThrottle(ThrottlingCallableTransform.UNLIMITED, 2);
+    FakeListLoadingIterable loadingIterable = new FakeListLoadingIterable(
+        throttle, 4, "a", "b", "c", "d", "e", "f");
+
+    ImmutableList.copyOf(loadingIterable);
+    // each load waits until the rows of the one before it are paid off.
+    assertEquals(ImmutableList.of(SECOND, SECOND), clock.sleeps);
+    assertEquals(6, throttle.getRowCount());
+  }
+
+  public void testCountsValuesOfKeyedBatchesAsRows() throws Exception {
+    ThrottlingCallableTransform throttle =
+        newThrottle(ThrottlingCallableTransform.UNLIMITED, 100);
+    final List<KeyedBatch<String, Integer>> keyedBatches = ImmutableList.of(
+        KeyedBatch.of("a", Batches.ofArray(0, 1, 2)),
+        KeyedBatch.of("b", Batches.ofArray(0)));
+
+    assertSame(keyedBatches, throttle.transform(
+        new Callable<List<KeyedBatch<String, Integer>>>() {
+          @Override public List<KeyedBatch<String, Integer>> call() {
+            return keyedBatches;
+          }
+        }).call());
+    assertEquals(4, throttle.getRowCount());
+  }
+
+  public void testCountsValuesOfPrimitiveLoadsAsRows() {
+    ThrottlingCallableTransform throttle =
+        newThrottle(ThrottlingCallableTransform.UNLIMITED, 2);
+    IntLoadingIterable<Integer> loadingIterable =
+        new IntLoadingIterable<Integer>(0, 4, throttle) {
+          @Override protected Integer getNextId(int previousEnd) {
+            return previousEnd + 1;
+          }
+
+          @Override protected int loadNextBatch(
+              Integer beginIdForBatch, int[] buffer) {
+            int count = 0;
+            for (int i = beginIdForBatch; i < 6 && count < buffer.length;
+                i++) {
+              buffer[count++] = i;
+            }
+            return count;
+          }
+        };
+
+    IntBatch.IntIterator iterator = loadingIterable.intIterator();
+    while (iterator.hasNext()) {
+      iterator.nextInt();
+    }
+    assertEquals(ImmutableList.of(SECOND, SECOND), clock.sleeps);
+    assertEquals(6, throttle.getRowCount());
+  }
+
+  public void testFailsToCountRowsOfUnknownResult() throws Exception {
+    Callable<String> load = new Callable<String>() {
+      @Override public String call() {
+        return "raw";
+      }
+    };
+
+    assertEquals("raw", newThrottle(1, ThrottlingCallableTransform.UNLIMITED)
+        .transform(load).call());
+    try {
+      newThrottle(ThrottlingCallableTransform.UNLIMITED, 100)
+          .transform(load).call();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  public void testRateCanBeChangedAtRuntime() {
+    ThrottlingCallableTransform throttle =
+        newThrottle(1, ThrottlingCallableTransform.UNLIMITED);
+    FakeListLoadingIterable loadingIterable =
+        new FakeListLoadingIterable(throttle, 1, "a", "b", "c");
+
+    ImmutableList.copyOf(loadingIterable);
+    assertEquals(ImmutableList.of(SECOND, SECOND, SECOND), clock.sleeps);
+
+    throttle.setBatchesPerSecond(4);
+    assertEquals(4.0, throttle.getBatchesPerSecond());
+    clock.sleeps.clear();
+    ImmutableList.copyOf(loadingIterable);
+    assertEquals(ImmutableList.of(SECOND / 4, SECOND / 4, SECOND / 4,
+        SECOND / 4), clock.sleeps);
+  }
+
+  public void testInterruptedWaitKeepsInterruptStatus() throws Exception {
+    ThrottlingCallableTransform throttle = new ThrottlingCallableTransform(
+        1, ThrottlingCallableTransform.UNLIMITED, statistics, clock,
+        new ThrottlingCallableTransform.Sleeper() {
+          @Override public void sleep(long nanos) throws InterruptedException {
+            throw new InterruptedException();
+          }
+        });
+    Callable<String> load = throttle.transform(new Callable<String>() {
+      @Override public String call() {
+        return "a";
+      }
+    });
+
+    assertEquals("a", load.call());
+    try {
+      load.call();
+      fail();
+    } catch (InterruptedException expected) {
+      // clears the status, so that it doesn't leak into later tests.
+      assertTrue(Thread.interrupted());
+    }
+  }
+
+  private ThrottlingCallableTransform newThrottle(
+      double batchesPerSecond, double rowsPerSecond) {
+    return new ThrottlingCallableTransform(
+        batchesPerSecond, rowsPerSecond, statistics, clock, clock);
+  }
+
+  /** A clock that only moves when slept on, recording each sleep. */
+  private static class FakeClock
+      implements Ticker, ThrottlingCallableTransform.Sleeper {
+    final List<Long> sleeps = Lists.newArrayList();
+    long nanos;
+
+    @Override public long read() {
+      return nanos;
+    }
+
+    @Override public void sleep(long sleepNanos) {
+      sleeps.add(sleepNanos);
+      nanos += sleepNanos;
+    }
+  }
+}